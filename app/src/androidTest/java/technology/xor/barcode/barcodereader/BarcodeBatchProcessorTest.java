@@ -0,0 +1,112 @@
+package technology.xor.barcode.barcodereader;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import technology.xor.barcode.barcodereader.ui.camera.GraphicOverlay;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tracking of barcodes from frame to frame by the batch processor: what is reported as new, what
+ * the overlay shows, and when a missing barcode is hidden and then forgotten.  These run on a
+ * device, as SparseArray and the overlay view need the Android runtime.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BarcodeBatchProcessorTest {
+    private GraphicOverlay<BarcodeGraphic> mOverlay;
+    private BarcodeBatchProcessor mProcessor;
+    private final List<List<Barcode>> mReported = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mOverlay = new GraphicOverlay<>(InstrumentationRegistry.getTargetContext(), null);
+        mProcessor = new BarcodeBatchProcessor(mOverlay,
+                new BarcodeBatchProcessor.BarcodeBatchListener() {
+                    @Override
+                    public void onObjectsDetected(List<Barcode> barcodes) {
+                        mReported.add(barcodes);
+                    }
+                });
+    }
+
+    /**
+     * Passes a frame with barcodes of the given ids to the processor.
+     */
+    private void frame(int... ids) {
+        SparseArray<Barcode> items = new SparseArray<>();
+        for (int id : ids) {
+            Barcode barcode = new Barcode();
+            barcode.rawValue = "code " + id;
+            items.put(id, barcode);
+        }
+        mProcessor.receiveDetections(new Detector.Detections<>(items, null, true));
+    }
+
+    private List<Integer> shownIds() {
+        List<Integer> ids = new ArrayList<>();
+        for (BarcodeGraphic graphic : mOverlay.getGraphics()) {
+            ids.add(graphic.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void reportsNewBarcodesOnceTogether() {
+        frame(1, 2);
+        assertEquals(1, mReported.size());
+        assertEquals(2, mReported.get(0).size());
+        assertEquals(2, shownIds().size());
+
+        frame(1, 2);
+        frame(1, 2, 3);
+        assertEquals(2, mReported.size());
+        assertEquals("code 3", mReported.get(1).get(0).rawValue);
+        assertEquals(3, shownIds().size());
+    }
+
+    @Test
+    public void hidesMissingBarcodeUntilItReturns() {
+        frame(1, 2);
+        frame(1);
+        assertEquals(1, shownIds().size());
+        assertEquals(1, (int) shownIds().get(0));
+
+        // Back within the gap, so shown again without being reported as new.
+        frame(1, 2);
+        assertEquals(2, shownIds().size());
+        assertEquals(1, mReported.size());
+    }
+
+    @Test
+    public void forgetsBarcodeMissingForTooLong() {
+        frame(1, 2);
+        for (int i = 0; i < 4; i++) {
+            frame(1);
+        }
+        frame(1, 2);
+        assertEquals(2, mReported.size());
+        assertEquals("code 2", mReported.get(1).get(0).rawValue);
+    }
+
+    @Test
+    public void releaseClearsOverlay() {
+        frame(1, 2);
+        mProcessor.release();
+        assertTrue(mOverlay.getGraphics().isEmpty());
+
+        frame(1);
+        assertEquals(2, mReported.size());
+    }
+}
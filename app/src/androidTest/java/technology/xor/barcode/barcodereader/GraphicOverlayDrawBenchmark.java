@@ -0,0 +1,101 @@
+package technology.xor.barcode.barcodereader;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.google.android.gms.vision.CameraSource;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import technology.xor.barcode.barcodereader.ui.camera.GraphicOverlay;
+
+import static org.junit.Assert.*;
+
+/**
+ * Draws an overlay showing many barcodes over and over, and checks that steady-state drawing
+ * doesn't allocate, and so doesn't trigger any garbage collections.  The allocation check matters
+ * on its own: a few kilobytes per frame may not add up to a collection within the run on a device
+ * with a large heap, but would during a long scanning session.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GraphicOverlayDrawBenchmark {
+    private static final String TAG = "OverlayDrawBenchmark";
+
+    private static final int BARCODE_COUNT = 50;
+    private static final int WARM_UP_FRAMES = 100;
+    private static final int MEASURED_FRAMES = 2000;
+
+    /**
+     * Allowance for allocations made by other threads of the process during the run, which are
+     * counted too.  Allocating one Rect per barcode per frame would already be over 20 times this.
+     */
+    private static final long MAX_BYTES_PER_FRAME = 50;
+
+    @Test
+    public void steadyStateDrawingDoesNotCollect() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        GraphicOverlay<BarcodeGraphic> overlay = new GraphicOverlay<>(context, null);
+        overlay.setCameraInfo(1280, 720, CameraSource.CAMERA_FACING_BACK);
+
+        BarcodeGraphicPool pool = new BarcodeGraphicPool(overlay);
+        for (int i = 0; i < BARCODE_COUNT; i++) {
+            BarcodeGraphic graphic = pool.acquire();
+            graphic.setId(i);
+            graphic.updateItem(createBarcode(i));
+            overlay.add(graphic);
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(1080, 1920, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            overlay.draw(canvas);
+        }
+
+        Runtime.getRuntime().gc();
+        long gcCountBefore = runtimeStat("art.gc.gc-count");
+        long bytesBefore = runtimeStat("art.gc.bytes-allocated");
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            overlay.draw(canvas);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        long bytesPerFrame =
+                (runtimeStat("art.gc.bytes-allocated") - bytesBefore) / MEASURED_FRAMES;
+        long collections = runtimeStat("art.gc.gc-count") - gcCountBefore;
+
+        Log.i(TAG, "Drew " + MEASURED_FRAMES + " frames of " + BARCODE_COUNT + " barcodes, "
+                + (elapsedNanos / MEASURED_FRAMES / 1000) + " us per frame, "
+                + bytesPerFrame + " bytes allocated per frame, " + collections + " collections");
+        assertTrue(bytesPerFrame <= MAX_BYTES_PER_FRAME);
+        assertEquals(0, collections);
+        bitmap.recycle();
+    }
+
+    private static Barcode createBarcode(int index) {
+        int left = (index % 10) * 120;
+        int top = (index / 10) * 140;
+        Barcode barcode = new Barcode();
+        barcode.format = Barcode.QR_CODE;
+        barcode.rawValue = "barcode-" + index;
+        barcode.displayValue = barcode.rawValue;
+        barcode.cornerPoints = new Point[] {
+                new Point(left, top),
+                new Point(left + 100, top),
+                new Point(left + 100, top + 100),
+                new Point(left, top + 100)
+        };
+        return barcode;
+    }
+
+    private static long runtimeStat(String name) {
+        return Long.parseLong(Debug.getRuntimeStat(name));
+    }
+}
@@ -0,0 +1,118 @@
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.hardware.Camera;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Persistence of the camera capability cache, and what it throws away when loading: caches of
+ * another build, incomplete entries and unreadable files.  These run on a device, as the
+ * android.jar used by local unit tests has no build fingerprint.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation")
+public class CameraCapabilitiesCacheTest {
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "camera-capabilities-test.json");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static CameraCapabilities capabilities(int cameraId, int facing, int width) {
+        String json = "{\"camera_id\":" + cameraId + ",\"facing\":" + facing
+                + ",\"orientation\":90,\"preview_sizes\":[[" + width + ",480]]"
+                + ",\"picture_sizes\":[],\"preview_fps_ranges\":[[15000,30000]]"
+                + ",\"focus_modes\":[\"auto\"],\"flash_modes\":[],\"zoom_supported\":false"
+                + ",\"max_zoom\":0,\"zoom_ratios\":[]}";
+        return new Gson().fromJson(json, CameraCapabilities.class);
+    }
+
+    private void write(String json) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(json.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void keepsCapabilitiesAcrossInstances() {
+        CameraCapabilitiesCache cache = new CameraCapabilitiesCache(mFile);
+        assertNull(cache.getForFacing(Camera.CameraInfo.CAMERA_FACING_BACK));
+        cache.put(capabilities(0, Camera.CameraInfo.CAMERA_FACING_BACK, 640));
+        cache.put(capabilities(1, Camera.CameraInfo.CAMERA_FACING_FRONT, 320));
+
+        CameraCapabilitiesCache reloaded = new CameraCapabilitiesCache(mFile);
+        CameraCapabilities back = reloaded.getForFacing(Camera.CameraInfo.CAMERA_FACING_BACK);
+        assertEquals(0, back.getCameraId());
+        assertEquals(90, back.getOrientation());
+        assertEquals(640, back.getPreviewSizes().get(0)[0]);
+        assertTrue(back.supportsFocusMode("auto"));
+        assertEquals(1, reloaded.getForFacing(Camera.CameraInfo.CAMERA_FACING_FRONT)
+                .getCameraId());
+    }
+
+    @Test
+    public void replacesCapabilitiesOfSameCamera() {
+        CameraCapabilitiesCache cache = new CameraCapabilitiesCache(mFile);
+        cache.put(capabilities(0, Camera.CameraInfo.CAMERA_FACING_BACK, 640));
+        cache.put(capabilities(0, Camera.CameraInfo.CAMERA_FACING_BACK, 1280));
+
+        CameraCapabilities back = new CameraCapabilitiesCache(mFile)
+                .getForFacing(Camera.CameraInfo.CAMERA_FACING_BACK);
+        assertEquals(1280, back.getPreviewSizes().get(0)[0]);
+    }
+
+    @Test
+    public void dropsCacheOfAnotherBuild() throws IOException {
+        new CameraCapabilitiesCache(mFile).put(
+                capabilities(0, Camera.CameraInfo.CAMERA_FACING_BACK, 640));
+        write("{\"fingerprint\":\"other/build\",\"cameras\":[]}");
+        assertNull(new CameraCapabilitiesCache(mFile)
+                .getForFacing(Camera.CameraInfo.CAMERA_FACING_BACK));
+    }
+
+    @Test
+    public void dropsCacheWithIncompleteEntries() throws IOException {
+        // Written by a version which didn't store the flash modes.
+        write("{\"fingerprint\":" + new Gson().toJson(Build.FINGERPRINT)
+                + ",\"cameras\":[{\"camera_id\":0,\"facing\":0,\"preview_sizes\":[[640,480]]}]}");
+        assertNull(new CameraCapabilitiesCache(mFile)
+                .getForFacing(Camera.CameraInfo.CAMERA_FACING_BACK));
+    }
+
+    @Test
+    public void startsEmptyFromUnreadableFile() throws IOException {
+        write("{\"fingerprint\":");
+        CameraCapabilitiesCache cache = new CameraCapabilitiesCache(mFile);
+        assertNull(cache.getForFacing(Camera.CameraInfo.CAMERA_FACING_BACK));
+
+        // And the file is usable again afterwards.
+        cache.put(capabilities(0, Camera.CameraInfo.CAMERA_FACING_BACK, 640));
+        assertNotNull(new CameraCapabilitiesCache(mFile)
+                .getForFacing(Camera.CameraInfo.CAMERA_FACING_BACK));
+    }
+}
@@ -0,0 +1,210 @@
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a recording of synthetic camera traffic through a camera source, with both frame gates
+ * enabled, and checks that every frame is accounted for and that the blurred and still frames
+ * never reach the detector.  Also records the replayed frames again through several detection
+ * workers, and checks that the recording keeps the frames in order.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CameraSourceReplayTest {
+    private static final String TAG = "CameraSourceReplayTest";
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private static final int MOVING_FRAMES = 10;
+    private static final int BLURRED_FRAMES = 5;
+    private static final int STILL_FRAMES = 10;
+    private static final int FRAMES = 2 * MOVING_FRAMES + BLURRED_FRAMES + STILL_FRAMES;
+
+    @Test
+    public void gatesBlurredAndStillFrames() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        File file = new File(context.getCacheDir(), "replay-test.nv21");
+        FrameRecorder recorder = new FrameRecorder(file);
+        for (int i = 0; i < FRAMES; i++) {
+            recorder.record(frame(i), WIDTH, HEIGHT, Frame.ROTATION_0, i * 33);
+        }
+        recorder.close();
+
+        final Detector<Object> detector = new Detector<Object>() {
+            @Override
+            public SparseArray<Object> detect(Frame frame) {
+                return new SparseArray<>();
+            }
+        };
+        detector.setProcessor(new Detector.Processor<Object>() {
+            @Override
+            public void release() {
+            }
+
+            @Override
+            public void receiveDetections(Detector.Detections<Object> detections) {
+            }
+        });
+
+        // A FIFO handoff deep enough for the whole recording, and the source waiting for free
+        // buffers, keep frames from being dropped on the way, so each is gated or detected on.
+        CameraSource cameraSource = new CameraSource.Builder(context, detector)
+                .setFrameSource(new RecordedFrameSource(file, false, false))
+                .setFrameHandoff(CameraSource.FRAME_HANDOFF_FIFO, FRAMES)
+                .setSharpnessGate(new SharpnessGate())
+                .setSceneChangeGate(new SceneChangeGate(SceneChangeGate.DEFAULT_THRESHOLD, 60000))
+                .build();
+        cameraSource.start();
+
+        FrameMetrics metrics = cameraSource.getFrameMetrics();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (handled(metrics) < FRAMES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        cameraSource.release();
+        file.delete();
+
+        Log.i(TAG, metrics.toString());
+        assertEquals(FRAMES, metrics.getReceivedCount());
+        assertEquals(0, metrics.getDroppedHandoffCount());
+        assertEquals(BLURRED_FRAMES, metrics.getSkippedBlurryCount());
+        assertEquals(STILL_FRAMES, metrics.getSkippedUnchangedCount());
+        assertEquals(2 * MOVING_FRAMES, metrics.getProcessedCount());
+    }
+
+    @Test
+    public void recordsFramesInOrderWithSeveralWorkers() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        File file = new File(context.getCacheDir(), "replay-test.nv21");
+        File rerecorded = new File(context.getCacheDir(), "replay-test-rerecorded.nv21");
+        FrameRecorder recorder = new FrameRecorder(file);
+        for (int i = 0; i < FRAMES; i++) {
+            recorder.record(frame(i), WIDTH, HEIGHT, Frame.ROTATION_0, i * 33);
+        }
+        recorder.close();
+
+        DetectorFactory<Object> factory = new DetectorFactory<Object>() {
+            @Override
+            public Detector<Object> create() {
+                return createSlowDetector();
+            }
+        };
+        Detector<Object> detector = createSlowDetector();
+        detector.setProcessor(new NullProcessor());
+        CameraSource cameraSource = new CameraSource.Builder(context, detector)
+                .setFrameSource(new RecordedFrameSource(file, false, false))
+                .setFrameHandoff(CameraSource.FRAME_HANDOFF_FIFO, FRAMES)
+                .setDetectionWorkers(3, factory, new NullProcessor())
+                .setFrameRecorder(new FrameRecorder(rerecorded))
+                .build();
+        cameraSource.start();
+
+        FrameMetrics metrics = cameraSource.getFrameMetrics();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (handled(metrics) < FRAMES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Closes the recording.
+        cameraSource.release();
+        file.delete();
+        assertEquals(FRAMES, metrics.getReceivedCount());
+
+        final RecordedFrameSource replay = new RecordedFrameSource(rerecorded, false, false);
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(FRAMES);
+        replay.addCallbackBuffer(new byte[WIDTH * HEIGHT * 3 / 2]);
+        replay.start(new FrameSource.FrameCallback() {
+            private int mIndex;
+
+            @Override
+            public void onFrame(byte[] data) {
+                if (!Arrays.equals(frame(mIndex++), data)) {
+                    outOfOrder.incrementAndGet();
+                }
+                replay.addCallbackBuffer(data);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        replay.stop();
+        rerecorded.delete();
+        assertEquals(0, outOfOrder.get());
+    }
+
+    /**
+     * Returns a detector taking a varying time per frame, so that workers finish out of order.
+     */
+    private static Detector<Object> createSlowDetector() {
+        return new Detector<Object>() {
+            private final Random mRandom = new Random();
+
+            @Override
+            public SparseArray<Object> detect(Frame frame) {
+                SystemClock.sleep(mRandom.nextInt(10));
+                return new SparseArray<>();
+            }
+        };
+    }
+
+    private static final class NullProcessor implements Detector.Processor<Object> {
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void receiveDetections(Detector.Detections<Object> detections) {
+        }
+    }
+
+    private static long handled(FrameMetrics metrics) {
+        return metrics.getProcessedCount() + metrics.getSkippedBlurryCount()
+                + metrics.getSkippedUnchangedCount() + metrics.getDroppedHandoffCount()
+                + metrics.getDroppedStaleCount() + metrics.getDroppedThrottledCount();
+    }
+
+    /**
+     * Returns the NV21 data of the given frame: moving (noise) frames, then blurred ones, then the
+     * last moving frame held still, then moving frames again.
+     */
+    private static byte[] frame(int index) {
+        byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(data, (byte) 128);
+        if (index >= MOVING_FRAMES && index < MOVING_FRAMES + BLURRED_FRAMES) {
+            for (int y = 0; y < HEIGHT; y++) {
+                Arrays.fill(data, y * WIDTH, (y + 1) * WIDTH, (byte) (64 + y / 2));
+            }
+            return data;
+        }
+
+        int seed = index;
+        if (index >= MOVING_FRAMES + BLURRED_FRAMES
+                && index < MOVING_FRAMES + BLURRED_FRAMES + STILL_FRAMES) {
+            seed = MOVING_FRAMES - 1;
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            data[i] = (byte) random.nextInt(256);
+        }
+        return data;
+    }
+}
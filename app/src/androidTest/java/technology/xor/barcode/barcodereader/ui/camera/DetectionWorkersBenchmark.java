@@ -0,0 +1,151 @@
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a frame recording through a camera source, once for each number of detection workers
+ * from one up to the number of cores, and logs how many frames per second are detected on once
+ * each run has settled.
+ * <p/>
+ * The recording is replayed in real time at a thousand frames per second and looped, so the
+ * detectors always have a frame waiting, while the replay itself takes little CPU.  Detection is
+ * simulated by a fixed amount of work per frame, so that runs only differ in how well the work is
+ * spread over the workers.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DetectionWorkersBenchmark {
+    private static final String TAG = "DetectionWorkersBench";
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int FRAMES = 100;
+    private static final long FRAME_INTERVAL_MILLIS = 1;
+
+    private static final int HANDOFF_DEPTH = 2;
+    private static final long WARM_UP_MILLIS = 1000;
+    private static final long MEASURE_MILLIS = 5000;
+
+    /**
+     * Passes over the luma plane per simulated detection, enough to keep even a detector on each
+     * core below the replay rate.
+     */
+    private static final int PASSES_PER_FRAME = 50;
+
+    @Test
+    public void reportsThroughputPerWorkerCount() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        File file = new File(context.getCacheDir(), "workers-benchmark.nv21");
+        recordFrames(file);
+
+        int maxWorkers = Runtime.getRuntime().availableProcessors();
+        Log.i(TAG, Build.MODEL + ", " + maxWorkers + " cores");
+        float singleWorkerFps = 0;
+        for (int workers = 1; workers <= maxWorkers; workers++) {
+            float fps = run(context, file, workers);
+            if (workers == 1) {
+                singleWorkerFps = fps;
+            }
+            Log.i(TAG, String.format(Locale.US, "%d worker(s): %.1f frames/s, %.2fx one worker",
+                    workers, fps, fps / singleWorkerFps));
+        }
+        file.delete();
+    }
+
+    /**
+     * Replays the recording with the given number of workers.
+     *
+     * @return frames detected on per second
+     */
+    private static float run(Context context, File file, int workers) throws Exception {
+        DetectorFactory<Object> factory = new DetectorFactory<Object>() {
+            @Override
+            public Detector<Object> create() {
+                return createDetector();
+            }
+        };
+        CameraSource cameraSource = new CameraSource.Builder(context, createDetector())
+                .setFrameSource(new RecordedFrameSource(file, true, true))
+                .setFrameHandoff(CameraSource.FRAME_HANDOFF_FIFO, HANDOFF_DEPTH)
+                .setDetectionWorkers(workers, factory, new NullProcessor())
+                .build();
+        FrameMetrics metrics = cameraSource.getFrameMetrics();
+
+        cameraSource.start();
+        Thread.sleep(WARM_UP_MILLIS);
+        long startMillis = SystemClock.elapsedRealtime();
+        long processedBefore = metrics.getProcessedCount();
+        Thread.sleep(MEASURE_MILLIS);
+        long processed = metrics.getProcessedCount() - processedBefore;
+        long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+        cameraSource.release();
+
+        Log.i(TAG, workers + " worker(s): " + metrics);
+        assertTrue(processed > 0);
+        return processed * 1000f / elapsedMillis;
+    }
+
+    private static void recordFrames(File file) throws Exception {
+        FrameRecorder recorder = new FrameRecorder(file);
+        byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+        Random random = new Random(0);
+        for (int i = 0; i < FRAMES; i++) {
+            random.nextBytes(data);
+            recorder.record(data, WIDTH, HEIGHT, Frame.ROTATION_0, i * FRAME_INTERVAL_MILLIS);
+        }
+        recorder.close();
+    }
+
+    private static Detector<Object> createDetector() {
+        Detector<Object> detector = new Detector<Object>() {
+            @Override
+            public SparseArray<Object> detect(Frame frame) {
+                ByteBuffer luma = frame.getGrayscaleImageData();
+                int size = frame.getMetadata().getWidth() * frame.getMetadata().getHeight();
+                long sum = 0;
+                for (int pass = 0; pass < PASSES_PER_FRAME; pass++) {
+                    for (int i = 0; i < size; i++) {
+                        sum += luma.get(i) & 0xff;
+                    }
+                }
+                SparseArray<Object> items = new SparseArray<>();
+                if (sum == 0) {
+                    // Keeps the work from being optimized away; only true for an all black frame.
+                    items.put(0, luma);
+                }
+                return items;
+            }
+        };
+        // Only used with a single worker, where results aren't passed through the sequencer.
+        detector.setProcessor(new NullProcessor());
+        return detector;
+    }
+
+    private static final class NullProcessor implements Detector.Processor<Object> {
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void receiveDetections(Detector.Detections<Object> detections) {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.graphics.Rect;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.google.android.gms.vision.Frame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mapping of the scan window into sensor coordinates and back, for each frame rotation.  These run
+ * on a device, as the android.jar used by local unit tests has no Rect code.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScanWindowTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    private static final ScanWindow WINDOW = new ScanWindow(0.25f, 0.1f, 0.75f, 0.5f);
+
+    private static void assertRect(int left, int top, int right, int bottom, Rect rect) {
+        assertEquals("left", left, rect.left);
+        assertEquals("top", top, rect.top);
+        assertEquals("right", right, rect.right);
+        assertEquals("bottom", bottom, rect.bottom);
+    }
+
+    @Test
+    public void cropsUnrotatedFrame() {
+        assertRect(160, 48, 480, 240, WINDOW.sensorCrop(WIDTH, HEIGHT, Frame.ROTATION_0));
+    }
+
+    @Test
+    public void rotatesWindowIntoSensorCoordinates() {
+        // The upright image is portrait, 480 x 640, and the sensor is turned a quarter either way.
+        assertRect(64, 120, 320, 360, WINDOW.sensorCrop(WIDTH, HEIGHT, Frame.ROTATION_90));
+        assertRect(160, 240, 480, 432, WINDOW.sensorCrop(WIDTH, HEIGHT, Frame.ROTATION_180));
+        assertRect(320, 120, 576, 360, WINDOW.sensorCrop(WIDTH, HEIGHT, Frame.ROTATION_270));
+    }
+
+    @Test
+    public void mapsCropBackToUprightWindow() {
+        int[] rotations = {
+                Frame.ROTATION_0, Frame.ROTATION_90, Frame.ROTATION_180, Frame.ROTATION_270};
+        for (int rotation : rotations) {
+            Rect crop = WINDOW.sensorCrop(WIDTH, HEIGHT, rotation);
+            Rect upright = ScanWindow.uprightRect(crop, WIDTH, HEIGHT, rotation);
+            boolean portrait = rotation == Frame.ROTATION_90 || rotation == Frame.ROTATION_270;
+            int uprightWidth = portrait ? HEIGHT : WIDTH;
+            int uprightHeight = portrait ? WIDTH : HEIGHT;
+            assertRect((int) (0.25f * uprightWidth), (int) (0.1f * uprightHeight),
+                    (int) (0.75f * uprightWidth), (int) (0.5f * uprightHeight), upright);
+        }
+    }
+
+    @Test
+    public void alignsCropToEvenPixels() {
+        Rect crop = new ScanWindow(0.1f, 0.1f, 0.9f, 0.9f).sensorCrop(333, 251, Frame.ROTATION_0);
+        assertRect(32, 24, 298, 224, crop);
+
+        // A window narrower than a pixel still covers one 2x2 chroma block.
+        Rect tiny = new ScanWindow(0.5f, 0.5f, 0.501f, 0.501f).sensorCrop(100, 100,
+                Frame.ROTATION_0);
+        assertRect(50, 50, 52, 52, tiny);
+        assertEquals(2 * 2 * 3 / 2, ScanWindow.croppedSize(tiny));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyWindow() {
+        new ScanWindow(0.5f, 0.1f, 0.5f, 0.9f);
+    }
+}
@@ -0,0 +1,75 @@
+package technology.xor.barcode.upload;
+
+import android.content.Context;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.net.ssl.SSLContext;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+
+/**
+ * Compares the HttpsURLConnection and Volley upload transports on a device, against the test
+ * server given with {@code -e uploadBenchmarkUrl https://...}, to pick the transport for the
+ * device's class in {@link UploadScheduler}.  Skipped without a server.
+ */
+@RunWith(AndroidJUnit4.class)
+public class UploadTransportBenchmark {
+    private static final String TAG = "UploadTransportBench";
+
+    private static final int THREADS = UploadScheduler.MAX_CONCURRENT_UPLOADS;
+    private static final int REQUESTS = 500;
+
+    @Test
+    public void comparesTransports() throws Exception {
+        String url = InstrumentationRegistry.getArguments().getString("uploadBenchmarkUrl");
+        assumeNotNull(url);
+
+        Context context = InstrumentationRegistry.getTargetContext();
+        int deviceClass = UploadScheduler.getDeviceClass(context);
+        Log.i(TAG, Build.MODEL + ", " + Runtime.getRuntime().availableProcessors() + " cores, "
+                + (deviceClass == UploadScheduler.DEVICE_CLASS_LOW_RAM ? "low-RAM" : "standard")
+                + " class, using "
+                + (UploadScheduler.getTransport(deviceClass) == UploadScheduler.TRANSPORT_VOLLEY
+                        ? "Volley" : "HttpsURLConnection"));
+
+        // A context each, so neither transport resumes the other's TLS sessions.
+        TransportBenchmark.Result https = TransportBenchmark.run("HttpsURLConnection",
+                new UploadClient(createSslContext()), url, THREADS, REQUESTS);
+        Log.i(TAG, https.toString());
+        TransportBenchmark.Result volley = TransportBenchmark.run("Volley",
+                new VolleyTransport(createSslContext(), THREADS), url, THREADS, REQUESTS);
+        Log.i(TAG, volley.toString());
+
+        assertEquals(0, https.getFailureCount());
+        assertEquals(0, volley.getFailureCount());
+    }
+
+    @Test
+    public void volleyDropsUnusedPrewarmedConnection() throws Exception {
+        String url = InstrumentationRegistry.getArguments().getString("uploadBenchmarkUrl");
+        assumeNotNull(url);
+
+        VolleyTransport volley = new VolleyTransport(createSslContext(), THREADS);
+        volley.prewarm(url, 200);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (volley.getMetrics().getPrewarmDroppedCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, volley.getMetrics().getPrewarmCount());
+        assertEquals(1, volley.getMetrics().getPrewarmDroppedCount());
+    }
+
+    private static SSLContext createSslContext() throws Exception {
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+        sslContext.init(null, null, null);
+        return sslContext;
+    }
+}
@@ -3,6 +3,7 @@ package technology.xor.barcode;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
@@ -16,6 +17,7 @@ import android.widget.TextView;
 import com.google.android.gms.common.api.CommonStatusCodes;
 
 import technology.xor.barcode.barcodereader.BarcodeCaptureActivity;
+import technology.xor.barcode.barcodereader.BarcodeDetectorHolder;
 import technology.xor.barcode.dialogs.CodeNameDialog;
 import technology.xor.barcode.dialogs.UrlDialog;
 
@@ -28,6 +30,9 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // Load the barcode detector in the background while the user is still on this screen
+        BarcodeDetectorHolder.getInstance(this).warmUp();
+
         TextView statusMessage = findViewById(R.id.status_message);
         Button scanBtn = findViewById(R.id.read_barcode);
 
@@ -40,6 +45,8 @@ public class MainActivity extends AppCompatActivity {
                 Intent intent = new Intent(MainActivity.this, BarcodeCaptureActivity.class);
                 intent.putExtra(BarcodeCaptureActivity.AutoFocus, true);
                 intent.putExtra(BarcodeCaptureActivity.AutoCapture, true);
+                intent.putExtra(BarcodeCaptureActivity.ScanRequestedAt,
+                        SystemClock.elapsedRealtime());
                 startActivityForResult(intent, RC_BARCODE_CAPTURE);
             }
         });
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package technology.xor.barcode.barcodereader;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import technology.xor.barcode.barcodereader.ui.camera.GraphicOverlay;
+
+/**
+ * Processor which handles all the barcodes of a frame at once, instead of through a tracker per
+ * barcode.  The detections of each frame are compared with the barcodes already being tracked, by
+ * id, and the resulting overlay changes are applied together, so that the overlay is invalidated
+ * once per frame no matter how many barcodes are in view.  Barcodes seen for the first time in a
+ * frame are reported to the listener together, in a single call.
+ * <p/>
+ * As with a {@link com.google.android.gms.vision.MultiProcessor}, a barcode which is missing from
+ * a frame is hidden, and is only considered gone once it has been missing for more than a few
+ * frames in a row.  Detections are received from one thread at a time, so no locking is needed.
+ */
+class BarcodeBatchProcessor implements Detector.Processor<Barcode> {
+
+    /**
+     * Number of consecutive frames a barcode may be missing before it is considered gone.
+     */
+    private static final int MAX_GAP_FRAMES = 3;
+
+    private final GraphicOverlay<BarcodeGraphic> mOverlay;
+    private final BarcodeGraphicPool mGraphicPool;
+    private final BarcodeBatchListener mListener;
+
+    // Barcodes being tracked, by id.
+    private final SparseArray<TrackedBarcode> mTracked = new SparseArray<>();
+
+    // Reused from frame to frame.
+    private final List<BarcodeGraphic> mVisible = new ArrayList<>();
+    private final List<Barcode> mNewItems = new ArrayList<>();
+
+    private long mFrameCount;
+
+    /**
+     * State of one tracked barcode.
+     */
+    private static class TrackedBarcode {
+        final BarcodeGraphic mGraphic;
+        long mLastSeenFrame;
+        boolean mShown;
+
+        TrackedBarcode(BarcodeGraphic graphic) {
+            mGraphic = graphic;
+        }
+    }
+
+    interface BarcodeBatchListener {
+        /**
+         * Called once per frame with the barcodes which appeared in that frame, in no particular
+         * order.  Multiple calls may be made as more barcodes come into view, so you may want to
+         * build a Map<K,V> of the detected objects and finish the activity when the user is
+         * satisfied. @see {@link java.util.Map}
+         * <br/>
+         * Called on the detection thread.
+         *
+         * @param barcodes Barcode parsed objects, which will contain different kinds of data
+         *                 depending on the scanned barcode content.  The list is not modified
+         *                 afterwards, and may be kept.
+         */
+        void onObjectsDetected(List<Barcode> barcodes);
+    }
+
+    BarcodeBatchProcessor(GraphicOverlay<BarcodeGraphic> overlay, BarcodeBatchListener listener) {
+        mOverlay = overlay;
+        mGraphicPool = new BarcodeGraphicPool(overlay);
+        mListener = listener;
+    }
+
+    @Override
+    public void receiveDetections(Detector.Detections<Barcode> detections) {
+        long frame = ++mFrameCount;
+        boolean membershipChanged = false;
+        mNewItems.clear();
+
+        SparseArray<Barcode> items = detections.getDetectedItems();
+        for (int i = 0; i < items.size(); i++) {
+            int id = items.keyAt(i);
+            Barcode barcode = items.valueAt(i);
+
+            TrackedBarcode tracked = mTracked.get(id);
+            if (tracked == null) {
+                tracked = new TrackedBarcode(mGraphicPool.acquire());
+                tracked.mGraphic.setId(id);
+                mTracked.put(id, tracked);
+                mNewItems.add(barcode);
+            }
+            tracked.mGraphic.setBarcode(barcode);
+            tracked.mLastSeenFrame = frame;
+            if (!tracked.mShown) {
+                tracked.mShown = true;
+                membershipChanged = true;
+            }
+        }
+
+        // Hide the barcodes missing from this frame, and drop those which have been missing for
+        // too long.  Iterating backwards keeps the indices valid while removing.
+        for (int i = mTracked.size() - 1; i >= 0; i--) {
+            TrackedBarcode tracked = mTracked.valueAt(i);
+            if (tracked.mLastSeenFrame == frame) {
+                continue;
+            }
+            if (tracked.mShown) {
+                tracked.mShown = false;
+                membershipChanged = true;
+            }
+            if (frame - tracked.mLastSeenFrame > MAX_GAP_FRAMES) {
+                mTracked.removeAt(i);
+                mGraphicPool.release(tracked.mGraphic);
+            }
+        }
+
+        if (membershipChanged) {
+            mVisible.clear();
+            for (int i = 0; i < mTracked.size(); i++) {
+                TrackedBarcode tracked = mTracked.valueAt(i);
+                if (tracked.mShown) {
+                    mVisible.add(tracked.mGraphic);
+                }
+            }
+            mOverlay.setGraphics(mVisible);
+        } else if (items.size() > 0) {
+            // Same barcodes as in the previous frame, but they may have moved.
+            mOverlay.postInvalidate();
+        }
+
+        if (mListener != null && !mNewItems.isEmpty()) {
+            mListener.onObjectsDetected(new ArrayList<>(mNewItems));
+        }
+    }
+
+    /**
+     * Removes all graphics from the overlay and forgets the tracked barcodes.
+     */
+    @Override
+    public void release() {
+        for (int i = 0; i < mTracked.size(); i++) {
+            mGraphicPool.release(mTracked.valueAt(i).mGraphic);
+        }
+        mTracked.clear();
+        mOverlay.clear();
+    }
+}
@@ -26,53 +26,83 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.hardware.Camera;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.SurfaceView;
 import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 
 import com.google.android.gms.common.api.CommonStatusCodes;
-import com.google.android.gms.vision.MultiProcessor;
+import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
 
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.URL;
-import java.util.HashMap;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-
-import technology.xor.barcode.general.NoSSLv3SocketFactory;
 import technology.xor.barcode.R;
+import technology.xor.barcode.upload.ScanChannel;
+import technology.xor.barcode.upload.ScanJournal;
+import technology.xor.barcode.upload.UploadCoalescer;
+import technology.xor.barcode.upload.UploadJob;
+import technology.xor.barcode.upload.UploadScheduler;
 import technology.xor.barcode.barcodereader.ui.camera.CameraSource;
 import technology.xor.barcode.barcodereader.ui.camera.CameraSourcePreview;
+import technology.xor.barcode.barcodereader.ui.camera.DetectorFactory;
 import technology.xor.barcode.barcodereader.ui.camera.GraphicOverlay;
+import technology.xor.barcode.barcodereader.ui.camera.SceneChangeGate;
+import technology.xor.barcode.barcodereader.ui.camera.SharpnessGate;
 
 /**
  * Activity for the multi-tracker app.  This app detects barcodes and displays the value with the
  * rear facing camera. During detection overlay graphics are drawn to indicate the position,
  * size, and ID of each barcode.
  */
-public final class BarcodeCaptureActivity extends AppCompatActivity implements BarcodeGraphicTracker.BarcodeDetectorListener {
+public final class BarcodeCaptureActivity extends AppCompatActivity implements BarcodeBatchProcessor.BarcodeBatchListener {
     private static final String TAG = "SWIFT-CAPTURE";
 
+    // Share of the time the detector may be busy, and how old a frame may get before it is no
+    // longer worth detecting on.
+    private static final float DETECTOR_DUTY_CYCLE = 0.75f;
+    private static final long FRAME_FRESHNESS_DEADLINE_MS = 250;
+
+    // Number of codes to capture before they are sent to the server
+    private static final int CODES_PER_SUBMISSION = 4;
+
+    // How many accepted codes are remembered, and for how long by default, to reject duplicates
+    private static final int DEDUPE_MAX_ENTRIES = 100000;
+    private static final int DEFAULT_DEDUPE_WINDOW_MINUTES = 60;
+
+    // Default flush policy for continuous mode
+    private static final int DEFAULT_BATCH_SIZE = 25;
+    private static final int DEFAULT_BATCH_MAX_AGE_SECONDS = 30;
+
+    // How long a connection opened at the first code of a set may wait for the upload
+    private static final int PREWARM_IDLE_TIMEOUT_SECONDS = 45;
+
+    // Default policy for packing scan sets into batch uploads
+    private static final int DEFAULT_BATCH_UPLOAD_SETS = 20;
+    private static final int DEFAULT_BATCH_UPLOAD_LINGER_SECONDS = 60;
+
     // intent request code to handle updating play services if needed.
     private static final int RC_HANDLE_GMS = 9001;
 
@@ -83,21 +113,78 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
     public static final String AutoFocus = "AutoFocus";
     public static final String UseFlash = "UseFlash";
     public static final String AutoCapture = "AutoCapture";
+    public static final String ScanWindow = "ScanWindow";
+    public static final String DetectionWorkers = "DetectionWorkers";
+    public static final String StaticScene = "StaticScene";
+    public static final String OverlaySurface = "OverlaySurface";
+    public static final String ScanRequestedAt = "ScanRequestedAt";
+    public static final String DedupeWindowMinutes = "DedupeWindowMinutes";
+    public static final String Continuous = "Continuous";
+    public static final String BatchSize = "BatchSize";
+    public static final String BatchMaxAgeSeconds = "BatchMaxAgeSeconds";
+    public static final String BatchUpload = "BatchUpload";
+    public static final String BatchUploadSets = "BatchUploadSets";
+    public static final String BatchUploadLingerSeconds = "BatchUploadLingerSeconds";
+    public static final String StreamUrl = "StreamUrl";
     public static final String BarcodeObject = "Barcode";
 
     private CameraSource mCameraSource;
     private CameraSourcePreview mPreview;
+
+    // When the activity was launched or last resumed, until the camera preview is up. 0 while the
+    // preview is running.
+    private long mPreviewRequestedMillis;
+
+    // When the user asked to scan (SystemClock.elapsedRealtime), until the first code is decoded.
+    // 0 if unknown or already reported.
+    private long mScanRequestedMillis;
     private GraphicOverlay<BarcodeGraphic> mGraphicOverlay;
 
     private boolean autoFocus, useFlash, autoCapture;
 
+    // Fraction of the preview width and height, centered, to run detection on. 0 uses the
+    // whole frame.
+    private float scanWindow;
+
+    // Number of detectors to run in parallel
+    private int detectionWorkers;
+
+    // Whether the camera is fixed-mount, looking at a mostly unchanging scene
+    private boolean staticScene;
+
+    // Whether to keep scanning and send codes in batches, instead of finishing after four codes
+    private boolean continuous;
+    private ScanBatcher mBatcher;
+    private ScanRateMeter mRateMeter;
+    private TextView mScanRate;
+
     private String URL = null;
     private String codeName = null;
 
-    private int counter = 0;
+    // Codes accepted so far, kept across restarts so that the same code isn't sent twice
+    private ScanDedupeIndex mDedupeIndex;
+
+    // Every accepted code, until it has been sent
+    private ScanJournal mJournal;
+
+    // Sends the codes in the background, retrying until they are accepted. Null if uploads
+    // couldn't be set up; the codes then wait in the journal.
+    private UploadScheduler mScheduler;
+
+    // Packs the sets of codes into batch uploads, if the server takes them. Null to send every
+    // set on its own.
+    private UploadCoalescer mCoalescer;
+
+    // Streams every code as soon as it is accepted, if a WebSocket URL was given. Null to send
+    // codes with their set only.
+    private ScanChannel mChannel;
+
+    // Codes captured for the next submission
+    private ArrayList<ScanJournal.Scan> mCaptured = new ArrayList<>();
 
-    // Location to store QRcode values. Prevent duplicate entries
-    private Map<String, String> map = new HashMap<String, String>();
+    // Released once the journal, the uploads and the dedupe index are open, and the codes not
+    // sent yet have been picked up. Detected codes wait for it.
+    private final CountDownLatch mStorageReady = new CountDownLatch(1);
 
     /**
      * Initializes the UI and creates the detector pipeline.
@@ -105,11 +192,34 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
     @Override
     public void onCreate(Bundle bundle) {
         super.onCreate(bundle);
+        mPreviewRequestedMillis = SystemClock.elapsedRealtime();
         setContentView(R.layout.barcode_capture);
 
         mPreview = findViewById(R.id.preview);
         mGraphicOverlay = findViewById(R.id.graphicOverlay);
 
+        // Render the barcode graphics from their own thread and surface, off the UI thread
+        if (getIntent().getBooleanExtra(OverlaySurface, false)) {
+            SurfaceView overlaySurface = new SurfaceView(this);
+            mPreview.addView(overlaySurface);
+            mGraphicOverlay.setRenderSurface(overlaySurface);
+        }
+        mPreview.setStartCallback(new CameraSource.StartCallback() {
+            @Override
+            public void onStarted() {
+                Log.i(TAG, "Camera preview up " + (SystemClock.elapsedRealtime()
+                        - mPreviewRequestedMillis) + " ms after launch or resume");
+                mPreviewRequestedMillis = 0;
+            }
+
+            @Override
+            public void onStartFailed(Exception e) {
+                Log.e(TAG, "Unable to start camera source.", e);
+                mPreview.release();
+                mCameraSource = null;
+            }
+        });
+
         // Load the shared preferences and extract url and code name
         SharedPreferences sharedPref = this.getSharedPreferences(
                 this.getString(R.string.preference_file_key), Context.MODE_PRIVATE);
@@ -133,6 +243,15 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
         autoFocus = getIntent().getBooleanExtra(AutoFocus, true);
         useFlash = getIntent().getBooleanExtra(UseFlash, false);
         autoCapture = getIntent().getBooleanExtra(AutoCapture, false);
+        scanWindow = getIntent().getFloatExtra(ScanWindow, 0.0f);
+        detectionWorkers = getIntent().getIntExtra(DetectionWorkers, 1);
+        staticScene = getIntent().getBooleanExtra(StaticScene, false);
+        continuous = getIntent().getBooleanExtra(Continuous, false);
+        mScanRequestedMillis = getIntent().getLongExtra(ScanRequestedAt, 0);
+        int dedupeWindowMinutes = getIntent().getIntExtra(DedupeWindowMinutes,
+                DEFAULT_DEDUPE_WINDOW_MINUTES);
+
+        openStorage(TimeUnit.MINUTES.toMillis(dedupeWindowMinutes));
 
         // Check for the camera permission before accessing the camera.  If the
         // permission is not granted yet, request permission.
@@ -142,7 +261,189 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
         else
             requestCameraPermission();
 
-        MakeSnakckbar(getString(R.string.barcode_instruct), 1);
+        if (continuous) {
+            setUpContinuousMode();
+            MakeSnakckbar(getString(R.string.barcode_instruct_continuous), 1);
+        } else {
+            MakeSnakckbar(getString(R.string.barcode_instruct), 1);
+        }
+    }
+
+    /**
+     * Opens the scan journal, the uploads and the dedupe index on a background thread, since
+     * replaying their files may take a while, then picks up the codes not sent yet on the UI
+     * thread.
+     */
+    private void openStorage(final long dedupeWindowMillis) {
+        final boolean batchUpload = getIntent().getBooleanExtra(BatchUpload, false);
+        final String streamUrl = getIntent().getStringExtra(StreamUrl);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mJournal = ScanJournal.getInstance(BarcodeCaptureActivity.this);
+                    try {
+                        mScheduler = UploadScheduler.getInstance(BarcodeCaptureActivity.this);
+                    } catch (GeneralSecurityException e) {
+                        Log.e(TAG, "Unable to set up uploads, codes are kept until the next time",
+                                e);
+                    }
+                    if (mScheduler != null && batchUpload) {
+                        setUpBatchUpload();
+                    }
+                    if (mScheduler != null && streamUrl != null) {
+                        setUpScanChannel(streamUrl);
+                    }
+                    mDedupeIndex = ScanDedupeIndex.getInstance(BarcodeCaptureActivity.this,
+                            dedupeWindowMillis, DEDUPE_MAX_ENTRIES);
+                } finally {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                // A rotation already handed the codes to the next activity
+                                if (mJournal != null && !isDestroyed()) {
+                                    resumePendingScans();
+                                }
+                            } finally {
+                                mStorageReady.countDown();
+                            }
+                        }
+                    });
+                }
+            }
+        }, "ScanStorageOpen").start();
+    }
+
+    /**
+     * Picks up the codes which were accepted but not sent yet, because of a rotation, a failed
+     * upload or the process being killed.
+     */
+    private void resumePendingScans() {
+        List<ScanJournal.Scan> pending = mJournal.getPending();
+        if (pending.isEmpty()) {
+            return;
+        }
+        Log.i(TAG, "Resuming " + pending.size() + " codes not sent yet");
+
+        // Codes scanned for another server or team are sent there, and never mixed into this
+        // user's sets
+        List<ScanJournal.Scan> mine = new ArrayList<>();
+        Map<String, List<ScanJournal.Scan>> others = new LinkedHashMap<>();
+        for (ScanJournal.Scan scan : pending) {
+            if ((scan.getUrl() == null || scan.getUrl().equals(URL))
+                    && (scan.getTeam() == null || scan.getTeam().equals(codeName))) {
+                mine.add(scan);
+                continue;
+            }
+            String destination = scan.getUrl() + " " + scan.getTeam();
+            List<ScanJournal.Scan> scans = others.get(destination);
+            if (scans == null) {
+                scans = new ArrayList<>();
+                others.put(destination, scans);
+            }
+            scans.add(scan);
+        }
+        for (List<ScanJournal.Scan> scans : others.values()) {
+            resumeOtherScans(scans);
+        }
+
+        if (continuous) {
+            for (ScanJournal.Scan scan : mine) {
+                mBatcher.add(scan);
+            }
+        } else {
+            // Whole submissions are sent right away, as sets of the size the server expects, and
+            // the rest are the codes captured so far
+            int sent = mine.size() - mine.size() % CODES_PER_SUBMISSION;
+            for (int i = 0; i < sent; i += CODES_PER_SUBMISSION) {
+                sendBatch(new ArrayList<>(mine.subList(i, i + CODES_PER_SUBMISSION)));
+            }
+            mCaptured.addAll(mine.subList(sent, mine.size()));
+        }
+    }
+
+    /**
+     * Sends codes left over from a session for another server or team to where they were
+     * scanned for. In four-code mode only whole sets are sent; the rest stay in the journal until
+     * that team scans again.
+     */
+    private void resumeOtherScans(List<ScanJournal.Scan> scans) {
+        if (mScheduler == null) {
+            return;
+        }
+        String url = scans.get(0).getUrl();
+        String team = scans.get(0).getTeam();
+        if (continuous) {
+            mScheduler.submit(UploadJob.forSet(url, team, scans));
+            return;
+        }
+        int sent = scans.size() - scans.size() % CODES_PER_SUBMISSION;
+        for (int i = 0; i < sent; i += CODES_PER_SUBMISSION) {
+            mScheduler.submit(UploadJob.forSet(url, team,
+                    new ArrayList<>(scans.subList(i, i + CODES_PER_SUBMISSION))));
+        }
+        if (sent < scans.size()) {
+            Log.i(TAG, (scans.size() - sent) + " codes of team " + team + " wait for the rest of"
+                    + " their set");
+        }
+    }
+
+    /**
+     * Sets up packing of the sets of codes into batch uploads.
+     */
+    private void setUpBatchUpload() {
+        int sets = getIntent().getIntExtra(BatchUploadSets, DEFAULT_BATCH_UPLOAD_SETS);
+        int lingerSeconds = getIntent().getIntExtra(BatchUploadLingerSeconds,
+                DEFAULT_BATCH_UPLOAD_LINGER_SECONDS);
+        try {
+            mCoalescer = UploadCoalescer.getInstance(this);
+            mCoalescer.setPolicy(sets, TimeUnit.SECONDS.toMillis(lingerSeconds));
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Unable to set up batch uploads, sending sets one by one", e);
+        }
+    }
+
+    /**
+     * Sets up streaming of the codes over a WebSocket channel to the given URL. Codes the channel
+     * can't take while it is down are sent with their set as usual.
+     */
+    private void setUpScanChannel(String streamUrl) {
+        try {
+            mChannel = ScanChannel.getInstance(this, streamUrl, URL);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            Log.e(TAG, "Unable to set up the scan channel, sending codes with their set", e);
+        }
+    }
+
+    /**
+     * Sets up batching of the scanned codes, the send button and the scan rate display.
+     */
+    private void setUpContinuousMode() {
+        int batchSize = getIntent().getIntExtra(BatchSize, DEFAULT_BATCH_SIZE);
+        int batchMaxAgeSeconds = getIntent().getIntExtra(BatchMaxAgeSeconds,
+                DEFAULT_BATCH_MAX_AGE_SECONDS);
+        mBatcher = new ScanBatcher(batchSize, TimeUnit.SECONDS.toMillis(batchMaxAgeSeconds),
+                new Handler(Looper.getMainLooper()), new ScanBatcher.BatchListener() {
+                    @Override
+                    public void onBatchReady(List<ScanJournal.Scan> scans, int reason) {
+                        sendBatch(scans);
+                    }
+                });
+        mRateMeter = new ScanRateMeter();
+
+        mScanRate = findViewById(R.id.scan_rate);
+        mScanRate.setVisibility(View.VISIBLE);
+        updateScanRate();
+
+        Button sendBatch = findViewById(R.id.send_batch);
+        sendBatch.setVisibility(View.VISIBLE);
+        sendBatch.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                mBatcher.flush();
+            }
+        });
     }
 
     @Override
@@ -185,12 +486,17 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
 
     @SuppressLint("InlinedApi")
     private void createCameraSource() {
-        Context context = getApplicationContext();
+        final Context context = getApplicationContext();
+
+        // Normally already loaded and warmed up by the main screen
+        Detector<Barcode> barcodeDetector = BarcodeDetectorHolder.getInstance(context).lease();
+        BarcodeBatchProcessor barcodeProcessor = new BarcodeBatchProcessor(mGraphicOverlay,
+                autoCapture || continuous ? this : null);
 
-        BarcodeDetector barcodeDetector = new BarcodeDetector.Builder(context).build();
-        BarcodeTrackerFactory barcodeFactory = new BarcodeTrackerFactory(mGraphicOverlay, autoCapture?this:null);
-        barcodeDetector.setProcessor(
-                new MultiProcessor.Builder<>(barcodeFactory).build());
+        // With several detection workers the camera source feeds the processor itself, in frame
+        // order, so it must not also be attached to the detector.
+        if (detectionWorkers <= 1)
+            barcodeDetector.setProcessor(barcodeProcessor);
 
         if (!barcodeDetector.isOperational()) {
 
@@ -213,7 +519,29 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
         CameraSource.Builder builder = new CameraSource.Builder(getApplicationContext(), barcodeDetector)
                 .setFacing(CameraSource.CAMERA_FACING_BACK)
                 .setRequestedPreviewSize(metrics.heightPixels, metrics.widthPixels)
-                .setRequestedFps(30.0f);
+                .setRequestedFps(30.0f)
+                .setDetectionGovernor(DETECTOR_DUTY_CYCLE, FRAME_FRESHNESS_DEADLINE_MS)
+                .setSharpnessGate(new SharpnessGate());
+
+        // Restrict detection to a centered window for fixed-distance scanning
+        if (scanWindow > 0.0f && scanWindow < 1.0f) {
+            float margin = (1.0f - scanWindow) / 2.0f;
+            builder = builder.setScanWindow(margin, margin, 1.0f - margin, 1.0f - margin);
+        }
+
+        // Don't keep detecting on an empty counter
+        if (staticScene) {
+            builder = builder.setSceneChangeGate(new SceneChangeGate());
+        }
+
+        if (detectionWorkers > 1) {
+            builder = builder.setDetectionWorkers(detectionWorkers, new DetectorFactory<Barcode>() {
+                @Override
+                public Detector<Barcode> create() {
+                    return new BarcodeDetector.Builder(context).build();
+                }
+            }, barcodeProcessor);
+        }
 
         // make sure that auto focus is an available option
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
@@ -231,6 +559,9 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
     @Override
     protected void onResume() {
         super.onResume();
+        if (mPreviewRequestedMillis == 0) {
+            mPreviewRequestedMillis = SystemClock.elapsedRealtime();
+        }
         startCameraSource();
     }
 
@@ -239,10 +570,20 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
      */
     @Override
     protected void onPause() {
+        long pauseStartMillis = SystemClock.elapsedRealtime();
         super.onPause();
         if (mPreview != null) {
             mPreview.stop();
         }
+        if (mCameraSource != null) {
+            Log.d(TAG, "Frame metrics: " + mCameraSource.getFrameMetrics());
+        }
+
+        // Don't leave codes behind; the dedupe index wouldn't accept them again
+        if (mBatcher != null) {
+            mBatcher.flush();
+        }
+        Log.d(TAG, "onPause took " + (SystemClock.elapsedRealtime() - pauseStartMillis) + " ms");
     }
 
     @Override
@@ -295,51 +636,153 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
             dlg.show();
         }
 
+        // Failures are reported to the start callback set up in onCreate
         if (mCameraSource != null) {
-            try {
-                mPreview.start(mCameraSource, mGraphicOverlay);
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to start camera source.", e);
-                mCameraSource.release();
-                mCameraSource = null;
-            }
+            mPreview.start(mCameraSource, mGraphicOverlay);
         }
     }
 
     @Override
-    public void onObjectDetected(Barcode data) {
+    public void onObjectsDetected(List<Barcode> barcodes) {
+        if (mScanRequestedMillis != 0) {
+            Log.i(TAG, "First decode " + (SystemClock.elapsedRealtime() - mScanRequestedMillis)
+                    + " ms after scan was requested");
+            mScanRequestedMillis = 0;
+        }
+
+        try {
+            mStorageReady.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        // Record every new code of the frame first, so that they share a single journal sync.
+        // Once the last code of a set has been captured the activity is on its way out, so no
+        // more are taken.
+        long nowMillis = System.currentTimeMillis();
+        int wanted = continuous ? barcodes.size() : CODES_PER_SUBMISSION - mCaptured.size();
+        List<Barcode> accepted = new ArrayList<>();
+        List<Long> acceptedKeys = new ArrayList<>();
+        List<ScanJournal.Scan> scans = new ArrayList<>();
+        boolean duplicates = false;
+        for (Barcode data : barcodes) {
+            if (accepted.size() >= wanted) {
+                break;
+            }
+            long key = ScanDedupeIndex.keyOf(data);
+            if (acceptedKeys.contains(key) || mDedupeIndex.isDuplicate(data, nowMillis)) {
+                duplicates = true;
+                continue;
+            }
+            accepted.add(data);
+            acceptedKeys.add(key);
+            scans.add(mJournal.recordScan(URL, codeName, data.displayValue, nowMillis));
+        }
 
         // If the QRcode was already scanned, then show a toast message
-        if (map.containsValue(data.displayValue)) {
-            // If QR already scanned, move on
+        if (duplicates) {
             MakeSnakckbar(getString(R.string.barcode_exists), 0);
+        }
+        if (scans.isEmpty()) {
+            return;
+        }
 
-        } else {
-            // Set the number of QR codes to read. On the last one, send the message to the URL
-            if (counter == 0) {
-                map.put("1", data.displayValue);
-            } else if (counter == 1) {
-                map.put("2", data.displayValue);
-            } else if (counter == 2) {
-                map.put("3", data.displayValue);
-            } else if (counter == 3) {
-                map.put("4", data.displayValue);
-
-                // Send a POST request to the server. Increment the counter for every qrcode you have
-                // in the desktop application.
-                new SendPostRequest().execute(map.get("1"), map.get("2"), map.get("3"), map.get("4"), URL, codeName);
-
-                // Return to the main UI with a success code
-                Intent returnMainUi = new Intent();
-                returnMainUi.putExtra(BarcodeObject, data);
-                setResult(CommonStatusCodes.SUCCESS, returnMainUi);
-                finish();
+        // The scans have to be on storage before the dedupe index remembers the codes, or a crash
+        // in between would lose the scans and still reject the codes when scanned again.
+        try {
+            mJournal.sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Scan journal not written, the scans are only kept in memory.", e);
+        }
+        for (int i = 0; i < scans.size(); i++) {
+            mDedupeIndex.accept(accepted.get(i), nowMillis);
+            onScanAccepted(accepted.get(i), scans.get(i));
+        }
+    }
+
+    private void onScanAccepted(Barcode data, ScanJournal.Scan scan) {
+        if (mChannel != null) {
+            mChannel.offer(codeName, scan);
+        }
+
+        // In continuous mode, keep scanning and leave sending to the batcher
+        if (continuous) {
+            mRateMeter.record(SystemClock.elapsedRealtime());
+            mBatcher.add(scan);
+            if (mBatcher.getPendingCount() == 1) {
+                prewarmUpload();
             }
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    updateScanRate();
+                }
+            });
+            return;
+        }
 
-            // Increment counter and display results to the user
-            counter=counter+1;
-            MakeSnakckbar("QR" + counter + " Captured!", 0);
+        mCaptured.add(scan);
+        if (mCaptured.size() == 1) {
+            prewarmUpload();
         }
+
+        // On the last QR code to read, send the message to the URL
+        if (mCaptured.size() == CODES_PER_SUBMISSION) {
+            // Send a POST request to the server. Increment the number of codes for every qrcode
+            // you have in the desktop application.
+            sendBatch(mCaptured);
+
+            // Return to the main UI with a success code
+            Intent returnMainUi = new Intent();
+            returnMainUi.putExtra(BarcodeObject, data);
+            setResult(CommonStatusCodes.SUCCESS, returnMainUi);
+            finish();
+        }
+
+        // Display results to the user
+        MakeSnakckbar("QR" + mCaptured.size() + " Captured!", 0);
+    }
+
+    /**
+     * Opens a connection to the server while the rest of the set is being captured, so that the
+     * upload doesn't wait for connection setup.  Not done when sets wait for a batch upload, or
+     * when the codes are streamed.
+     */
+    private void prewarmUpload() {
+        if (mScheduler != null && mCoalescer == null
+                && (mChannel == null || !mChannel.isOpen())) {
+            mScheduler.prewarm(URL, TimeUnit.SECONDS.toMillis(PREWARM_IDLE_TIMEOUT_SECONDS));
+        }
+    }
+
+    private void sendBatch(List<ScanJournal.Scan> scans) {
+        // Codes taken by the scan channel are on their way already, and are posted by the channel
+        // as the rest of this set if it drops before they are acknowledged
+        List<ScanJournal.Scan> unsent = mChannel != null ? mChannel.closeSet(scans) : scans;
+        if (unsent.isEmpty()) {
+            Log.d(TAG, "All " + scans.size() + " codes were streamed");
+        } else if (mCoalescer != null) {
+            mCoalescer.add(URL, codeName, unsent);
+        } else if (mScheduler != null) {
+            mScheduler.submit(UploadJob.forSet(URL, codeName, unsent));
+        }
+        if (!continuous) {
+            return;
+        }
+        MakeSnakckbar(getString(R.string.batch_sent, scans.size()), 0);
+
+        long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, "Sent batch of " + scans.size() + " codes, " + mRateMeter.getTotal()
+                + " scanned in total, " + mRateMeter.getLastMinuteCount(now)
+                + " in the last minute, " + mRateMeter.getAveragePerMinute(now)
+                + " per minute on average");
+    }
+
+    private void updateScanRate() {
+        long now = SystemClock.elapsedRealtime();
+        mScanRate.setText(getString(R.string.scans_per_minute,
+                mRateMeter.getLastMinuteCount(now), mRateMeter.getAveragePerMinute(now)));
     }
 
     private void MakeSnakckbar(String msg, int length) {
@@ -353,89 +796,4 @@ public final class BarcodeCaptureActivity extends AppCompatActivity implements B
                     .show();
         }
     }
-
-    private static class SendPostRequest extends AsyncTask<String, Void, String> {
-
-        protected void onPreExecute(){}
-
-        protected String doInBackground(String... params) {
-            // QR code values
-            String data1 = params[0];
-            String data2 = params[1];
-            String data3 = params[2];
-            String data4 = params[3];
-
-            // Routing values
-            String domain = params[4];
-            String team = params[5];
-
-            try {
-                // PREVENT SSLv3 and force TLS1.2
-                SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
-                sslContext.init(null, null, null);
-                SSLSocketFactory NoSSLv3Factory = new NoSSLv3SocketFactory(sslContext.getSocketFactory());
-
-                // Create the URL
-                URL url = new URL(domain);
-
-                // Create a JSON object
-                JSONObject postDataParams = new JSONObject();
-                postDataParams.put("team", team);
-                postDataParams.put("1", data1);
-                postDataParams.put("2", data2);
-                postDataParams.put("3", data3);
-                postDataParams.put("4", data4);
-
-                // Make the HTTPS connection
-                HttpsURLConnection.setDefaultSSLSocketFactory(NoSSLv3Factory);
-                HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-                conn.setReadTimeout(15000 /* milliseconds */);
-                conn.setConnectTimeout(15000 /* milliseconds */);
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("Content-Type", "application/json");
-                conn.setRequestProperty("Accept","application/json");
-                conn.setDoInput(true);
-                conn.setDoOutput(true);
-
-                OutputStreamWriter os = new OutputStreamWriter(conn.getOutputStream());
-                os.write(postDataParams.toString());
-
-                os.flush();
-                os.close();
-
-                int responseCode=conn.getResponseCode();
-
-                if (responseCode == HttpsURLConnection.HTTP_OK) {
-                    Log.d(TAG, "RECEIVED OK FROM SERVER");
-
-                    BufferedReader in=new BufferedReader(new
-                            InputStreamReader(
-                            conn.getInputStream()));
-
-                    StringBuffer sb = new StringBuffer("");
-                    String line="";
-
-                    while((line = in.readLine()) != null) {
-                        sb.append(line);
-                        break;
-                    }
-
-                    in.close();
-                    return sb.toString();
-
-                } else {
-                    return "false : " + responseCode;
-                }
-            }
-            catch(Exception e){
-                return "Exception: " + e.getMessage();
-            }
-
-        }
-
-        @Override
-        protected void onPostExecute(String result) {
-            // Do nothing
-        }
-    }
-}
\ No newline at end of file
+}
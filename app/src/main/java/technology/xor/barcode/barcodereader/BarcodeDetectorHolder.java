@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package technology.xor.barcode.barcodereader;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+import com.google.android.gms.vision.barcode.BarcodeDetector;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Holds one barcode detector for the whole process, so that its native library and models are
+ * loaded once rather than on every launch of the scanner.
+ * <p/>
+ * The detector is created and warmed up on a background thread, by running a blank frame through
+ * it, as soon as {@link #warmUp()} is called at app start.  Each scanning session then leases it
+ * with {@link #lease()}: the lease is a detector of its own, with its own processor, which hands
+ * the shared detector back when released instead of releasing it.  Only one session can hold the
+ * shared detector at a time; a session starting while the previous one is still winding down gets
+ * a detector of its own.
+ */
+public final class BarcodeDetectorHolder {
+    private static final String TAG = "BarcodeDetectorHolder";
+
+    // Size of the blank frame used to warm up the detector.
+    private static final int WARM_UP_WIDTH = 320;
+    private static final int WARM_UP_HEIGHT = 240;
+
+    private static BarcodeDetectorHolder sInstance;
+
+    private final Context mContext;
+
+    // Guarded by this
+    private FutureTask<BarcodeDetector> mDetector;
+    private boolean mLeased;
+
+    private BarcodeDetectorHolder(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized BarcodeDetectorHolder getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BarcodeDetectorHolder(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts creating and warming up the shared detector on a background thread, unless that has
+     * already been done.  Returns right away.
+     */
+    public synchronized void warmUp() {
+        if (mDetector != null) {
+            return;
+        }
+        mDetector = new FutureTask<>(new Callable<BarcodeDetector>() {
+            @Override
+            public BarcodeDetector call() {
+                long startMillis = SystemClock.elapsedRealtime();
+                BarcodeDetector detector = new BarcodeDetector.Builder(mContext).build();
+                detector.detect(blankFrame());
+                Log.i(TAG, "Detector warmed up in " + (SystemClock.elapsedRealtime() - startMillis)
+                        + " ms, operational: " + detector.isOperational());
+                return detector;
+            }
+        });
+        new Thread(mDetector, "DetectorWarmUp").start();
+    }
+
+    /**
+     * Returns a detector for one scanning session, waiting for the warm-up to finish if needed.
+     * Releasing the returned detector releases its processor and returns the shared detector to
+     * this holder.
+     */
+    public Detector<Barcode> lease() {
+        FutureTask<BarcodeDetector> detector;
+        synchronized (this) {
+            warmUp();
+            if (mLeased) {
+                Log.i(TAG, "Shared detector still in use, creating another one.");
+                return new BarcodeDetector.Builder(mContext).build();
+            }
+            mLeased = true;
+            detector = mDetector;
+        }
+
+        try {
+            return new LeasedDetector(detector.get());
+        } catch (ExecutionException | InterruptedException e) {
+            Log.e(TAG, "Failed to warm up detector, creating another one.", e);
+            synchronized (this) {
+                // Try again from scratch next time.
+                mDetector = null;
+                mLeased = false;
+            }
+            return new BarcodeDetector.Builder(mContext).build();
+        }
+    }
+
+    private synchronized void giveBack() {
+        mLeased = false;
+    }
+
+    private static Frame blankFrame() {
+        ByteBuffer data = ByteBuffer.allocate(WARM_UP_WIDTH * WARM_UP_HEIGHT * 3 / 2);
+        return new Frame.Builder()
+                .setImageData(data, WARM_UP_WIDTH, WARM_UP_HEIGHT, ImageFormat.NV21)
+                .build();
+    }
+
+    /**
+     * Detector of one session, delegating detection to the shared detector.  It keeps its own
+     * processor, so sessions never see each other's trackers.
+     */
+    private final class LeasedDetector extends Detector<Barcode> {
+        private final BarcodeDetector mShared;
+        private boolean mReleased;
+
+        LeasedDetector(BarcodeDetector shared) {
+            mShared = shared;
+        }
+
+        @Override
+        public SparseArray<Barcode> detect(Frame frame) {
+            return mShared.detect(frame);
+        }
+
+        @Override
+        public boolean isOperational() {
+            return mShared.isOperational();
+        }
+
+        @Override
+        public boolean setFocus(int id) {
+            return mShared.setFocus(id);
+        }
+
+        /**
+         * Releases this session's processor, and returns the shared detector to the holder.
+         */
+        @Override
+        public void release() {
+            super.release();
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+            }
+            giveBack();
+        }
+    }
+}
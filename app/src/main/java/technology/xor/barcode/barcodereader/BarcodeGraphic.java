@@ -18,6 +18,7 @@ package technology.xor.barcode.barcodereader;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Point;
 import android.graphics.RectF;
 
 import com.google.android.gms.vision.barcode.Barcode;
@@ -27,6 +28,9 @@ import technology.xor.barcode.barcodereader.ui.camera.GraphicOverlay;
 /**
  * Graphic instance for rendering barcode position, size, and ID within an associated graphic
  * overlay view.
+ * <p/>
+ * Drawing does not allocate, so that many graphics can be redrawn every frame without causing
+ * garbage collections.  Instances are meant to be reused through a {@link BarcodeGraphicPool}.
  */
 public class BarcodeGraphic extends GraphicOverlay.Graphic {
 
@@ -44,6 +48,10 @@ public class BarcodeGraphic extends GraphicOverlay.Graphic {
     private Paint mTextPaint;
     private volatile Barcode mBarcode;
 
+    // Only used while drawing: on the overlay's render thread if it has a render surface, on the
+    // UI thread otherwise.  Never both at once, as switching waits for a frame being rendered.
+    private final RectF mRect = new RectF();
+
     BarcodeGraphic(GraphicOverlay overlay) {
         super(overlay);
 
@@ -81,6 +89,22 @@ public class BarcodeGraphic extends GraphicOverlay.Graphic {
         postInvalidate();
     }
 
+    /**
+     * Updates the barcode instance without invalidating the overlay, for callers which update
+     * several graphics and invalidate the overlay once for all of them.
+     */
+    void setBarcode(Barcode barcode) {
+        mBarcode = barcode;
+    }
+
+    /**
+     * Clears the barcode and id, so that the graphic can be reused for another barcode.
+     */
+    void reset() {
+        mBarcode = null;
+        mId = 0;
+    }
+
     /**
      * Draws the barcode annotations for position, size, and raw value on the supplied canvas.
      */
@@ -91,8 +115,17 @@ public class BarcodeGraphic extends GraphicOverlay.Graphic {
             return;
         }
 
-        // Draws the bounding box around the barcode.
-        RectF rect = new RectF(barcode.getBoundingBox());
+        // Draws the bounding box around the barcode.  The box is computed from the corner points
+        // here, since getBoundingBox() allocates a new Rect on every call.
+        Point[] corners = barcode.cornerPoints;
+        if (corners == null || corners.length == 0) {
+            return;
+        }
+        RectF rect = mRect;
+        rect.set(corners[0].x, corners[0].y, corners[0].x, corners[0].y);
+        for (int i = 1; i < corners.length; i++) {
+            rect.union(corners[i].x, corners[i].y);
+        }
         rect.left = translateX(rect.left);
         rect.top = translateY(rect.top);
         rect.right = translateX(rect.right);
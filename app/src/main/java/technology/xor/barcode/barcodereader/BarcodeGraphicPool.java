@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package technology.xor.barcode.barcodereader;
+
+import java.util.ArrayDeque;
+
+import technology.xor.barcode.barcodereader.ui.camera.GraphicOverlay;
+
+/**
+ * Keeps barcode graphics, along with their paints, for reuse once the barcode they were showing is
+ * gone, so that barcodes coming and going don't keep allocating new graphics.  Normally only used
+ * from the detection thread, but the pool doesn't rely on that and is thread safe.
+ */
+class BarcodeGraphicPool {
+    /**
+     * Upper bound on the number of idle graphics kept around.
+     */
+    private static final int MAX_IDLE = 64;
+
+    private final GraphicOverlay<BarcodeGraphic> mOverlay;
+    private final ArrayDeque<BarcodeGraphic> mIdle = new ArrayDeque<>();
+
+    BarcodeGraphicPool(GraphicOverlay<BarcodeGraphic> overlay) {
+        mOverlay = overlay;
+    }
+
+    /**
+     * Returns an idle graphic for the overlay, or a new one if none is available.
+     */
+    synchronized BarcodeGraphic acquire() {
+        BarcodeGraphic graphic = mIdle.pollFirst();
+        if (graphic == null) {
+            graphic = new BarcodeGraphic(mOverlay);
+        }
+        return graphic;
+    }
+
+    /**
+     * Returns a graphic which has been removed from the overlay to the pool.
+     */
+    synchronized void release(BarcodeGraphic graphic) {
+        graphic.reset();
+        if (mIdle.size() < MAX_IDLE) {
+            mIdle.addFirst(graphic);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package technology.xor.barcode.barcodereader;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import technology.xor.barcode.upload.ScanJournal;
+
+/**
+ * Collects scanned codes into batches for sending.  A batch is handed to the listener once it
+ * holds the maximum number of codes, once its oldest code has waited for the maximum age, or when
+ * {@link #flush()} is called, whichever comes first.
+ * <p/>
+ * Codes may be added from any thread.  Batches are always delivered on the thread of the handler
+ * given to the constructor.
+ */
+final class ScanBatcher {
+    static final int FLUSH_SIZE = 0;
+    static final int FLUSH_AGE = 1;
+    static final int FLUSH_MANUAL = 2;
+
+    interface BatchListener {
+        /**
+         * Called with a batch of codes, in the order they were added.
+         *
+         * @param scans  the codes of the batch, never empty
+         * @param reason {@link #FLUSH_SIZE}, {@link #FLUSH_AGE} or {@link #FLUSH_MANUAL}
+         */
+        void onBatchReady(List<ScanJournal.Scan> scans, int reason);
+    }
+
+    private final int mMaxSize;
+    private final long mMaxAgeMillis;
+    private final Handler mHandler;
+    private final BatchListener mListener;
+
+    // Guarded by this
+    private ArrayList<ScanJournal.Scan> mPending = new ArrayList<>();
+
+    private final Runnable mAgeFlush = new Runnable() {
+        @Override
+        public void run() {
+            deliver(takePending(), FLUSH_AGE);
+        }
+    };
+
+    ScanBatcher(int maxSize, long maxAgeMillis, Handler handler, BatchListener listener) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size: " + maxSize);
+        }
+        if (maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("Invalid batch age: " + maxAgeMillis);
+        }
+        mMaxSize = maxSize;
+        mMaxAgeMillis = maxAgeMillis;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Adds a code to the current batch, delivering the batch if it is now full.
+     */
+    void add(ScanJournal.Scan scan) {
+        final List<ScanJournal.Scan> full;
+        synchronized (this) {
+            mPending.add(scan);
+            if (mPending.size() == 1) {
+                mHandler.postDelayed(mAgeFlush, mMaxAgeMillis);
+            }
+            if (mPending.size() < mMaxSize) {
+                return;
+            }
+            full = takePending();
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(full, FLUSH_SIZE);
+            }
+        });
+    }
+
+    /**
+     * Delivers the current batch right away, if it has any codes.  Must be called on the thread of
+     * the handler.
+     */
+    void flush() {
+        deliver(takePending(), FLUSH_MANUAL);
+    }
+
+    /**
+     * Returns the number of codes waiting in the current batch.
+     */
+    synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    private synchronized List<ScanJournal.Scan> takePending() {
+        mHandler.removeCallbacks(mAgeFlush);
+        List<ScanJournal.Scan> batch = mPending;
+        mPending = new ArrayList<>();
+        return batch;
+    }
+
+    private void deliver(List<ScanJournal.Scan> batch, int reason) {
+        if (!batch.isEmpty()) {
+            mListener.onBatchReady(batch, reason);
+        }
+    }
+}
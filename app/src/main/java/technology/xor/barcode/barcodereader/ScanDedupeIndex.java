@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package technology.xor.barcode.barcodereader;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which barcodes have already been accepted, so that the same code scanned again is
+ * recognized as a duplicate.
+ * <p/>
+ * Codes are identified by a 64 bit hash of their raw bytes and format, and looked up in a hash
+ * map, so lookups take constant time however long the session gets.  A code is remembered for a
+ * limited window, after which it is accepted again, and only the most recent codes are kept if
+ * there are more than the configured maximum.
+ * <p/>
+ * The index is persisted in a compact binary file, so that codes accepted before a restart are
+ * still known afterwards.  Each accepted code appends a 16 byte record to the file, which is
+ * rewritten without the expired and evicted records whenever it has grown to twice the size
+ * needed, whether while scanning or when it is opened.  Times are wall clock times, since they
+ * have to be compared across reboots.
+ * <p/>
+ * The app shares a single index, see {@link #getInstance}, so the file is only read once per
+ * process.
+ */
+final class ScanDedupeIndex {
+    private static final String TAG = "ScanDedupeIndex";
+    private static final String FILE_NAME = "scan_dedupe.bin";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x53444458;
+    private static final int VERSION = 1;
+
+    // Keeps small indexes from being compacted over and over.
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_BYTES = 16;
+
+    private static ScanDedupeIndex sInstance;
+
+    private final File mFile;
+
+    // Guarded by this.  Hash of each remembered code to the time it was accepted, oldest first.
+    private long mWindowMillis;
+    private final LinkedHashMap<Long, Long> mAccepted;
+    private DataOutputStream mOut;
+    private int mRecordsInFile;
+
+    private ScanDedupeIndex(File file, long windowMillis, final int maxEntries) {
+        mFile = file;
+        mWindowMillis = windowMillis;
+        mAccepted = new LinkedHashMap<Long, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Loads the index from the given file, or starts an empty one if the file doesn't exist or
+     * can't be read.
+     *
+     * @param windowMillis how long an accepted code is considered a duplicate
+     * @param maxEntries   the maximum number of codes remembered
+     */
+    static ScanDedupeIndex open(File file, long windowMillis, int maxEntries) {
+        checkWindow(windowMillis);
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Invalid maximum entries: " + maxEntries);
+        }
+        ScanDedupeIndex index = new ScanDedupeIndex(file, windowMillis, maxEntries);
+        synchronized (index) {
+            if (!index.load(System.currentTimeMillis()) || index.needsCompaction()) {
+                index.compact();
+            } else {
+                index.openForAppend();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the app's shared index, loading it from the app's files on first use.  Loading reads
+     * the whole file, so this shouldn't be called on the main thread.  The index stays open for
+     * the life of the process.
+     *
+     * @param windowMillis how long an accepted code is considered a duplicate, from now on
+     * @param maxEntries   the maximum number of codes remembered, only used when first loaded
+     */
+    static synchronized ScanDedupeIndex getInstance(
+            Context context, long windowMillis, int maxEntries) {
+        if (sInstance == null) {
+            sInstance = open(new File(context.getApplicationContext().getFilesDir(), FILE_NAME),
+                    windowMillis, maxEntries);
+        } else {
+            sInstance.setWindow(windowMillis);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Sets how long an accepted code is considered a duplicate.  Codes which expired under the
+     * previous window and were already dropped aren't brought back.
+     */
+    synchronized void setWindow(long windowMillis) {
+        checkWindow(windowMillis);
+        mWindowMillis = windowMillis;
+    }
+
+    private static void checkWindow(long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("Invalid dedupe window: " + windowMillis);
+        }
+    }
+
+    /**
+     * Returns whether the same code was already accepted within the window.  Nothing is recorded.
+     */
+    synchronized boolean isDuplicate(Barcode barcode, long nowMillis) {
+        Long acceptedAt = mAccepted.get(keyOf(barcode));
+        return acceptedAt != null && nowMillis - acceptedAt < mWindowMillis;
+    }
+
+    /**
+     * Records the barcode as accepted, unless the same code was already accepted within the
+     * window.
+     *
+     * @return true if the barcode is new and was recorded, false if it is a duplicate
+     */
+    synchronized boolean accept(Barcode barcode, long nowMillis) {
+        long key = keyOf(barcode);
+        Long acceptedAt = mAccepted.get(key);
+        if (acceptedAt != null && nowMillis - acceptedAt < mWindowMillis) {
+            return false;
+        }
+
+        // Re-inserted so that it moves to the back of the eviction order.
+        mAccepted.remove(key);
+        mAccepted.put(key, nowMillis);
+        append(key, nowMillis);
+        return true;
+    }
+
+    /**
+     * Returns the number of codes currently remembered, including any which have expired but not
+     * been dropped yet.
+     */
+    synchronized int size() {
+        return mAccepted.size();
+    }
+
+    /**
+     * Closes the index file.  The index shouldn't be used afterwards.
+     */
+    synchronized void close() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the dedupe index.", e);
+            }
+            mOut = null;
+        }
+    }
+
+    /**
+     * Returns the key identifying a barcode: a hash of its raw bytes, or of its raw value if the
+     * raw bytes aren't available, combined with its format.
+     */
+    static long keyOf(Barcode barcode) {
+        byte[] bytes = barcode.rawBytes;
+        if (bytes == null) {
+            bytes = barcode.rawValue != null ? barcode.rawValue.getBytes(UTF_8) : new byte[0];
+        }
+
+        // FNV-1a over the bytes and the format, followed by a final mix so that codes differing
+        // only in their last bytes still differ in all bits.
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash ^= (barcode.format >>> shift) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Reads the codes still within the window from the file.
+     *
+     * @return true if the file holds whole records only, so that more can be appended to it
+     */
+    private boolean load(long nowMillis) {
+        if (!mFile.exists()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    Log.w(TAG, "Discarding dedupe index in an unknown format.");
+                    return false;
+                }
+                while (true) {
+                    long key;
+                    long acceptedAt;
+                    try {
+                        key = in.readLong();
+                        acceptedAt = in.readLong();
+                    } catch (EOFException e) {
+                        // End of the file, or a record cut short by a crash while appending.
+                        break;
+                    }
+                    mRecordsInFile++;
+                    if (nowMillis - acceptedAt < mWindowMillis) {
+                        mAccepted.remove(key);
+                        mAccepted.put(key, acceptedAt);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the dedupe index, starting from the codes read so far.", e);
+            return false;
+        }
+        return mFile.length() == HEADER_BYTES + (long) RECORD_BYTES * mRecordsInFile;
+    }
+
+    private boolean needsCompaction() {
+        return mRecordsInFile > 2 * Math.max(mAccepted.size(), MIN_COMPACT_RECORDS);
+    }
+
+    private void openForAppend() {
+        try {
+            mOut = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(mFile, true)));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open the dedupe index, duplicates won't survive a restart.", e);
+        }
+    }
+
+    private void append(long key, long acceptedAt) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.writeLong(key);
+            mOut.writeLong(acceptedAt);
+            // Handed to the OS right away, so that the record survives the process being killed.
+            mOut.flush();
+            mRecordsInFile++;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append to the dedupe index.", e);
+            close();
+            return;
+        }
+
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the file with just the codes still remembered, and reopens it for appending.
+     */
+    private void compact() {
+        close();
+        long nowMillis = System.currentTimeMillis();
+        Iterator<Long> acceptedTimes = mAccepted.values().iterator();
+        while (acceptedTimes.hasNext()) {
+            if (nowMillis - acceptedTimes.next() >= mWindowMillis) {
+                acceptedTimes.remove();
+            }
+        }
+
+        // Write to a temporary file first, so a crash halfway leaves the old index intact.
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream file = new FileOutputStream(temp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (Map.Entry<Long, Long> entry : mAccepted.entrySet()) {
+                    out.writeLong(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+                // On disk before the rename, or a crash could leave the index renamed but empty.
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Could not rename " + temp + " to " + mFile);
+            }
+            mRecordsInFile = mAccepted.size();
+            mOut = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(mFile, true)));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save the dedupe index, duplicates won't survive a restart.", e);
+        }
+    }
+}
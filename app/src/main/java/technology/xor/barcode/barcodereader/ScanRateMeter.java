@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package technology.xor.barcode.barcodereader;
+
+import java.util.ArrayDeque;
+
+/**
+ * Measures how many codes are scanned per minute, both over the last minute and on average since
+ * the first scan.  Times are expected on a monotonic clock, such as
+ * {@link android.os.SystemClock#elapsedRealtime()}.
+ */
+final class ScanRateMeter {
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    // Guarded by this.  Times of the scans in the last minute, oldest first.
+    private final ArrayDeque<Long> mRecent = new ArrayDeque<>();
+    private long mFirstScanMillis = -1;
+    private long mTotal;
+
+    /**
+     * Records a scan made at the given time.
+     */
+    synchronized void record(long nowMillis) {
+        if (mFirstScanMillis < 0) {
+            mFirstScanMillis = nowMillis;
+        }
+        mTotal++;
+        mRecent.addLast(nowMillis);
+        trim(nowMillis);
+    }
+
+    /**
+     * Returns the number of scans made in the minute up to the given time.
+     */
+    synchronized int getLastMinuteCount(long nowMillis) {
+        trim(nowMillis);
+        return mRecent.size();
+    }
+
+    /**
+     * Returns the average number of scans per minute from the first scan up to the given time.
+     * Until a full minute has passed, this is the number of scans so far.
+     */
+    synchronized float getAveragePerMinute(long nowMillis) {
+        if (mFirstScanMillis < 0) {
+            return 0;
+        }
+        long elapsed = Math.max(nowMillis - mFirstScanMillis, MINUTE_MILLIS);
+        return mTotal * (float) MINUTE_MILLIS / elapsed;
+    }
+
+    /**
+     * Returns the total number of scans recorded.
+     */
+    synchronized long getTotal() {
+        return mTotal;
+    }
+
+    private void trim(long nowMillis) {
+        while (!mRecent.isEmpty() && nowMillis - mRecent.peekFirst() >= MINUTE_MILLIS) {
+            mRecent.removeFirst();
+        }
+    }
+}
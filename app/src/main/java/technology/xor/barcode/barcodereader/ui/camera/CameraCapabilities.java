@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.hardware.Camera;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What one camera supports, as far as configuring it for scanning goes: its mounting, preview and
+ * picture sizes, frame rate ranges, focus and flash modes and zoom.
+ * <p/>
+ * Reading these from the camera means a round trip to the camera service and parsing its
+ * flattened parameter string, and none of it changes for a given camera and system build.  So
+ * they are read once, persisted by {@link CameraCapabilitiesCache}, and the camera is configured
+ * from the cached copy afterwards.
+ */
+@SuppressWarnings("deprecation")
+final class CameraCapabilities {
+    @SerializedName("camera_id")
+    private int mCameraId;
+
+    @SerializedName("facing")
+    private int mFacing;
+
+    @SerializedName("orientation")
+    private int mOrientation;
+
+    // Sizes as {width, height}
+    @SerializedName("preview_sizes")
+    private List<int[]> mPreviewSizes;
+
+    @SerializedName("picture_sizes")
+    private List<int[]> mPictureSizes;
+
+    // Ranges as {min, max}, in frames per second times 1000
+    @SerializedName("preview_fps_ranges")
+    private List<int[]> mPreviewFpsRanges;
+
+    @SerializedName("focus_modes")
+    private List<String> mFocusModes;
+
+    @SerializedName("flash_modes")
+    private List<String> mFlashModes;
+
+    @SerializedName("zoom_supported")
+    private boolean mZoomSupported;
+
+    @SerializedName("max_zoom")
+    private int mMaxZoom;
+
+    @SerializedName("zoom_ratios")
+    private List<Integer> mZoomRatios;
+
+    /**
+     * Reads the capabilities of an opened camera.
+     */
+    static CameraCapabilities read(int cameraId, Camera.CameraInfo info,
+                                   Camera.Parameters parameters) {
+        CameraCapabilities capabilities = new CameraCapabilities();
+        capabilities.mCameraId = cameraId;
+        capabilities.mFacing = info.facing;
+        capabilities.mOrientation = info.orientation;
+        capabilities.mPreviewSizes = toArrays(parameters.getSupportedPreviewSizes());
+        capabilities.mPictureSizes = toArrays(parameters.getSupportedPictureSizes());
+        capabilities.mPreviewFpsRanges = nonNull(parameters.getSupportedPreviewFpsRange());
+        capabilities.mFocusModes = nonNull(parameters.getSupportedFocusModes());
+        // Null if the camera has no flash at all.
+        capabilities.mFlashModes = nonNull(parameters.getSupportedFlashModes());
+        capabilities.mZoomSupported = parameters.isZoomSupported();
+        if (capabilities.mZoomSupported) {
+            capabilities.mMaxZoom = parameters.getMaxZoom();
+            capabilities.mZoomRatios = nonNull(parameters.getZoomRatios());
+        } else {
+            capabilities.mZoomRatios = Collections.emptyList();
+        }
+        return capabilities;
+    }
+
+    /**
+     * Returns whether a copy loaded from storage is complete, i.e. not truncated or written by an
+     * older version which didn't store everything.
+     */
+    boolean isComplete() {
+        return mPreviewSizes != null && mPictureSizes != null && mPreviewFpsRanges != null
+                && mFocusModes != null && mFlashModes != null && mZoomRatios != null;
+    }
+
+    int getCameraId() {
+        return mCameraId;
+    }
+
+    /**
+     * Returns the direction the camera faces, see {@link Camera.CameraInfo#facing}.
+     */
+    int getFacing() {
+        return mFacing;
+    }
+
+    /**
+     * Returns the angle the camera image needs to be rotated by to be upright in the device's
+     * natural orientation, see {@link Camera.CameraInfo#orientation}.
+     */
+    int getOrientation() {
+        return mOrientation;
+    }
+
+    List<int[]> getPreviewSizes() {
+        return mPreviewSizes;
+    }
+
+    List<int[]> getPictureSizes() {
+        return mPictureSizes;
+    }
+
+    List<int[]> getPreviewFpsRanges() {
+        return mPreviewFpsRanges;
+    }
+
+    boolean supportsFocusMode(String mode) {
+        return mFocusModes.contains(mode);
+    }
+
+    boolean supportsFlashMode(String mode) {
+        return mFlashModes.contains(mode);
+    }
+
+    boolean isZoomSupported() {
+        return mZoomSupported;
+    }
+
+    int getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    private static List<int[]> toArrays(List<Camera.Size> sizes) {
+        List<int[]> arrays = new ArrayList<>();
+        if (sizes != null) {
+            for (Camera.Size size : sizes) {
+                arrays.add(new int[]{size.width, size.height});
+            }
+        }
+        return arrays;
+    }
+
+    private static <T> List<T> nonNull(List<T> list) {
+        return (list != null) ? list : Collections.<T>emptyList();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide cache of {@link CameraCapabilities}, persisted as JSON in the app's files
+ * directory so that it survives process restarts.
+ * <p/>
+ * The cache is tied to the device's build fingerprint: a system update may well change what the
+ * camera driver reports, so the whole cache is dropped when the fingerprint changes.  Within a
+ * build, entries are keyed by camera id.
+ */
+final class CameraCapabilitiesCache {
+    private static final String TAG = "CameraCapabilities";
+    private static final String FILE_NAME = "camera_capabilities.json";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static CameraCapabilitiesCache sInstance;
+
+    private final File mFile;
+    private final Gson mGson = new Gson();
+
+    // Guarded by this
+    private Contents mContents;
+
+    /**
+     * What is stored in the cache file.
+     */
+    private static final class Contents {
+        @SerializedName("fingerprint")
+        String mFingerprint;
+
+        @SerializedName("cameras")
+        List<CameraCapabilities> mCameras = new ArrayList<>();
+    }
+
+    /**
+     * Creates a cache kept in the given file.  The app uses the shared cache, see
+     * {@link #getInstance}.
+     */
+    CameraCapabilitiesCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the shared cache.  Nothing is read from storage until the first lookup.
+     */
+    static synchronized CameraCapabilitiesCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CameraCapabilitiesCache(
+                    new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cached capabilities of the first camera facing the given direction, or null if
+     * no such camera has been cached yet.
+     */
+    synchronized CameraCapabilities getForFacing(int facing) {
+        for (CameraCapabilities capabilities : contents().mCameras) {
+            if (capabilities.getFacing() == facing) {
+                return capabilities;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds or replaces the capabilities of a camera, and writes the cache back to storage.
+     */
+    synchronized void put(CameraCapabilities capabilities) {
+        List<CameraCapabilities> cameras = contents().mCameras;
+        for (int i = 0; i < cameras.size(); ++i) {
+            if (cameras.get(i).getCameraId() == capabilities.getCameraId()) {
+                cameras.remove(i);
+                break;
+            }
+        }
+        cameras.add(capabilities);
+        save();
+    }
+
+    private Contents contents() {
+        if (mContents == null) {
+            mContents = load();
+        }
+        return mContents;
+    }
+
+    private Contents load() {
+        if (mFile.exists()) {
+            try {
+                Reader reader = new InputStreamReader(new FileInputStream(mFile), UTF_8);
+                try {
+                    Contents contents = mGson.fromJson(reader, Contents.class);
+                    if (isValid(contents)) {
+                        return contents;
+                    }
+                    Log.i(TAG, "Discarding camera capabilities of another build.");
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException | JsonParseException e) {
+                Log.w(TAG, "Failed to read camera capabilities, querying the camera instead.", e);
+            }
+        }
+
+        Contents contents = new Contents();
+        contents.mFingerprint = Build.FINGERPRINT;
+        return contents;
+    }
+
+    private static boolean isValid(Contents contents) {
+        if (contents == null || contents.mCameras == null
+                || !Build.FINGERPRINT.equals(contents.mFingerprint)) {
+            return false;
+        }
+        for (CameraCapabilities capabilities : contents.mCameras) {
+            if (capabilities == null || !capabilities.isComplete()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void save() {
+        // Write to a temporary file first, so a crash halfway leaves the old cache intact.
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF_8);
+            try {
+                mGson.toJson(mContents, writer);
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Could not rename " + temp + " to " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save camera capabilities.", e);
+        }
+    }
+}
@@ -20,15 +20,22 @@ import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.os.SystemClock;
+import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.support.annotation.StringDef;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -39,7 +46,6 @@ import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Frame;
 
 import java.io.IOException;
-import java.lang.Thread.State;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
@@ -47,6 +53,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 // Note: This requires Google Play Services 8.1 or higher, due to using indirect byte buffers for
 // storing images.
@@ -77,6 +87,18 @@ public class CameraSource {
     @SuppressLint("InlinedApi")
     public static final int CAMERA_FACING_FRONT = CameraInfo.CAMERA_FACING_FRONT;
 
+    /**
+     * Frame handoff policy which only ever keeps the most recent preview frame pending, dropping
+     * older frames that the detector did not get to in time.
+     */
+    public static final int FRAME_HANDOFF_LATEST = FrameQueue.POLICY_LATEST;
+
+    /**
+     * Frame handoff policy which keeps up to a fixed number of preview frames pending and hands
+     * them to the detector in the order they were received.
+     */
+    public static final int FRAME_HANDOFF_FIFO = FrameQueue.POLICY_FIFO;
+
     private static final String TAG = "OpenCameraSource";
 
     /**
@@ -113,6 +135,13 @@ public class CameraSource {
     @Retention(RetentionPolicy.SOURCE)
     private @interface FlashMode {}
 
+    @IntDef({
+            FRAME_HANDOFF_LATEST,
+            FRAME_HANDOFF_FIFO
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    private @interface FrameHandoff {}
+
     private Context mContext;
 
     private final Object mCameraLock = new Object();
@@ -120,6 +149,15 @@ public class CameraSource {
     // Guarded by mCameraLock
     private Camera mCamera;
 
+    /**
+     * What the open camera supports, and the parameters last applied to it.  Kept so that changing
+     * a setting doesn't need another round trip to the camera service.  Guarded by mCameraLock.
+     */
+    private CameraCapabilities mCapabilities;
+    private Camera.Parameters mParameters;
+
+    private CameraCapabilitiesCache mCapabilitiesCache;
+
     private int mFacing = CAMERA_FACING_BACK;
 
     /**
@@ -128,7 +166,46 @@ public class CameraSource {
      */
     private int mRotation;
 
-    private Size mPreviewSize;
+    // Written on the camera thread when started asynchronously, read on the UI thread for layout.
+    private volatile Size mPreviewSize;
+
+    /**
+     * Where frames currently come from: either the camera, or the external source set through
+     * {@link Builder#setFrameSource(FrameSource)}.  Set while started.
+     */
+    private FrameSource mFrameSource;
+    private FrameSource mExternalFrameSource;
+
+    /**
+     * Optional recorder that frames are written to before detection.
+     */
+    private FrameRecorder mFrameRecorder;
+
+    /**
+     * Optional region of the frame to run detection on.  When set, frames are cropped to
+     * mScanCrop (in sensor coordinates) before being passed to the detector, and mScanWindowRect
+     * holds the same region in the upright coordinates that detections are reported in.
+     */
+    private ScanWindow mScanWindow;
+    private Rect mScanCrop;
+    private volatile Rect mScanWindowRect;
+
+    /**
+     * Optional check that skips blurred frames before detection, looking only at mGateRegion (the
+     * scan window, or else the whole frame).  While it is set, frames captured while continuous
+     * autofocus is moving are skipped as well.
+     */
+    private SharpnessGate mSharpnessGate;
+    private Rect mGateRegion;
+    private volatile boolean mFocusMoving;
+    private final CameraAutoFocusMoveCallback mAutoFocusMoveCallback =
+            new CameraAutoFocusMoveCallback();
+
+    /**
+     * Optional check that skips frames showing the same scene as the last one detected on,
+     * looking at mGateRegion too.
+     */
+    private SceneChangeGate mSceneChangeGate;
 
     // These values may be requested by the caller.  Due to hardware limitations, we may need to
     // select close, but not exactly the same values for these.
@@ -136,10 +213,47 @@ public class CameraSource {
     private int mRequestedPreviewWidth = 1024;
     private int mRequestedPreviewHeight = 768;
 
+    private PreviewSizeSelector mSizeSelector = new CostModelSizeSelector();
 
     private String mFocusMode = null;
     private String mFlashMode = null;
 
+    private int mFrameHandoffPolicy = FRAME_HANDOFF_LATEST;
+    private int mFrameHandoffDepth = 1;
+
+    /**
+     * Number of preview buffers to hand to the camera, or 0 to derive it from the frame handoff
+     * depth.
+     */
+    private int mPreviewBufferCount = 0;
+
+    /**
+     * Pool the preview buffers are taken from and returned to, so that they survive across
+     * stop/start cycles.
+     */
+    private PreviewBufferPool mBufferPool;
+
+    // Detection governor settings.  The defaults run the detector back to back and never drop
+    // frames for their age.
+    private float mMaxDutyCycle = 1.0f;
+    private long mFreshnessDeadlineMillis = Long.MAX_VALUE;
+
+    private final FrameMetrics mMetrics = new FrameMetrics();
+
+    /**
+     * Thread the asynchronous lifecycle methods run on, so that opening, configuring and closing
+     * the camera never block the caller.  Created on first use, and quit on release.
+     */
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The most recent asynchronous start, until it is cancelled or superseded by a stop.  Only
+     * touched by the thread calling the asynchronous methods.
+     */
+    private Future<?> mPendingStart;
+
     // These instances need to be held onto to avoid GC of their underlying resources.  Even though
     // these aren't used outside of the method that creates them, they still must have hard
     // references maintained to them.
@@ -147,18 +261,37 @@ public class CameraSource {
     private SurfaceTexture mDummySurfaceTexture;
 
     /**
-     * Dedicated thread and associated runnable for calling into the detector with frames, as the
-     * frames become available from the camera.
+     * Dedicated threads and associated runnables for calling into the detector with frames, as the
+     * frames become available from the camera.  There is just one unless detection workers were
+     * requested, see {@link Builder#setDetectionWorkers}.
+     */
+    private Thread[] mProcessingThreads;
+    private FrameProcessingRunnable[] mFrameProcessors;
+
+    /**
+     * Puts the results of several detection workers back in frame order, and delivers them on
+     * mDeliveryThread while processing runs.  Null with a single worker, which calls into its
+     * detector's own processor directly.
      */
-    private Thread mProcessingThread;
-    private FrameProcessingRunnable mFrameProcessor;
+    private ResultSequencer<?> mSequencer;
+    private Thread mDeliveryThread;
+
+    // Extra detection workers, and where their results go.
+    private int mDetectionWorkers = 1;
+    private DetectorFactory<?> mDetectorFactory;
+    private Detector.Processor<?> mWorkerProcessor;
+
+    // Frame bookkeeping, only touched by the camera callback thread.
+    private final long mStartTimeMillis = SystemClock.elapsedRealtime();
+    private int mLastFrameId = 0;
+    private int mNextWorker = 0;
 
     /**
-     * Map to convert between a byte array, received from the camera, and its associated byte
-     * buffer.  We use byte buffers internally because this is a more efficient way to call into
-     * native code later (avoids a potential copy).
+     * Map to convert between a byte array, received from the camera, and its associated pending
+     * frame, which wraps the array in a byte buffer.  We use byte buffers internally because this
+     * is a more efficient way to call into native code later (avoids a potential copy).
      */
-    private Map<byte[], ByteBuffer> mBytesToByteBuffer = new HashMap<>();
+    private Map<byte[], PendingFrame> mBytesToFrame = new HashMap<>();
 
     //==============================================================================================
     // Builder
@@ -185,6 +318,8 @@ public class CameraSource {
 
             mDetector = detector;
             mCameraSource.mContext = context;
+            mCameraSource.mBufferPool = PreviewBufferPool.getInstance(context);
+            mCameraSource.mCapabilitiesCache = CameraCapabilitiesCache.getInstance(context);
         }
 
         /**
@@ -228,6 +363,50 @@ public class CameraSource {
             return this;
         }
 
+        /**
+         * Sets how the preview size is chosen out of the sizes the camera supports.  Default: a
+         * {@link CostModelSizeSelector}, which keeps close to the requested aspect ratio without
+         * exceeding the detector's pixel budget.
+         */
+        public Builder setPreviewSizeSelector(PreviewSizeSelector selector) {
+            if (selector == null) {
+                throw new IllegalArgumentException("No preview size selector supplied.");
+            }
+            mCameraSource.mSizeSelector = selector;
+            return this;
+        }
+
+        /**
+         * Restricts detection to a window of the camera frame, given in normalized coordinates
+         * (0 to 1) of the upright preview image.  Frames are cropped to this window before being
+         * passed to the detector, which cuts per-frame detection cost roughly in proportion to the
+         * area removed.  Detections are then reported relative to the window; see
+         * {@link #getScanWindow()}.  Default: the whole frame.
+         */
+        public Builder setScanWindow(float left, float top, float right, float bottom) {
+            mCameraSource.mScanWindow = new ScanWindow(left, top, right, bottom);
+            return this;
+        }
+
+        /**
+         * Skips frames that the given gate finds too blurred to decode, and frames captured while
+         * continuous autofocus is moving, before they reach the detector.  Default: no gate.
+         */
+        public Builder setSharpnessGate(SharpnessGate gate) {
+            mCameraSource.mSharpnessGate = gate;
+            return this;
+        }
+
+        /**
+         * Skips frames the given gate finds unchanged since the last frame detected on, apart from
+         * a periodic refresh.  Meant for fixed-mount scanners that look at a static scene most of
+         * the time.  Default: no gate.
+         */
+        public Builder setSceneChangeGate(SceneChangeGate gate) {
+            mCameraSource.mSceneChangeGate = gate;
+            return this;
+        }
+
         /**
          * Sets the camera to use (either {@link #CAMERA_FACING_BACK} or
          * {@link #CAMERA_FACING_FRONT}). Default: back facing.
@@ -240,12 +419,143 @@ public class CameraSource {
             return this;
         }
 
+        /**
+         * Sets how preview frames are handed from the camera to the detector.  With
+         * {@link #FRAME_HANDOFF_LATEST} only the most recent frame is kept pending and
+         * {@code depth} is ignored.  With {@link #FRAME_HANDOFF_FIFO} up to {@code depth} frames
+         * are kept pending and processed in order.  Default: latest only.
+         */
+        public Builder setFrameHandoff(@FrameHandoff int policy, int depth) {
+            if ((policy != FRAME_HANDOFF_LATEST) && (policy != FRAME_HANDOFF_FIFO)) {
+                throw new IllegalArgumentException("Invalid frame handoff policy: " + policy);
+            }
+            if (depth < 1) {
+                throw new IllegalArgumentException("Invalid frame handoff depth: " + depth);
+            }
+            mCameraSource.mFrameHandoffPolicy = policy;
+            mCameraSource.mFrameHandoffDepth = depth;
+            return this;
+        }
+
+        /**
+         * Lets the camera source pace detection by its measured latency.  Frames are submitted so
+         * that the detector is busy for at most {@code maxDutyCycle} (0 to 1] of the time, rising
+         * and falling with how long detection currently takes, and frames which have waited longer
+         * than {@code freshnessDeadlineMillis} are dropped.  Lower duty cycles save CPU and battery
+         * at the cost of time to decode.  Default: a duty cycle of 1 and no deadline.
+         */
+        public Builder setDetectionGovernor(float maxDutyCycle, long freshnessDeadlineMillis) {
+            if (maxDutyCycle <= 0 || maxDutyCycle > 1) {
+                throw new IllegalArgumentException("Invalid duty cycle: " + maxDutyCycle);
+            }
+            if (freshnessDeadlineMillis <= 0) {
+                throw new IllegalArgumentException(
+                        "Invalid freshness deadline: " + freshnessDeadlineMillis);
+            }
+            mCameraSource.mMaxDutyCycle = maxDutyCycle;
+            mCameraSource.mFreshnessDeadlineMillis = freshnessDeadlineMillis;
+            return this;
+        }
+
+        /**
+         * Runs detection on several threads at once, each with its own detector.  Frames are
+         * handed to the workers round-robin, and their results are put back in frame order before
+         * being passed to {@code processor}, so trackers behave as they would with one detector.
+         * <p/>
+         * The detector given to this builder becomes the first worker, and {@code factory} creates
+         * one more detector per additional worker.  The processor takes the place of the
+         * detector's own processor, which is not called in this mode, and is called on a result
+         * delivery thread of its own.  Default: one worker.
+         */
+        public <T> Builder setDetectionWorkers(int workers, DetectorFactory<T> factory,
+                                               Detector.Processor<T> processor) {
+            if (workers < 1) {
+                throw new IllegalArgumentException("Invalid detection worker count: " + workers);
+            }
+            if (workers > 1 && (factory == null || processor == null)) {
+                throw new IllegalArgumentException(
+                        "Detection workers need a detector factory and a processor.");
+            }
+            mCameraSource.mDetectionWorkers = workers;
+            mCameraSource.mDetectorFactory = factory;
+            mCameraSource.mWorkerProcessor = processor;
+            return this;
+        }
+
+        /**
+         * Sets the number of preview buffers handed to the camera.  This needs to cover the frame
+         * being processed and every frame the handoff queue can hold pending, for each detection
+         * worker, and at least one buffer for the camera to fill.  More buffers trade memory for
+         * fewer dropped frames when the detector is briefly slow.  Default: one more than that
+         * minimum.
+         */
+        public Builder setPreviewBufferCount(int count) {
+            if (count <= 0) {
+                throw new IllegalArgumentException("Invalid preview buffer count: " + count);
+            }
+            mCameraSource.mPreviewBufferCount = count;
+            return this;
+        }
+
+        /**
+         * Takes frames from the given source instead of opening the camera, e.g. to replay a
+         * recording with {@link RecordedFrameSource}.  The camera specific settings (facing,
+         * preview size, fps, focus and flash) are then ignored, and nothing is drawn into the
+         * preview surface.
+         */
+        public Builder setFrameSource(FrameSource source) {
+            if (source == null) {
+                throw new IllegalArgumentException("No frame source supplied.");
+            }
+            mCameraSource.mExternalFrameSource = source;
+            return this;
+        }
+
+        /**
+         * Records the frames received from the frame source with the given recorder, in the order
+         * received, including those later dropped or skipped on the way to the detector.  The
+         * recorder is closed when the camera source is released.
+         */
+        public Builder setFrameRecorder(FrameRecorder recorder) {
+            mCameraSource.mFrameRecorder = recorder;
+            return this;
+        }
+
         /**
          * Creates an instance of the camera source.
          */
         public CameraSource build() {
-            mCameraSource.mFrameProcessor = mCameraSource.new FrameProcessingRunnable(mDetector);
-            return mCameraSource;
+            CameraSource source = mCameraSource;
+            int workers = source.mDetectionWorkers;
+            source.mFrameProcessors = new FrameProcessingRunnable[workers];
+            for (int i = 0; i < workers; ++i) {
+                Detector<?> detector = (i == 0) ? mDetector : source.mDetectorFactory.create();
+                FrameQueue<PendingFrame> queue = new FrameQueue<>(
+                        source.mFrameHandoffPolicy, source.mFrameHandoffDepth);
+                source.mFrameProcessors[i] = source.new FrameProcessingRunnable(detector, queue);
+            }
+
+            int pendingCapacity = source.mFrameProcessors[0].mQueue.capacity();
+            if (workers > 1) {
+                // Allow results to wait behind as many frames as can be in flight at once.
+                int maxInFlight = workers * (pendingCapacity + 1);
+                source.mSequencer = newSequencer(source.mWorkerProcessor, maxInFlight);
+            }
+
+            int minBufferCount = workers * (pendingCapacity + 1) + 1;
+            if (source.mPreviewBufferCount == 0) {
+                source.mPreviewBufferCount = minBufferCount + 1;
+            } else if (source.mPreviewBufferCount < minBufferCount) {
+                throw new IllegalArgumentException("At least " + minBufferCount
+                        + " preview buffers are needed for the selected frame handoff, got "
+                        + source.mPreviewBufferCount);
+            }
+            return source;
+        }
+
+        private static <T> ResultSequencer<T> newSequencer(Detector.Processor<T> processor,
+                                                           int maxReorder) {
+            return new ResultSequencer<>(processor, maxReorder);
         }
     }
 
@@ -312,6 +622,23 @@ public class CameraSource {
         void onAutoFocusMoving(boolean start);
     }
 
+    /**
+     * Callback interface used to report the outcome of {@link #startAsync}.  Both methods are
+     * called on the main thread.
+     */
+    public interface StartCallback {
+        /**
+         * Called once the camera has been opened and its preview started.  The preview size and
+         * scan window are valid from here on.
+         */
+        void onStarted();
+
+        /**
+         * Called if the camera could not be started.
+         */
+        void onStartFailed(Exception e);
+    }
+
     //==============================================================================================
     // Public
     //==============================================================================================
@@ -322,7 +649,19 @@ public class CameraSource {
     public void release() {
         synchronized (mCameraLock) {
             stop();
-            mFrameProcessor.release();
+            for (FrameProcessingRunnable processor : mFrameProcessors) {
+                processor.release();
+            }
+            if (mSequencer != null) {
+                mSequencer.release();
+            }
+            if (mFrameRecorder != null) {
+                try {
+                    mFrameRecorder.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close frame recording.", e);
+                }
+            }
         }
     }
 
@@ -335,7 +674,11 @@ public class CameraSource {
     @RequiresPermission(Manifest.permission.CAMERA)
     public CameraSource start() throws IOException {
         synchronized (mCameraLock) {
-            if (mCamera != null) {
+            if (mFrameSource != null) {
+                return this;
+            }
+            if (mExternalFrameSource != null) {
+                startFrames(mExternalFrameSource);
                 return this;
             }
 
@@ -350,11 +693,8 @@ public class CameraSource {
                 mDummySurfaceView = new SurfaceView(mContext);
                 mCamera.setPreviewDisplay(mDummySurfaceView.getHolder());
             }
+            startFrames(new CameraFrameSource(mCamera));
             mCamera.startPreview();
-
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
         }
         return this;
     }
@@ -369,17 +709,18 @@ public class CameraSource {
     @RequiresPermission(Manifest.permission.CAMERA)
     public CameraSource start(SurfaceHolder surfaceHolder) throws IOException {
         synchronized (mCameraLock) {
-            if (mCamera != null) {
+            if (mFrameSource != null) {
+                return this;
+            }
+            if (mExternalFrameSource != null) {
+                startFrames(mExternalFrameSource);
                 return this;
             }
 
             mCamera = createCamera();
             mCamera.setPreviewDisplay(surfaceHolder);
+            startFrames(new CameraFrameSource(mCamera));
             mCamera.startPreview();
-
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
         }
         return this;
     }
@@ -395,25 +736,47 @@ public class CameraSource {
      */
     public void stop() {
         synchronized (mCameraLock) {
-            mFrameProcessor.setActive(false);
-            if (mProcessingThread != null) {
+            // Stop the flow of frames first, so nothing new is dispatched while the processing
+            // threads wind down.
+            if (mCamera != null) {
+                mCamera.stopPreview();
+            }
+            if (mFrameSource != null) {
+                mFrameSource.stop();
+            }
+
+            for (FrameProcessingRunnable processor : mFrameProcessors) {
+                processor.setActive(false);
+            }
+            if (mProcessingThreads != null) {
+                for (Thread thread : mProcessingThreads) {
+                    try {
+                        // Wait for the thread to complete to ensure that we can't have multiple
+                        // threads executing at the same time (i.e., which would happen if we
+                        // called start too quickly after stop).
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        Log.d(TAG, "Frame processing thread interrupted on release.");
+                    }
+                }
+                mProcessingThreads = null;
+            }
+            if (mDeliveryThread != null) {
+                // Only once the workers are done, so their last results are still delivered.
+                mSequencer.setActive(false);
                 try {
-                    // Wait for the thread to complete to ensure that we can't have multiple threads
-                    // executing at the same time (i.e., which would happen if we called start too
-                    // quickly after stop).
-                    mProcessingThread.join();
+                    mDeliveryThread.join();
                 } catch (InterruptedException e) {
-                    Log.d(TAG, "Frame processing thread interrupted on release.");
+                    Log.d(TAG, "Result delivery thread interrupted on release.");
                 }
-                mProcessingThread = null;
+                mDeliveryThread = null;
             }
-
-            // clear the buffer to prevent oom exceptions
-            mBytesToByteBuffer.clear();
+            for (FrameProcessingRunnable processor : mFrameProcessors) {
+                processor.clearPending();
+            }
+            mFrameSource = null;
 
             if (mCamera != null) {
-                mCamera.stopPreview();
-                mCamera.setPreviewCallbackWithBuffer(null);
                 try {
                     // We want to be compatible back to Gingerbread, but SurfaceTexture
                     // wasn't introduced until Honeycomb.  Since the interface cannot use a SurfaceTexture, if the
@@ -431,10 +794,94 @@ public class CameraSource {
                 }
                 mCamera.release();
                 mCamera = null;
+                mParameters = null;
+                mCapabilities = null;
+            }
+
+            // Hand the buffers back to the pool rather than dropping them, so that the next start
+            // doesn't have to allocate them all over again.
+            for (byte[] buffer : mBytesToFrame.keySet()) {
+                mBufferPool.recycle(buffer);
             }
+            mBytesToFrame.clear();
         }
     }
 
+    /**
+     * Like {@link #start(SurfaceHolder)}, but opens and starts the camera on the camera thread and
+     * returns right away.  The outcome is reported to the callback, if any, on the main thread.
+     * <p/>
+     * The asynchronous methods must all be called from the same thread, normally the main thread.
+     * They run in the order they were called.
+     *
+     * @param surfaceHolder the surface holder to use for the preview frames
+     * @param callback      optional callback to notify once the preview has started or failed to
+     * @return a future which completes once the camera has started; cancelling it before it has
+     * started running skips the start
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public Future<?> startAsync(final SurfaceHolder surfaceHolder,
+                                @Nullable final StartCallback callback) {
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                start(surfaceHolder);
+                return null;
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (callback != null && !isCancelled()) {
+                    postStartResult(this, callback);
+                }
+            }
+        };
+        mPendingStart = task;
+        getCameraHandler().post(task);
+        return task;
+    }
+
+    /**
+     * Like {@link #stop()}, but stops the camera on the camera thread and returns right away.  A
+     * start requested earlier which hasn't begun yet is cancelled rather than run.
+     *
+     * @return a future which completes once the camera has stopped
+     */
+    public Future<?> stopAsync() {
+        cancelPendingStart();
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, null);
+        getCameraHandler().post(task);
+        return task;
+    }
+
+    /**
+     * Like {@link #release()}, but releases the camera and detector on the camera thread and
+     * returns right away.  The camera thread finishes once the release is done.
+     *
+     * @return a future which completes once everything has been released
+     */
+    public Future<?> releaseAsync() {
+        cancelPendingStart();
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                release();
+            }
+        }, null);
+        getCameraHandler().post(task);
+
+        // Lets the release run first.
+        mCameraThread.quitSafely();
+        mCameraThread = null;
+        mCameraHandler = null;
+        return task;
+    }
+
     /**
      * Returns the preview size that is currently in use by the underlying camera.
      */
@@ -442,6 +889,23 @@ public class CameraSource {
         return mPreviewSize;
     }
 
+    /**
+     * Returns the region of the upright preview image that detection is restricted to, in preview
+     * pixels, or null if the whole frame is used.  Detection coordinates are relative to the top
+     * left corner of this region.  Only valid once the camera has been started.
+     */
+    @Nullable
+    public Rect getScanWindow() {
+        return mScanWindowRect;
+    }
+
+    /**
+     * Returns the counters describing what happened to the frames received from the camera.
+     */
+    public FrameMetrics getFrameMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Returns the selected camera; one of {@link #CAMERA_FACING_BACK} or
      * {@link #CAMERA_FACING_FRONT}.
@@ -457,12 +921,12 @@ public class CameraSource {
             }
             int currentZoom = 0;
             int maxZoom;
-            Camera.Parameters parameters = mCamera.getParameters();
-            if (!parameters.isZoomSupported()) {
+            Camera.Parameters parameters = mParameters;
+            if (!mCapabilities.isZoomSupported()) {
                 Log.w(TAG, "Zoom is not supported on this device");
                 return currentZoom;
             }
-            maxZoom = parameters.getMaxZoom();
+            maxZoom = mCapabilities.getMaxZoom();
 
             currentZoom = parameters.getZoom() + 1;
             float newZoom;
@@ -534,8 +998,8 @@ public class CameraSource {
     public boolean setFocusMode(@FocusMode String mode) {
         synchronized (mCameraLock) {
             if (mCamera != null && mode != null) {
-                Camera.Parameters parameters = mCamera.getParameters();
-                if (parameters.getSupportedFocusModes().contains(mode)) {
+                Camera.Parameters parameters = mParameters;
+                if (mCapabilities.supportsFocusMode(mode)) {
                     parameters.setFocusMode(mode);
                     mCamera.setParameters(parameters);
                     mFocusMode = mode;
@@ -574,8 +1038,8 @@ public class CameraSource {
     public boolean setFlashMode(@FlashMode String mode) {
         synchronized (mCameraLock) {
             if (mCamera != null && mode != null) {
-                Camera.Parameters parameters = mCamera.getParameters();
-                if (parameters.getSupportedFlashModes().contains(mode)) {
+                Camera.Parameters parameters = mParameters;
+                if (mCapabilities.supportsFlashMode(mode)) {
                     parameters.setFlashMode(mode);
                     mCamera.setParameters(parameters);
                     mFlashMode = mode;
@@ -647,13 +1111,10 @@ public class CameraSource {
         }
 
         synchronized (mCameraLock) {
+            // The callback itself stays installed, since the sharpness gate relies on it too.
+            mAutoFocusMoveCallback.mDelegate = cb;
             if (mCamera != null) {
-                CameraAutoFocusMoveCallback autoFocusMoveCallback = null;
-                if (cb != null) {
-                    autoFocusMoveCallback = new CameraAutoFocusMoveCallback();
-                    autoFocusMoveCallback.mDelegate = cb;
-                }
-                mCamera.setAutoFocusMoveCallback(autoFocusMoveCallback);
+                mCamera.setAutoFocusMoveCallback(mAutoFocusMoveCallback);
             }
         }
 
@@ -670,6 +1131,106 @@ public class CameraSource {
     private CameraSource() {
     }
 
+    private Handler getCameraHandler() {
+        if (mCameraHandler == null) {
+            mCameraThread = new HandlerThread("CameraThread", Process.THREAD_PRIORITY_DISPLAY);
+            mCameraThread.start();
+            mCameraHandler = new Handler(mCameraThread.getLooper());
+        }
+        return mCameraHandler;
+    }
+
+    private void cancelPendingStart() {
+        if (mPendingStart != null) {
+            // Never interrupts a start that is already running; the stop queued behind it then
+            // undoes it.
+            mPendingStart.cancel(false);
+            mPendingStart = null;
+        }
+    }
+
+    /**
+     * Reports the outcome of a finished asynchronous start on the main thread.
+     */
+    private void postStartResult(final Future<?> start, final StartCallback callback) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.get();
+                    callback.onStarted();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    callback.onStartFailed((cause instanceof Exception) ? (Exception) cause : e);
+                } catch (InterruptedException e) {
+                    // Can't happen, the start has already completed.
+                    callback.onStartFailed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets up frame processing for the given source and starts the flow of frames.  Called with
+     * the camera lock held; for the camera, this happens just before the preview is started.
+     */
+    private void startFrames(FrameSource source) throws IOException {
+        mFrameSource = source;
+        mPreviewSize = new Size(source.getFrameWidth(), source.getFrameHeight());
+        mRotation = source.getRotation();
+
+        if (mScanWindow != null) {
+            mScanCrop = mScanWindow.sensorCrop(
+                    mPreviewSize.getWidth(), mPreviewSize.getHeight(), mRotation);
+            mScanWindowRect = ScanWindow.uprightRect(
+                    mScanCrop, mPreviewSize.getWidth(), mPreviewSize.getHeight(), mRotation);
+            Log.i(TAG, "Scan window " + mScanWindowRect.width() + "x" + mScanWindowRect.height()
+                    + " of " + mPreviewSize.getWidth() + "x" + mPreviewSize.getHeight());
+        }
+        mGateRegion = (mScanCrop != null)
+                ? mScanCrop : new Rect(0, 0, mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        if (mSceneChangeGate != null) {
+            // The scene may well have changed while we were stopped.
+            mSceneChangeGate.reset();
+        }
+
+        // Frame buffers needed for working with the source (see setPreviewBufferCount):
+        //
+        //   one for the frame that is currently being executed upon in doing detection
+        //   one for each pending frame the handoff queue can hold (just one for latest only)
+        //   the rest for the frames that the source uses to populate future preview images
+        for (int i = 0; i < mPreviewBufferCount; ++i) {
+            source.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
+        }
+
+        startProcessing();
+        source.start(new FrameSource.FrameCallback() {
+            @Override
+            public void onFrame(byte[] data) {
+                dispatchFrame(data);
+            }
+        });
+    }
+
+    /**
+     * Starts one processing thread per detection worker.  Called with the camera lock held, just
+     * before the frame source starts delivering frames.
+     */
+    private void startProcessing() {
+        if (mSequencer != null) {
+            mSequencer.reset(mLastFrameId + 1);
+            mSequencer.setActive(true);
+            mDeliveryThread = new Thread(mSequencer);
+            mDeliveryThread.start();
+        }
+        mProcessingThreads = new Thread[mFrameProcessors.length];
+        for (int i = 0; i < mFrameProcessors.length; ++i) {
+            mProcessingThreads[i] = new Thread(mFrameProcessors[i]);
+            mFrameProcessors[i].setActive(true);
+            mProcessingThreads[i].start();
+        }
+    }
+
     /**
      * Wraps the camera1 shutter callback so that the deprecated API isn't exposed.
      */
@@ -719,16 +1280,19 @@ public class CameraSource {
     }
 
     /**
-     * Wraps the camera1 auto focus move callback so that the deprecated API isn't exposed.
+     * Wraps the camera1 auto focus move callback so that the deprecated API isn't exposed.  Also
+     * keeps track of whether focus is moving, for the sharpness gate.
      */
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     private class CameraAutoFocusMoveCallback implements Camera.AutoFocusMoveCallback {
-        private AutoFocusMoveCallback mDelegate;
+        private volatile AutoFocusMoveCallback mDelegate;
 
         @Override
         public void onAutoFocusMoving(boolean start, Camera camera) {
-            if (mDelegate != null) {
-                mDelegate.onAutoFocusMoving(start);
+            mFocusMoving = start;
+            AutoFocusMoveCallback delegate = mDelegate;
+            if (delegate != null) {
+                delegate.onAutoFocusMoving(start);
             }
         }
     }
@@ -740,26 +1304,44 @@ public class CameraSource {
      */
     @SuppressLint("InlinedApi")
     private Camera createCamera() {
-        int requestedCameraId = getIdForRequestedCamera(mFacing);
-        if (requestedCameraId == -1) {
-            throw new RuntimeException("Could not find requested camera.");
+        // Configure from the cached capabilities when we have them.  The one round trip to the
+        // camera service left is getting the parameters object to apply the settings to.
+        CameraCapabilities capabilities = mCapabilitiesCache.getForFacing(mFacing);
+        CameraInfo cameraInfo = null;
+        int requestedCameraId;
+        if (capabilities != null) {
+            requestedCameraId = capabilities.getCameraId();
+        } else {
+            cameraInfo = new CameraInfo();
+            requestedCameraId = getIdForRequestedCamera(mFacing, cameraInfo);
+            if (requestedCameraId == -1) {
+                throw new RuntimeException("Could not find requested camera.");
+            }
         }
         Camera camera = Camera.open(requestedCameraId);
+        Camera.Parameters parameters = camera.getParameters();
+
+        if (capabilities == null) {
+            Log.i(TAG, "Caching capabilities of camera " + requestedCameraId);
+            capabilities = CameraCapabilities.read(requestedCameraId, cameraInfo, parameters);
+            mCapabilitiesCache.put(capabilities);
+        }
 
-        SizePair sizePair = selectSizePair(camera, mRequestedPreviewWidth, mRequestedPreviewHeight);
+        SizePair sizePair = selectSizePair(
+                capabilities, mRequestedPreviewWidth, mRequestedPreviewHeight);
         if (sizePair == null) {
             throw new RuntimeException("Could not find suitable preview size.");
         }
+        Log.i(TAG, "Preview size " + sizePair + " for requested " + mRequestedPreviewWidth
+                + "x" + mRequestedPreviewHeight);
         Size pictureSize = sizePair.pictureSize();
         mPreviewSize = sizePair.previewSize();
 
-        int[] previewFpsRange = selectPreviewFpsRange(camera, mRequestedFps);
+        int[] previewFpsRange = selectPreviewFpsRange(capabilities, mRequestedFps);
         if (previewFpsRange == null) {
             throw new RuntimeException("Could not find suitable preview frames per second range.");
         }
 
-        Camera.Parameters parameters = camera.getParameters();
-
         if (pictureSize != null) {
             parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
         }
@@ -770,11 +1352,10 @@ public class CameraSource {
                 previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
         parameters.setPreviewFormat(ImageFormat.NV21);
 
-        setRotation(camera, parameters, requestedCameraId);
+        setRotation(camera, parameters, capabilities);
 
         if (mFocusMode != null) {
-            if (parameters.getSupportedFocusModes().contains(
-                    mFocusMode)) {
+            if (capabilities.supportsFocusMode(mFocusMode)) {
                 parameters.setFocusMode(mFocusMode);
             } else {
                 Log.i(TAG, "Camera focus mode: " + mFocusMode + " is not supported on this device.");
@@ -785,8 +1366,7 @@ public class CameraSource {
         mFocusMode = parameters.getFocusMode();
 
         if (mFlashMode != null) {
-            if (parameters.getSupportedFlashModes().contains(
-                    mFlashMode)) {
+            if (capabilities.supportsFlashMode(mFlashMode)) {
                 parameters.setFlashMode(mFlashMode);
             } else {
                 Log.i(TAG, "Camera flash mode: " + mFlashMode + " is not supported on this device.");
@@ -797,17 +1377,15 @@ public class CameraSource {
         mFlashMode = parameters.getFlashMode();
 
         camera.setParameters(parameters);
-
-        // Four frame buffers are needed for working with the camera:
-        //
-        //   one for the frame that is currently being executed upon in doing detection
-        //   one for the next pending frame to process immediately upon completing detection
-        //   two for the frames that the camera uses to populate future preview images
-        camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
+        mParameters = parameters;
+        mCapabilities = capabilities;
+
+        // Focus only moves on its own in the continuous modes.
+        mFocusMoving = false;
+        if (Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(mFocusMode)
+                || Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO.equals(mFocusMode)) {
+            camera.setAutoFocusMoveCallback(mAutoFocusMoveCallback);
+        }
 
         return camera;
     }
@@ -816,10 +1394,10 @@ public class CameraSource {
      * Gets the id for the camera specified by the direction it is facing.  Returns -1 if no such
      * camera was found.
      *
-     * @param facing the desired camera (front-facing or rear-facing)
+     * @param facing     the desired camera (front-facing or rear-facing)
+     * @param cameraInfo receives the info of the camera found
      */
-    private static int getIdForRequestedCamera(int facing) {
-        CameraInfo cameraInfo = new CameraInfo();
+    private static int getIdForRequestedCamera(int facing, CameraInfo cameraInfo) {
         for (int i = 0; i < Camera.getNumberOfCameras(); ++i) {
             Camera.getCameraInfo(i, cameraInfo);
             if (cameraInfo.facing == facing) {
@@ -837,31 +1415,21 @@ public class CameraSource {
      * ratio.  On some hardware, if you would only set the preview size, you will get a distorted
      * image.
      *
-     * @param camera        the camera to select a preview size from
+     * @param capabilities  the capabilities of the camera to select a preview size for
      * @param desiredWidth  the desired width of the camera preview frames
      * @param desiredHeight the desired height of the camera preview frames
      * @return the selected preview and picture size pair
      */
-    private static SizePair selectSizePair(Camera camera, int desiredWidth, int desiredHeight) {
-        List<SizePair> validPreviewSizes = generateValidPreviewSizeList(camera);
-
-        // The method for selecting the best size is to minimize the sum of the differences between
-        // the desired values and the actual values for width and height.  This is certainly not the
-        // only way to select the best size, but it provides a decent tradeoff between using the
-        // closest aspect ratio vs. using the closest pixel area.
-        /*SizePair selectedPair = null;
-        int minDiff = Integer.MAX_VALUE;
-        for (SizePair sizePair : validPreviewSizes) {
-            Size size = sizePair.previewSize();
-            int diff = Math.abs(size.getWidth() - desiredWidth) +
-                    Math.abs(size.getHeight() - desiredHeight);
-            if (diff < minDiff) {
-                selectedPair = sizePair;
-                minDiff = diff;
-            }
-        }*/
+    private SizePair selectSizePair(CameraCapabilities capabilities, int desiredWidth,
+                                    int desiredHeight) {
+        List<SizePair> validPreviewSizes = generateValidPreviewSizeList(capabilities);
+        if (validPreviewSizes.isEmpty()) {
+            return null;
+        }
 
-        return validPreviewSizes.get(0);
+        float scanWindowArea = (mScanWindow != null) ? mScanWindow.areaFraction() : 1.0f;
+        return mSizeSelector.select(
+                validPreviewSizes, desiredWidth, desiredHeight, scanWindowArea);
     }
 
     /**
@@ -870,15 +1438,19 @@ public class CameraSource {
      * aspect ratio as the preview size or the preview may end up being distorted.  If the picture
      * size is null, then there is no picture size with the same aspect ratio as the preview size.
      */
-    private static class SizePair {
+    public static class SizePair {
         private Size mPreview;
         private Size mPicture;
 
-        public SizePair(android.hardware.Camera.Size previewSize,
-                        android.hardware.Camera.Size pictureSize) {
-            mPreview = new Size(previewSize.width, previewSize.height);
+        public SizePair(Size previewSize, @Nullable Size pictureSize) {
+            mPreview = previewSize;
+            mPicture = pictureSize;
+        }
+
+        SizePair(int[] previewSize, @Nullable int[] pictureSize) {
+            mPreview = new Size(previewSize[0], previewSize[1]);
             if (pictureSize != null) {
-                mPicture = new Size(pictureSize.width, pictureSize.height);
+                mPicture = new Size(pictureSize[0], pictureSize[1]);
             }
         }
 
@@ -886,10 +1458,17 @@ public class CameraSource {
             return mPreview;
         }
 
-        @SuppressWarnings("unused")
+        @Nullable
         public Size pictureSize() {
             return mPicture;
         }
+
+        @Override
+        public String toString() {
+            String picture = (mPicture != null)
+                    ? mPicture.getWidth() + "x" + mPicture.getHeight() : "unset";
+            return mPreview.getWidth() + "x" + mPreview.getHeight() + " (picture " + picture + ")";
+        }
     }
 
     /**
@@ -901,21 +1480,18 @@ public class CameraSource {
      * set to a size that is the same aspect ratio as the preview size we choose.  Otherwise, the
      * preview images may be distorted on some devices.
      */
-    private static List<SizePair> generateValidPreviewSizeList(Camera camera) {
-        Camera.Parameters parameters = camera.getParameters();
-        List<android.hardware.Camera.Size> supportedPreviewSizes =
-                parameters.getSupportedPreviewSizes();
-        List<android.hardware.Camera.Size> supportedPictureSizes =
-                parameters.getSupportedPictureSizes();
+    private static List<SizePair> generateValidPreviewSizeList(CameraCapabilities capabilities) {
+        List<int[]> supportedPreviewSizes = capabilities.getPreviewSizes();
+        List<int[]> supportedPictureSizes = capabilities.getPictureSizes();
         List<SizePair> validPreviewSizes = new ArrayList<>();
-        for (android.hardware.Camera.Size previewSize : supportedPreviewSizes) {
-            float previewAspectRatio = (float) previewSize.width / (float) previewSize.height;
+        for (int[] previewSize : supportedPreviewSizes) {
+            float previewAspectRatio = (float) previewSize[0] / (float) previewSize[1];
 
             // By looping through the picture sizes in order, we favor the higher resolutions.
             // We choose the highest resolution in order to support taking the full resolution
             // picture later.
-            for (android.hardware.Camera.Size pictureSize : supportedPictureSizes) {
-                float pictureAspectRatio = (float) pictureSize.width / (float) pictureSize.height;
+            for (int[] pictureSize : supportedPictureSizes) {
+                float pictureAspectRatio = (float) pictureSize[0] / (float) pictureSize[1];
                 if (Math.abs(previewAspectRatio - pictureAspectRatio) < ASPECT_RATIO_TOLERANCE) {
                     validPreviewSizes.add(new SizePair(previewSize, pictureSize));
                     break;
@@ -928,7 +1504,7 @@ public class CameraSource {
         // still account for it.
         if (validPreviewSizes.size() == 0) {
             Log.w(TAG, "No preview sizes have a corresponding same-aspect-ratio picture size");
-            for (android.hardware.Camera.Size previewSize : supportedPreviewSizes) {
+            for (int[] previewSize : supportedPreviewSizes) {
                 // The null picture size will let us know that we shouldn't set a picture size.
                 validPreviewSizes.add(new SizePair(previewSize, null));
             }
@@ -941,11 +1517,12 @@ public class CameraSource {
      * Selects the most suitable preview frames per second range, given the desired frames per
      * second.
      *
-     * @param camera            the camera to select a frames per second range from
+     * @param capabilities      the capabilities of the camera to select a range for
      * @param desiredPreviewFps the desired frames per second for the camera preview frames
      * @return the selected preview frames per second range
      */
-    private int[] selectPreviewFpsRange(Camera camera, float desiredPreviewFps) {
+    private int[] selectPreviewFpsRange(CameraCapabilities capabilities,
+                                        float desiredPreviewFps) {
         // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
         // rates.
         int desiredPreviewFpsScaled = (int) (desiredPreviewFps * 1000.0f);
@@ -957,7 +1534,7 @@ public class CameraSource {
         // range (15, 30).
         int[] selectedFpsRange = null;
         int minDiff = Integer.MAX_VALUE;
-        List<int[]> previewFpsRangeList = camera.getParameters().getSupportedPreviewFpsRange();
+        List<int[]> previewFpsRangeList = capabilities.getPreviewFpsRanges();
         for (int[] range : previewFpsRangeList) {
             int deltaMin = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
             int deltaMax = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
@@ -974,10 +1551,11 @@ public class CameraSource {
      * Calculates the correct rotation for the given camera id and sets the rotation in the
      * parameters.  It also sets the camera's display orientation and rotation.
      *
-     * @param parameters the camera parameters for which to set the rotation
-     * @param cameraId   the camera id to set rotation based on
+     * @param parameters   the camera parameters for which to set the rotation
+     * @param capabilities the capabilities of the camera, holding how it is mounted
      */
-    private void setRotation(Camera camera, Camera.Parameters parameters, int cameraId) {
+    private void setRotation(Camera camera, Camera.Parameters parameters,
+                             CameraCapabilities capabilities) {
         WindowManager windowManager =
                 (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
         int degrees = 0;
@@ -999,16 +1577,13 @@ public class CameraSource {
                 Log.e(TAG, "Bad rotation value: " + rotation);
         }
 
-        CameraInfo cameraInfo = new CameraInfo();
-        Camera.getCameraInfo(cameraId, cameraInfo);
-
         int angle;
         int displayAngle;
-        if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            angle = (cameraInfo.orientation + degrees) % 360;
+        if (capabilities.getFacing() == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            angle = (capabilities.getOrientation() + degrees) % 360;
             displayAngle = (360 - angle); // compensate for it being mirrored
         } else {  // back-facing
-            angle = (cameraInfo.orientation - degrees + 360) % 360;
+            angle = (capabilities.getOrientation() - degrees + 360) % 360;
             displayAngle = angle;
         }
 
@@ -1021,9 +1596,10 @@ public class CameraSource {
 
     /**
      * Creates one buffer for the camera preview callback.  The size of the buffer is based off of
-     * the camera preview size and the format of the camera image.
+     * the camera preview size and the format of the camera image.  Buffers left over from a
+     * previous run of the camera are reused when they have the right size.
      *
-     * @return a new preview buffer of the appropriate size for the current camera settings
+     * @return a preview buffer of the appropriate size for the current camera settings
      */
     private byte[] createPreviewBuffer(Size previewSize) {
         int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
@@ -1036,7 +1612,7 @@ public class CameraSource {
 
         // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
         // should guarantee that there will be an array to work with.
-        byte[] byteArray = new byte[bufferSize];
+        byte[] byteArray = mBufferPool.acquire(bufferSize);
         ByteBuffer buffer = ByteBuffer.wrap(byteArray);
         if (!buffer.hasArray() || (buffer.array() != byteArray)) {
             // I don't think that this will ever happen.  But if it does, then we wouldn't be
@@ -1044,7 +1620,7 @@ public class CameraSource {
             throw new IllegalStateException("Failed to create valid buffer for camera source.");
         }
 
-        mBytesToByteBuffer.put(byteArray, buffer);
+        mBytesToFrame.put(byteArray, new PendingFrame(buffer));
         return byteArray;
     }
 
@@ -1053,12 +1629,121 @@ public class CameraSource {
     //==============================================================================================
 
     /**
-     * Called when the camera has a new preview frame.
+     * Frame source over the opened camera, using the camera's own preview buffer contract.  The
+     * preview itself is started and stopped by the camera source.
      */
-    private class CameraPreviewCallback implements Camera.PreviewCallback {
+    private class CameraFrameSource implements FrameSource, Camera.PreviewCallback {
+        private final Camera mSourceCamera;
+        private final Size mSize;
+        private FrameCallback mCallback;
+
+        CameraFrameSource(Camera camera) {
+            mSourceCamera = camera;
+            // Selected when the camera was created.
+            mSize = mPreviewSize;
+        }
+
+        @Override
+        public int getFrameWidth() {
+            return mSize.getWidth();
+        }
+
+        @Override
+        public int getFrameHeight() {
+            return mSize.getHeight();
+        }
+
+        @Override
+        public int getRotation() {
+            // Worked out from the device orientation when the camera was created.
+            return mRotation;
+        }
+
+        @Override
+        public void addCallbackBuffer(byte[] buffer) {
+            mSourceCamera.addCallbackBuffer(buffer);
+        }
+
+        @Override
+        public void start(FrameCallback callback) {
+            mCallback = callback;
+            mSourceCamera.setPreviewCallbackWithBuffer(this);
+        }
+
+        @Override
+        public void stop() {
+            mSourceCamera.setPreviewCallbackWithBuffer(null);
+        }
+
         @Override
         public void onPreviewFrame(byte[] data, Camera camera) {
-            mFrameProcessor.setNextFrame(data, camera);
+            mCallback.onFrame(data);
+        }
+    }
+
+    /**
+     * Hands the frame data received from the frame source to the next detection worker,
+     * round-robin.  The worker keeps a pending reference to the frame data for future use, and any
+     * frame buffer its queue let go of (if present) is added back to the source.
+     */
+    private void dispatchFrame(byte[] data) {
+        PendingFrame frame = mBytesToFrame.get(data);
+        if (frame == null) {
+            Log.d(TAG,
+                    "Skipping frame.  Could not find ByteBuffer associated with the image " +
+                            "data from the camera.");
+            return;
+        }
+
+        // Timestamp and frame ID are maintained here, which will give downstream code some idea
+        // of the timing of frames received and when frames were dropped along the way.
+        frame.mTimestampMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
+        frame.mId = ++mLastFrameId;
+        mMetrics.mReceived.incrementAndGet();
+
+        // Recorded before the handoff, in the order received, whichever worker gets the frame.
+        if (mFrameRecorder != null) {
+            recordFrame(frame);
+        }
+
+        FrameProcessingRunnable worker = mFrameProcessors[mNextWorker];
+        mNextWorker = (mNextWorker + 1) % mFrameProcessors.length;
+
+        PendingFrame unused = worker.offer(frame);
+        if (unused != null) {
+            mMetrics.mDroppedHandoff.incrementAndGet();
+            if (mSequencer != null) {
+                mSequencer.skip(unused.mId);
+            }
+            mFrameSource.addCallbackBuffer(unused.mData.array());
+        }
+    }
+
+    /**
+     * Appends the full frame to the recording.  A failed write is logged and the frame is still
+     * detected on.
+     */
+    private void recordFrame(PendingFrame frame) {
+        try {
+            mFrameRecorder.record(frame.mData.array(), mPreviewSize.getWidth(),
+                    mPreviewSize.getHeight(), mRotation, frame.mTimestampMillis);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to record frame " + frame.mId, e);
+        }
+    }
+
+    /**
+     * A preview buffer along with the state of the frame currently held in it.  One of these is
+     * created per camera buffer, so no allocation is needed as frames pass through the handoff
+     * queue.
+     */
+    private static final class PendingFrame {
+        final ByteBuffer mData;
+        int mId;
+        long mTimestampMillis;
+
+        PendingFrame(ByteBuffer data) {
+            mData = data;
         }
     }
 
@@ -1067,146 +1752,223 @@ public class CameraSource {
      * available from the camera.  This is designed to run detection on frames as fast as possible
      * (i.e., without unnecessary context switching or waiting on the next frame).
      * <p/>
-     * While detection is running on a frame, new frames may be received from the camera.  As these
-     * frames come in, the most recent frame is held onto as pending.  As soon as detection and its
-     * associated processing are done for the previous frame, detection on the mostly recently
-     * received frame will immediately start on the same thread.
+     * While detection is running on a frame, new frames may be received from the camera.  These
+     * are handed over through a lock-free {@link FrameQueue}, so the camera callback never blocks
+     * on the processing thread.  With the default latest-only policy the most recent frame is held
+     * onto as pending, and as soon as detection and its associated processing are done for the
+     * previous frame, detection on the most recently received frame will immediately start on the
+     * same thread.
+     * <p/>
+     * With several detection workers there is one of these per worker, each with its own detector.
+     * Workers then don't call the detector's processor themselves, but pass their results through
+     * the shared {@link ResultSequencer} so they are delivered in frame order.
      */
     private class FrameProcessingRunnable implements Runnable {
         private Detector<?> mDetector;
-        private long mStartTimeMillis = SystemClock.elapsedRealtime();
 
-        // This lock guards all of the member variables below.
-        private final Object mLock = new Object();
-        private boolean mActive = true;
+        private final FrameQueue<PendingFrame> mQueue;
+        private final DetectionGovernor mGovernor;
+
+        // Reusable buffer holding the scan window cropped out of the current frame.  Only touched
+        // by the processing thread.
+        private ByteBuffer mCropData;
 
-        // These pending variables hold the state associated with the new frame awaiting processing.
-        private long mPendingTimeMillis;
-        private int mPendingFrameId = 0;
-        private ByteBuffer mPendingFrameData;
+        // Scene change signature of the current frame, swapped with the gate's reference when the
+        // frame is detected on.  Only touched by the processing thread.
+        private int[] mSignature = SceneChangeGate.newSignature();
 
-        FrameProcessingRunnable(Detector<?> detector) {
+        FrameProcessingRunnable(Detector<?> detector, FrameQueue<PendingFrame> queue) {
             mDetector = detector;
+            mQueue = queue;
+            mGovernor = new DetectionGovernor(mMaxDutyCycle, mFreshnessDeadlineMillis);
         }
 
         /**
          * Releases the underlying receiver.  This is only safe to do after the associated thread
          * has completed, which is managed in camera source's release method above.
          */
-        @SuppressLint("Assert")
         void release() {
-            assert (mProcessingThread.getState() == State.TERMINATED);
             mDetector.release();
             mDetector = null;
         }
 
         /**
-         * Marks the runnable as active/not active.  Signals any blocked threads to continue.
+         * Marks the runnable as active/not active.  Wakes the processing thread if it is waiting
+         * on the next frame.
          */
         void setActive(boolean active) {
-            synchronized (mLock) {
-                mActive = active;
-                mLock.notifyAll();
-            }
+            mQueue.setActive(active);
         }
 
         /**
-         * Sets the frame data received from the camera.  This adds the previous unused frame buffer
-         * (if present) back to the camera, and keeps a pending reference to the frame data for
-         * future use.
+         * Drops any frames left pending.  Only safe to call once the processing thread has
+         * completed.
          */
-        void setNextFrame(byte[] data, Camera camera) {
-            synchronized (mLock) {
-                if (mPendingFrameData != null) {
-                    camera.addCallbackBuffer(mPendingFrameData.array());
-                    mPendingFrameData = null;
-                }
-
-                if (!mBytesToByteBuffer.containsKey(data)) {
-                    Log.d(TAG,
-                            "Skipping frame.  Could not find ByteBuffer associated with the image " +
-                                    "data from the camera.");
-                    return;
-                }
-
-                // Timestamp and frame ID are maintained here, which will give downstream code some
-                // idea of the timing of frames received and when frames were dropped along the way.
-                mPendingTimeMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
-                mPendingFrameId++;
-                mPendingFrameData = mBytesToByteBuffer.get(data);
+        void clearPending() {
+            mQueue.clear();
+        }
 
-                // Notify the processor thread if it is waiting on the next frame (see below).
-                mLock.notifyAll();
-            }
+        /**
+         * Queues a frame for this worker.  Only called from the camera callback thread.
+         *
+         * @return a frame the queue let go of, whose buffer should go back to the camera, or null
+         */
+        PendingFrame offer(PendingFrame frame) {
+            return mQueue.offer(frame);
         }
 
         /**
          * As long as the processing thread is active, this executes detection on frames
          * continuously.  The next pending frame is either immediately available or hasn't been
-         * received yet.  Once it is available, we transfer the frame info to local variables and
-         * run detection on that frame.  It immediately loops back for the next frame without
-         * pausing.
+         * received yet.  Once it is available, we run detection on that frame.  It immediately
+         * loops back for the next frame without pausing.
          * <p/>
          * If detection takes longer than the time in between new frames from the camera, this will
          * mean that this loop will run without ever waiting on a frame, avoiding any context
          * switching or frame acquisition time latency.
          * <p/>
-         * If you find that this is using more CPU than you'd like, you should probably decrease the
-         * FPS setting above to allow for some idle time in between frames.
+         * If you find that this is using more CPU than you'd like, you should probably lower the
+         * duty cycle given to the detection governor, or decrease the FPS setting above, to allow
+         * for some idle time in between frames.
          */
         @Override
         public void run() {
-            Frame outputFrame;
-            ByteBuffer data;
-
             while (true) {
-                synchronized (mLock) {
-                    while (mActive && (mPendingFrameData == null)) {
-                        try {
-                            // Wait for the next frame to be received from the camera, since we
-                            // don't have it yet.
-                            mLock.wait();
-                        } catch (InterruptedException e) {
-                            Log.d(TAG, "Frame processing loop terminated.", e);
-                            return;
-                        }
+                PendingFrame frame = mQueue.take();
+                if (frame == null || !mQueue.isActive()) {
+                    // Exit the loop once this camera source is stopped or released.  A frame that
+                    // was taken just as setActive(false) was called is simply not processed.
+                    return;
+                }
+
+                if (!passesGates(frame)) {
+                    if (mSequencer != null) {
+                        mSequencer.skip(frame.mId);
                     }
+                    mFrameSource.addCallbackBuffer(frame.mData.array());
+                    continue;
+                }
 
-                    if (!mActive) {
-                        // Exit the loop once this camera source is stopped or released.  We check
-                        // this here, immediately after the wait() above, to handle the case where
-                        // setActive(false) had been called, triggering the termination of this
-                        // loop.
-                        return;
+                long nowMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
+                int admission = mGovernor.admit(frame.mTimestampMillis, nowMillis);
+                if (admission != DetectionGovernor.SUBMIT) {
+                    if (admission == DetectionGovernor.DROP_STALE) {
+                        mMetrics.mDroppedStale.incrementAndGet();
+                    } else {
+                        mMetrics.mDroppedThrottled.incrementAndGet();
+                    }
+                    if (mSequencer != null) {
+                        mSequencer.skip(frame.mId);
                     }
+                    mFrameSource.addCallbackBuffer(frame.mData.array());
+                    continue;
+                }
+                if (mSceneChangeGate != null) {
+                    // Only now that the frame is sure to be detected on does it become the scene
+                    // change reference.
+                    mSignature = mSceneChangeGate.commit(mSignature, frame.mTimestampMillis);
+                }
 
-                    outputFrame = new Frame.Builder()
-                            .setImageData(mPendingFrameData, mPreviewSize.getWidth(),
-                                    mPreviewSize.getHeight(), ImageFormat.NV21)
-                            .setId(mPendingFrameId)
-                            .setTimestampMillis(mPendingTimeMillis)
-                            .setRotation(mRotation)
-                            .build();
-
-                    // Hold onto the frame data locally, so that we can use this for detection
-                    // below.  We need to clear mPendingFrameData to ensure that this buffer isn't
-                    // recycled back to the camera before we are done using that data.
-                    data = mPendingFrameData;
-                    mPendingFrameData = null;
+                ByteBuffer imageData = frame.mData;
+                int width = mPreviewSize.getWidth();
+                int height = mPreviewSize.getHeight();
+                if (mScanCrop != null) {
+                    imageData = cropFrame(frame.mData, width, height, mScanCrop);
+                    width = mScanCrop.width();
+                    height = mScanCrop.height();
+
+                    // The cropped copy is all the detector needs, so the source can have its
+                    // buffer back right away.
+                    mFrameSource.addCallbackBuffer(frame.mData.array());
                 }
 
-                // The code below needs to run outside of synchronization, because this will allow
-                // the camera to add pending frame(s) while we are running detection on the current
-                // frame.
+                Frame outputFrame = new Frame.Builder()
+                        .setImageData(imageData, width, height, ImageFormat.NV21)
+                        .setId(frame.mId)
+                        .setTimestampMillis(frame.mTimestampMillis)
+                        .setRotation(mRotation)
+                        .build();
+
+                // The queue no longer references this frame, so the camera may keep adding
+                // pending frame(s) while we are running detection on the current frame.
 
+                long detectStartMillis = SystemClock.elapsedRealtime();
                 try {
-                    mDetector.receiveFrame(outputFrame);
+                    if (mSequencer == null) {
+                        mDetector.receiveFrame(outputFrame);
+                    } else {
+                        detectInOrder(outputFrame);
+                    }
+
+                    long latencyMillis = SystemClock.elapsedRealtime() - detectStartMillis;
+                    mGovernor.onDetectionComplete(latencyMillis);
+                    mMetrics.mProcessed.incrementAndGet();
+                    mMetrics.mDetectorMillis.addAndGet(latencyMillis);
                 } catch (Throwable t) {
                     Log.e(TAG, "Exception thrown from receiver.", t);
+                    if (mSequencer != null) {
+                        mSequencer.skip(frame.mId);
+                    }
                 } finally {
-                    mCamera.addCallbackBuffer(data.array());
+                    if (mScanCrop == null) {
+                        mFrameSource.addCallbackBuffer(frame.mData.array());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Runs detection without the detector's own processor and hands the results to the
+         * sequencer, which delivers them to the shared processor in frame order.
+         */
+        @SuppressWarnings("unchecked")
+        private void detectInOrder(Frame frame) {
+            Detector<Object> detector = (Detector<Object>) mDetector;
+            ResultSequencer<Object> sequencer = (ResultSequencer<Object>) mSequencer;
+
+            SparseArray<Object> items = detector.detect(frame);
+            Frame.Metadata metadata = frame.getMetadata();
+            sequencer.complete(metadata.getId(),
+                    new Detector.Detections<>(items, metadata, detector.isOperational()));
+        }
+
+        /**
+         * Runs the frame gates, if any, counting the frame as skipped if it doesn't pass.  They are
+         * cheap enough to run before the governor, so that the governor's slots go to frames that
+         * are worth detecting on.  The frame's scene change signature is left in mSignature, to be
+         * committed once the governor has admitted the frame.
+         */
+        private boolean passesGates(PendingFrame frame) {
+            byte[] data = frame.mData.array();
+            int width = mPreviewSize.getWidth();
+            if (mSharpnessGate != null) {
+                if (mFocusMoving) {
+                    mMetrics.mSkippedFocusing.incrementAndGet();
+                    return false;
                 }
+                if (!mSharpnessGate.accept(data, width, mGateRegion)) {
+                    mMetrics.mSkippedBlurry.incrementAndGet();
+                    return false;
+                }
+            }
+            if (mSceneChangeGate != null && !mSceneChangeGate.hasChanged(
+                    data, width, mGateRegion, frame.mTimestampMillis, mSignature)) {
+                mMetrics.mSkippedUnchanged.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Copies the scan window out of a full preview frame into the reusable crop buffer.
+         */
+        private ByteBuffer cropFrame(ByteBuffer data, int width, int height, Rect crop) {
+            int size = ScanWindow.croppedSize(crop);
+            if (mCropData == null || mCropData.capacity() != size) {
+                mCropData = ByteBuffer.wrap(new byte[size]);
             }
+            ScanWindow.cropNv21(data.array(), width, height, crop, mCropData.array());
+            return mCropData;
         }
     }
-}
\ No newline at end of file
+}
@@ -27,11 +27,19 @@ import android.view.ViewGroup;
 
 import com.google.android.gms.common.images.Size;
 
-import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class CameraSourcePreview extends ViewGroup {
     private static final String TAG = "CameraSourcePreview";
 
+    /**
+     * How long to hold up the destruction of the preview surface for the camera to stop using it.
+     */
+    private static final long SURFACE_RELEASE_TIMEOUT_MS = 500;
+
     private Context mContext;
     private SurfaceView mSurfaceView;
     private boolean mStartRequested;
@@ -40,6 +48,9 @@ public class CameraSourcePreview extends ViewGroup {
 
     private GraphicOverlay mOverlay;
 
+    private CameraSource.StartCallback mStartCallback;
+    private Future<?> mPendingStop;
+
     public CameraSourcePreview(Context context, AttributeSet attrs) {
         super(context, attrs);
         mContext = context;
@@ -51,8 +62,20 @@ public class CameraSourcePreview extends ViewGroup {
         addView(mSurfaceView);
     }
 
+    /**
+     * Sets a callback to be notified, on the main thread, each time the camera preview has started
+     * or failed to start.
+     */
+    public void setStartCallback(CameraSource.StartCallback callback) {
+        mStartCallback = callback;
+    }
+
+    /**
+     * Starts the camera source as soon as the preview surface is available.  The camera is opened
+     * on the camera source's own thread, so this never blocks.
+     */
     @RequiresPermission(Manifest.permission.CAMERA)
-    public void start(CameraSource cameraSource) throws IOException, SecurityException {
+    public void start(CameraSource cameraSource) throws SecurityException {
         if (cameraSource == null) {
             stop();
         }
@@ -66,43 +89,80 @@ public class CameraSourcePreview extends ViewGroup {
     }
 
     @RequiresPermission(Manifest.permission.CAMERA)
-    public void start(CameraSource cameraSource, GraphicOverlay overlay) throws IOException, SecurityException {
+    public void start(CameraSource cameraSource, GraphicOverlay overlay) throws SecurityException {
         mOverlay = overlay;
         start(cameraSource);
     }
 
+    /**
+     * Stops the camera source on its own thread, without waiting for it.
+     */
     public void stop() {
+        mStartRequested = false;
         if (mCameraSource != null) {
-            mCameraSource.stop();
+            mPendingStop = mCameraSource.stopAsync();
         }
     }
 
+    /**
+     * Releases the camera source on its own thread, without waiting for it.
+     */
     public void release() {
+        mStartRequested = false;
         if (mCameraSource != null) {
-            mCameraSource.release();
+            mPendingStop = mCameraSource.releaseAsync();
             mCameraSource = null;
         }
     }
 
     @RequiresPermission(Manifest.permission.CAMERA)
-    private void startIfReady() throws IOException, SecurityException {
+    private void startIfReady() throws SecurityException {
         if (mStartRequested && mSurfaceAvailable) {
-            mCameraSource.start(mSurfaceView.getHolder());
-            if (mOverlay != null) {
-                Size size = mCameraSource.getPreviewSize();
-                int min = Math.min(size.getWidth(), size.getHeight());
-                int max = Math.max(size.getWidth(), size.getHeight());
-                if (isPortraitMode()) {
-                    // Swap width and height sizes when in portrait, since it will be rotated by
-                    // 90 degrees
-                    mOverlay.setCameraInfo(min, max, mCameraSource.getCameraFacing());
-                } else {
-                    mOverlay.setCameraInfo(max, min, mCameraSource.getCameraFacing());
+            mStartRequested = false;
+            mPendingStop = null;
+            mCameraSource.startAsync(mSurfaceView.getHolder(), new CameraSource.StartCallback() {
+                @Override
+                public void onStarted() {
+                    onCameraStarted();
+                    if (mStartCallback != null) {
+                        mStartCallback.onStarted();
+                    }
+                }
+
+                @Override
+                public void onStartFailed(Exception e) {
+                    Log.e(TAG, "Could not start camera source.", e);
+                    if (mStartCallback != null) {
+                        mStartCallback.onStartFailed(e);
+                    }
                 }
-                mOverlay.clear();
+            });
+        }
+    }
+
+    /**
+     * Sets up the overlay for the size the camera settled on, and lays the preview out again to
+     * match it.
+     */
+    private void onCameraStarted() {
+        if (mCameraSource == null) {
+            return;
+        }
+        if (mOverlay != null) {
+            Size size = mCameraSource.getPreviewSize();
+            int min = Math.min(size.getWidth(), size.getHeight());
+            int max = Math.max(size.getWidth(), size.getHeight());
+            if (isPortraitMode()) {
+                // Swap width and height sizes when in portrait, since it will be rotated by
+                // 90 degrees
+                mOverlay.setCameraInfo(min, max, mCameraSource.getCameraFacing());
+            } else {
+                mOverlay.setCameraInfo(max, min, mCameraSource.getCameraFacing());
             }
-            mStartRequested = false;
+            mOverlay.setScanWindow(mCameraSource.getScanWindow());
+            mOverlay.clear();
         }
+        requestLayout();
     }
 
     private class SurfaceCallback implements SurfaceHolder.Callback {
@@ -113,14 +173,25 @@ public class CameraSourcePreview extends ViewGroup {
                 startIfReady();
             } catch (SecurityException se) {
                 Log.e(TAG,"Do not have permission to start the camera", se);
-            } catch (IOException e) {
-                Log.e(TAG, "Could not start camera source.", e);
             }
         }
 
         @Override
         public void surfaceDestroyed(SurfaceHolder surface) {
             mSurfaceAvailable = false;
+
+            // The camera must be done with the surface before this returns.  Normally the stop
+            // requested in onPause is long finished by now, so this doesn't wait.
+            if (mPendingStop != null) {
+                try {
+                    mPendingStop.get(SURFACE_RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    Log.w(TAG, "Camera still stopping as the preview surface goes away.");
+                } catch (ExecutionException | InterruptedException e) {
+                    Log.e(TAG, "Failed to stop camera source.", e);
+                }
+                mPendingStop = null;
+            }
         }
 
         @Override
@@ -183,8 +254,6 @@ public class CameraSourcePreview extends ViewGroup {
             startIfReady();
         } catch (SecurityException se) {
             Log.e(TAG,"Do not have permission to start the camera", se);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not start camera source.", e);
         }
     }
 
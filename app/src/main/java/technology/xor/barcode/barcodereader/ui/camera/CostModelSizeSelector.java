@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.util.Log;
+
+import com.google.android.gms.common.images.Size;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Preview size selector that estimates the cost of each supported size and picks the cheapest.
+ * <p/>
+ * Detection time grows with the number of pixels handed to the detector, so the largest preview
+ * size (which many devices list first) is rarely the best one for scanning.  Each size is scored
+ * on three things:
+ * <ul>
+ * <li>how far its aspect ratio is from the requested one, which is normally the view's, so
+ * that the preview fills the view without being cropped away;</li>
+ * <li>how its detected pixel count compares with the pixel budget, which is the number of
+ * pixels the detector can get through in the target latency;</li>
+ * <li>whether its short side reaches the minimum resolution, below which the narrowest bars
+ * (modules) of the codes we scan span too few pixels to be decoded reliably.</li>
+ * </ul>
+ * Sizes that are too small are only chosen when no size is large enough.  The chosen size is
+ * logged along with its scores.
+ */
+public class CostModelSizeSelector implements PreviewSizeSelector {
+    private static final String TAG = "CostModelSizeSelector";
+
+    /**
+     * Default detection latency to aim for per frame.
+     */
+    public static final float DEFAULT_TARGET_LATENCY_MILLIS = 50.0f;
+
+    /**
+     * Default detector throughput, roughly what a mid range phone manages on a barcode frame.
+     */
+    public static final float DEFAULT_PIXELS_PER_MILLI = 20000.0f;
+
+    /**
+     * Default minimum short side, enough for dense 1D codes and QR codes filling about half the
+     * frame.
+     */
+    public static final int DEFAULT_MIN_SHORT_SIDE = 480;
+
+    // Relative weights of the scores.  An aspect ratio that is off by 10% costs about as much as
+    // going 20% over the pixel budget.
+    private static final float ASPECT_WEIGHT = 4.0f;
+    private static final float OVER_BUDGET_WEIGHT = 2.0f;
+    private static final float UNDER_BUDGET_WEIGHT = 0.5f;
+    private static final float TOO_SMALL_PENALTY = 100.0f;
+
+    private final float mTargetLatencyMillis;
+    private final float mPixelsPerMilli;
+    private final int mMinShortSide;
+
+    /**
+     * Creates a selector with the default latency target, throughput and minimum size.
+     */
+    public CostModelSizeSelector() {
+        this(DEFAULT_TARGET_LATENCY_MILLIS, DEFAULT_PIXELS_PER_MILLI, DEFAULT_MIN_SHORT_SIDE);
+    }
+
+    /**
+     * Creates a selector.
+     *
+     * @param targetLatencyMillis detection time per frame to aim for
+     * @param pixelsPerMilli      how many pixels the detector processes per millisecond
+     * @param minShortSide        the smallest acceptable length in pixels of the short side of
+     *                            the preview, derived from the module size of the densest codes
+     *                            to be scanned
+     */
+    public CostModelSizeSelector(float targetLatencyMillis, float pixelsPerMilli,
+                                 int minShortSide) {
+        if (targetLatencyMillis <= 0 || pixelsPerMilli <= 0 || minShortSide < 0) {
+            throw new IllegalArgumentException("Invalid cost model: " + targetLatencyMillis
+                    + " ms, " + pixelsPerMilli + " px/ms, " + minShortSide + " px");
+        }
+        mTargetLatencyMillis = targetLatencyMillis;
+        mPixelsPerMilli = pixelsPerMilli;
+        mMinShortSide = minShortSide;
+    }
+
+    @Override
+    public CameraSource.SizePair select(List<CameraSource.SizePair> candidates, int desiredWidth,
+                                        int desiredHeight, float scanWindowArea) {
+        float desiredAspect = aspectRatio(desiredWidth, desiredHeight);
+        float pixelBudget = mTargetLatencyMillis * mPixelsPerMilli;
+
+        CameraSource.SizePair selectedPair = null;
+        float minCost = Float.MAX_VALUE;
+        for (CameraSource.SizePair pair : candidates) {
+            float cost = cost(pair.previewSize(), desiredAspect, pixelBudget, scanWindowArea);
+            if (cost < minCost) {
+                selectedPair = pair;
+                minCost = cost;
+            }
+        }
+
+        if (selectedPair != null) {
+            Size size = selectedPair.previewSize();
+            float detectedPixels = size.getWidth() * size.getHeight() * scanWindowArea;
+            Log.i(TAG, String.format(Locale.US,
+                    "Selected %dx%d of %d sizes: aspect %.2f (wanted %.2f), %.2f MP detected"
+                            + " of %.2f MP budget, short side %d (min %d), cost %.2f",
+                    size.getWidth(), size.getHeight(), candidates.size(),
+                    aspectRatio(size.getWidth(), size.getHeight()), desiredAspect,
+                    detectedPixels / 1e6f, pixelBudget / 1e6f,
+                    Math.min(size.getWidth(), size.getHeight()), mMinShortSide, minCost));
+        }
+        return selectedPair;
+    }
+
+    /**
+     * Scores a preview size; lower is better.
+     */
+    private float cost(Size size, float desiredAspect, float pixelBudget, float scanWindowArea) {
+        // Compare aspect ratios on a log scale, so that being too wide costs the same as being
+        // equally too narrow.
+        float aspect = aspectRatio(size.getWidth(), size.getHeight());
+        float cost = ASPECT_WEIGHT * Math.abs((float) Math.log(aspect / desiredAspect));
+
+        // Going over the budget costs frame rate.  Staying under it is fine, but among sizes
+        // within budget the larger ones resolve more detail, so they win.
+        float load = size.getWidth() * size.getHeight() * scanWindowArea / pixelBudget;
+        if (load > 1) {
+            cost += OVER_BUDGET_WEIGHT * (load - 1);
+        } else {
+            cost += UNDER_BUDGET_WEIGHT * (1 - load);
+        }
+
+        int shortSide = Math.min(size.getWidth(), size.getHeight());
+        if (shortSide < mMinShortSide) {
+            cost += TOO_SMALL_PENALTY * (1 + (float) (mMinShortSide - shortSide) / mMinShortSide);
+        }
+        return cost;
+    }
+
+    /**
+     * Returns the aspect ratio as long side over short side, so that sizes compare the same in
+     * either orientation.
+     */
+    private static float aspectRatio(int width, int height) {
+        return (float) Math.max(width, height) / Math.min(width, height);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+/**
+ * Decides which preview frames are worth submitting to the detector, based on how long detection
+ * has recently been taking.
+ * <p/>
+ * The governor keeps a moving average of detector latency and leaves the detector idle after each
+ * detection for long enough that it is busy for at most the configured duty cycle.  If detection
+ * gets slower, frames are submitted less often; as soon as it speeds up again, the rate goes back
+ * up.  With a duty cycle of 1 the detector runs back to back, which is the behavior without a
+ * governor.
+ * <p/>
+ * Independently of the rate, frames that have been waiting longer than the freshness deadline are
+ * dropped, since their results would be out of date by the time they were delivered.
+ * <p/>
+ * Only used from the frame processing thread.
+ */
+final class DetectionGovernor {
+    static final int SUBMIT = 0;
+    static final int DROP_STALE = 1;
+    static final int DROP_THROTTLED = 2;
+
+    /**
+     * Weight of the most recent sample in the latency moving average.
+     */
+    private static final float LATENCY_SMOOTHING = 0.2f;
+
+    private final float mMaxDutyCycle;
+    private final long mFreshnessDeadlineMillis;
+
+    private float mLatencyMillis = -1;
+    private long mLastSubmitMillis = Long.MIN_VALUE;
+    private long mLastDoneMillis = Long.MIN_VALUE;
+
+    DetectionGovernor(float maxDutyCycle, long freshnessDeadlineMillis) {
+        if (maxDutyCycle <= 0 || maxDutyCycle > 1) {
+            throw new IllegalArgumentException("Invalid duty cycle: " + maxDutyCycle);
+        }
+        if (freshnessDeadlineMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid freshness deadline: " + freshnessDeadlineMillis);
+        }
+        mMaxDutyCycle = maxDutyCycle;
+        mFreshnessDeadlineMillis = freshnessDeadlineMillis;
+    }
+
+    /**
+     * Decides what to do with a frame that is about to be processed.
+     *
+     * @param frameMillis time the frame was received from the camera
+     * @param nowMillis   current time, on the same clock
+     * @return {@link #SUBMIT}, {@link #DROP_STALE} or {@link #DROP_THROTTLED}
+     */
+    int admit(long frameMillis, long nowMillis) {
+        if (nowMillis - frameMillis > mFreshnessDeadlineMillis) {
+            return DROP_STALE;
+        }
+        if (mLastDoneMillis != Long.MIN_VALUE
+                && nowMillis - mLastDoneMillis < idleIntervalMillis()) {
+            return DROP_THROTTLED;
+        }
+        mLastSubmitMillis = nowMillis;
+        return SUBMIT;
+    }
+
+    /**
+     * Records how long the detector took on the most recently submitted frame.
+     */
+    void onDetectionComplete(long latencyMillis) {
+        mLastDoneMillis = mLastSubmitMillis + latencyMillis;
+        if (mLatencyMillis < 0) {
+            mLatencyMillis = latencyMillis;
+        } else {
+            mLatencyMillis += LATENCY_SMOOTHING * (latencyMillis - mLatencyMillis);
+        }
+    }
+
+    /**
+     * Returns the minimum time between the end of a detection and the start of the next one.
+     * Measuring from the end rather than the start means that a detection which happens to be
+     * faster than the average doesn't hold back the next frame when the duty cycle is 1.
+     */
+    long idleIntervalMillis() {
+        if (mLatencyMillis < 0) {
+            return 0;
+        }
+        return (long) (mLatencyMillis * (1 - mMaxDutyCycle) / mMaxDutyCycle);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import com.google.android.gms.vision.Detector;
+
+/**
+ * Creates additional detector instances for the detection workers of a {@link CameraSource}.
+ * Each worker owns its detector, so detectors are never called from more than one thread.
+ */
+public interface DetectorFactory<T> {
+    /**
+     * Returns a new detector, configured the same way as the camera source's own detector.
+     */
+    Detector<T> create();
+}
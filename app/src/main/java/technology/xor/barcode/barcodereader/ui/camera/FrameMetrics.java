@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing what happened to the preview frames received by a {@link CameraSource}.
+ * Every received frame ends up either processed by the detector or counted under exactly one of
+ * the drop or skip reasons.  Counters are cumulative over the lifetime of the camera source.
+ */
+public final class FrameMetrics {
+    final AtomicLong mReceived = new AtomicLong();
+    final AtomicLong mProcessed = new AtomicLong();
+    final AtomicLong mDroppedHandoff = new AtomicLong();
+    final AtomicLong mDroppedStale = new AtomicLong();
+    final AtomicLong mDroppedThrottled = new AtomicLong();
+    final AtomicLong mSkippedFocusing = new AtomicLong();
+    final AtomicLong mSkippedBlurry = new AtomicLong();
+    final AtomicLong mSkippedUnchanged = new AtomicLong();
+    final AtomicLong mDetectorMillis = new AtomicLong();
+
+    FrameMetrics() {
+    }
+
+    /**
+     * Returns the number of frames received from the camera.
+     */
+    public long getReceivedCount() {
+        return mReceived.get();
+    }
+
+    /**
+     * Returns the number of frames passed to the detector.
+     */
+    public long getProcessedCount() {
+        return mProcessed.get();
+    }
+
+    /**
+     * Returns the number of frames replaced or rejected by the frame handoff queue before the
+     * processing thread got to them.
+     */
+    public long getDroppedHandoffCount() {
+        return mDroppedHandoff.get();
+    }
+
+    /**
+     * Returns the number of frames dropped for being older than the freshness deadline.
+     */
+    public long getDroppedStaleCount() {
+        return mDroppedStale.get();
+    }
+
+    /**
+     * Returns the number of frames skipped to keep the detector within its duty cycle.
+     */
+    public long getDroppedThrottledCount() {
+        return mDroppedThrottled.get();
+    }
+
+    /**
+     * Returns the number of frames skipped by the sharpness gate because autofocus was moving.
+     */
+    public long getSkippedFocusingCount() {
+        return mSkippedFocusing.get();
+    }
+
+    /**
+     * Returns the number of frames skipped by the sharpness gate for being too blurred.
+     */
+    public long getSkippedBlurryCount() {
+        return mSkippedBlurry.get();
+    }
+
+    /**
+     * Returns the number of frames skipped by the scene change gate for showing an unchanged
+     * scene.
+     */
+    public long getSkippedUnchangedCount() {
+        return mSkippedUnchanged.get();
+    }
+
+    /**
+     * Returns the average time, in milliseconds, the detector spent on a processed frame.
+     */
+    public float getAverageDetectorMillis() {
+        long processed = mProcessed.get();
+        return processed == 0 ? 0 : (float) mDetectorMillis.get() / processed;
+    }
+
+    @Override
+    public String toString() {
+        return "received=" + getReceivedCount()
+                + " processed=" + getProcessedCount()
+                + " droppedHandoff=" + getDroppedHandoffCount()
+                + " droppedStale=" + getDroppedStaleCount()
+                + " droppedThrottled=" + getDroppedThrottledCount()
+                + " skippedFocusing=" + getSkippedFocusingCount()
+                + " skippedBlurry=" + getSkippedBlurryCount()
+                + " skippedUnchanged=" + getSkippedUnchangedCount()
+                + " avgDetectorMillis=" + getAverageDetectorMillis();
+    }
+}
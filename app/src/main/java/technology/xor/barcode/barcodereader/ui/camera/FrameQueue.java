@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free handoff of frames between exactly one producer thread (the camera preview callback)
+ * and exactly one consumer thread (the frame processing loop).
+ * <p/>
+ * Two policies are supported:
+ * <ul>
+ * <li>{@link #POLICY_LATEST}: a single slot which always holds the most recent frame.  A frame
+ * that is replaced before the consumer gets to it is handed back to the producer.</li>
+ * <li>{@link #POLICY_FIFO}: a bounded ring of frames consumed in arrival order.  When the ring is
+ * full, the incoming frame is handed straight back to the producer.</li>
+ * </ul>
+ * In both cases any frame returned from {@link #offer(Object)} is no longer referenced by the
+ * queue, so its buffer can be given back to the camera immediately.
+ * <p/>
+ * The consumer blocks in {@link #take()} by parking rather than waiting on a monitor, and the
+ * producer only pays for an unpark when the consumer is actually parked.
+ */
+final class FrameQueue<T> {
+    static final int POLICY_LATEST = 0;
+    static final int POLICY_FIFO = 1;
+
+    private final int mPolicy;
+    private final int mCapacity;
+
+    // Latest-only policy.
+    private final AtomicReference<T> mSlot = new AtomicReference<>();
+
+    // FIFO policy.  mTail is only written by the producer and mHead only by the consumer.
+    private final AtomicReferenceArray<T> mRing;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile boolean mActive = true;
+    private volatile boolean mParked;
+    private volatile Thread mConsumer;
+
+    FrameQueue(int policy, int capacity) {
+        if (policy != POLICY_LATEST && policy != POLICY_FIFO) {
+            throw new IllegalArgumentException("Invalid frame queue policy: " + policy);
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid frame queue capacity: " + capacity);
+        }
+        mPolicy = policy;
+        mCapacity = (policy == POLICY_LATEST) ? 1 : capacity;
+        mRing = (policy == POLICY_FIFO) ? new AtomicReferenceArray<T>(mCapacity) : null;
+    }
+
+    /**
+     * Returns the maximum number of frames that can be pending at once.
+     */
+    int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Publishes a frame to the consumer.  Must only be called from the producer thread.
+     *
+     * @return a frame that the queue no longer holds (the replaced frame for the latest-only
+     * policy, or the rejected frame itself when the FIFO ring is full), or null
+     */
+    T offer(T item) {
+        T displaced;
+        if (mPolicy == POLICY_LATEST) {
+            displaced = mSlot.getAndSet(item);
+        } else {
+            long tail = mTail.get();
+            if (tail - mHead.get() >= mCapacity) {
+                return item;
+            }
+            mRing.lazySet((int) (tail % mCapacity), item);
+            // A full volatile store, so that it can't be reordered with the read of mParked below.
+            mTail.set(tail + 1);
+            displaced = null;
+        }
+
+        // Pairs with the store to mParked in take(): either the consumer sees the new frame on its
+        // re-check, or we see that it is parked and wake it.
+        if (mParked) {
+            LockSupport.unpark(mConsumer);
+        }
+        return displaced;
+    }
+
+    /**
+     * Removes the next frame without blocking.  Must only be called from the consumer thread.
+     *
+     * @return the next frame, or null if none is pending
+     */
+    T poll() {
+        if (mPolicy == POLICY_LATEST) {
+            return mSlot.getAndSet(null);
+        }
+
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        int index = (int) (head % mCapacity);
+        T item = mRing.get(index);
+        mRing.lazySet(index, null);
+        mHead.lazySet(head + 1);
+        return item;
+    }
+
+    /**
+     * Removes the next frame, parking the consumer thread until one is available.  Must only be
+     * called from the consumer thread.
+     *
+     * @return the next frame, or null once the queue has been deactivated or the consumer thread
+     * was interrupted
+     */
+    T take() {
+        mConsumer = Thread.currentThread();
+        while (mActive) {
+            T item = poll();
+            if (item != null) {
+                return item;
+            }
+
+            mParked = true;
+            item = poll();
+            if (item != null || !mActive) {
+                mParked = false;
+                return item;
+            }
+            LockSupport.park(this);
+            mParked = false;
+
+            if (Thread.interrupted()) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks the queue as active/not active.  Deactivating wakes a parked consumer so that it can
+     * observe the change.
+     */
+    void setActive(boolean active) {
+        mActive = active;
+        if (!active) {
+            Thread consumer = mConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Drops any pending frames.  Only safe to call once the consumer thread has exited.
+     */
+    void clear() {
+        while (poll() != null) {
+            // Keep draining.
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the raw NV21 frames seen by a {@link CameraSource} to a file, so that they can be
+ * replayed later with {@link RecordedFrameSource}, e.g. to reproduce a field performance problem
+ * or to benchmark detection without a camera.
+ * <p/>
+ * The file starts with a header holding a magic number, format version, frame width, height and
+ * rotation, all big-endian ints.  Each frame follows as its timestamp in milliseconds (long), its
+ * length in bytes (int) and the NV21 image data.
+ * <p/>
+ * Frames are written on the thread delivering them from the camera, before they are handed to
+ * detection, so recording slows the whole frame pipeline down; it is meant for capturing test
+ * traffic, not for production use.
+ */
+public final class FrameRecorder {
+    static final int MAGIC = 0x4e563231; // "NV21"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 5 * 4;
+    static final int FRAME_HEADER_SIZE = 8 + 4;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE);
+
+    private boolean mHeaderWritten;
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * Creates a recorder writing to the given file, replacing any previous contents.
+     */
+    public FrameRecorder(File file) throws IOException {
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+    }
+
+    /**
+     * Appends one frame.  All frames of a recording must have the same size and rotation.
+     */
+    synchronized void record(byte[] data, int width, int height, int rotation,
+                             long timestampMillis) throws IOException {
+        if (!mHeaderWritten) {
+            mHeader.clear();
+            mHeader.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(rotation);
+            mHeader.flip();
+            writeFully(mHeader);
+            mWidth = width;
+            mHeight = height;
+            mHeaderWritten = true;
+        } else if (width != mWidth || height != mHeight) {
+            throw new IOException("Frame size changed during recording.");
+        }
+
+        int length = width * height * 3 / 2;
+        mHeader.clear();
+        mHeader.putLong(timestampMillis).putInt(length);
+        mHeader.flip();
+        writeFully(mHeader);
+        writeFully(ByteBuffer.wrap(data, 0, length));
+    }
+
+    /**
+     * Finishes the recording.
+     */
+    public synchronized void close() throws IOException {
+        mStream.close();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import java.io.IOException;
+
+/**
+ * A stream of NV21 preview frames which a {@link CameraSource} runs detection on.  Normally this
+ * is the device camera, but any source that follows the same buffer contract can be plugged in
+ * with {@link CameraSource.Builder#setFrameSource(FrameSource)}, e.g. a
+ * {@link RecordedFrameSource} replaying frames captured earlier with a {@link FrameRecorder}.
+ * <p/>
+ * The buffer contract is the one of {@code Camera.addCallbackBuffer}: the consumer hands empty
+ * buffers to the source, the source fills one per frame and passes it to the callback, and the
+ * consumer gives the buffer back with {@link #addCallbackBuffer(byte[])} once it is done with it.
+ * If the source has no empty buffer when a frame is ready, it drops the frame or waits.
+ */
+public interface FrameSource {
+    /**
+     * Receives frames from a frame source.
+     */
+    interface FrameCallback {
+        /**
+         * Called with a buffer previously passed to {@link #addCallbackBuffer(byte[])}, now
+         * holding a new frame.
+         */
+        void onFrame(byte[] data);
+    }
+
+    /**
+     * Returns the width in pixels of the frames, as stored (i.e., before rotation).
+     */
+    int getFrameWidth();
+
+    /**
+     * Returns the height in pixels of the frames, as stored (i.e., before rotation).
+     */
+    int getFrameHeight();
+
+    /**
+     * Returns the rotation needed to bring the frames upright, as one of the rotation constants of
+     * {@link com.google.android.gms.vision.Frame}.
+     */
+    int getRotation();
+
+    /**
+     * Adds an empty buffer for the source to fill with a frame.
+     */
+    void addCallbackBuffer(byte[] buffer);
+
+    /**
+     * Starts delivering frames to the callback.
+     *
+     * @throws IOException if the underlying frames could not be read
+     */
+    void start(FrameCallback callback) throws IOException;
+
+    /**
+     * Stops delivering frames.  When this returns the callback will no longer be called, and the
+     * source no longer holds on to any of the buffers it was given.
+     */
+    void stop();
+}
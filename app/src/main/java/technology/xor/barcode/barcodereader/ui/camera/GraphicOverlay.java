@@ -18,15 +18,19 @@ package technology.xor.barcode.barcodereader.ui.camera;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.AttributeSet;
+import android.view.SurfaceView;
 import android.view.View;
 
 import com.google.android.gms.vision.CameraSource;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-import java.util.Vector;
 
 /**
  * A view which renders a series of custom graphics to be overlayed on top of an associated preview
@@ -45,16 +49,40 @@ import java.util.Vector;
  * <li>{@link Graphic#translateX(float)} and {@link Graphic#translateY(float)} adjust the coordinate
  * from the preview's coordinate system to the view coordinate system.</li>
  * </ol>
+ *
+ * If detection is restricted to a scan window (see {@link #setScanWindow(Rect)}), the window is
+ * outlined on the overlay, and the translate methods also shift detection coordinates from the
+ * window back into the full preview.<p>
+ *
+ * The graphics are published to the drawing code as an immutable snapshot array, which is replaced
+ * whenever a graphic is added or removed.  Drawing never takes the lock, so the detector thread
+ * adding and removing graphics is never held up by a frame being drawn, and drawing a frame does
+ * not allocate.<p>
+ *
+ * Optionally (see {@link #setRenderSurface(SurfaceView)}), the graphics can be drawn into a
+ * separate transparent surface from a render thread, rather than by this view on the UI thread.
  */
 public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
+    private static final Graphic[] NO_GRAPHICS = new Graphic[0];
+
     private final Object mLock = new Object();
-    private int mPreviewWidth;
+    private volatile int mPreviewWidth;
     private float mWidthScaleFactor = 1.0f;
-    private int mPreviewHeight;
+    private volatile int mPreviewHeight;
     private float mHeightScaleFactor = 1.0f;
-    private int mFacing = CameraSource.CAMERA_FACING_BACK;
-    private Set<T> mGraphics = new HashSet<>();
-    private T mFirstGraphic;
+    private volatile int mFacing = CameraSource.CAMERA_FACING_BACK;
+
+    /**
+     * The graphics currently shown.  The array is never modified once published; writers replace
+     * it while holding mLock.
+     */
+    private volatile Graphic[] mGraphics = NO_GRAPHICS;
+
+    private volatile Rect mScanWindow;
+    private final Paint mScanWindowPaint;
+
+    // Draws the graphics off the UI thread, if a render surface is set.
+    private volatile OverlayRenderer mRenderer;
 
     /**
      * Base class for a custom graphics object to be rendered within the graphic overlay.  Subclass
@@ -102,6 +130,10 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
          * system.
          */
         public float translateX(float x) {
+            Rect window = mOverlay.mScanWindow;
+            if (window != null) {
+                x += window.left;
+            }
             if (mOverlay.mFacing == CameraSource.CAMERA_FACING_FRONT) {
                 return mOverlay.getWidth() - scaleX(x);
             } else {
@@ -114,6 +146,10 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
          * system.
          */
         public float translateY(float y) {
+            Rect window = mOverlay.mScanWindow;
+            if (window != null) {
+                y += window.top;
+            }
             return scaleY(y);
         }
 
@@ -124,6 +160,11 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
 
     public GraphicOverlay(Context context, AttributeSet attrs) {
         super(context, attrs);
+
+        mScanWindowPaint = new Paint();
+        mScanWindowPaint.setColor(Color.WHITE);
+        mScanWindowPaint.setStyle(Paint.Style.STROKE);
+        mScanWindowPaint.setStrokeWidth(2.0f);
     }
 
     /**
@@ -131,20 +172,22 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
      */
     public void clear() {
         synchronized (mLock) {
-            mGraphics.clear();
-            mFirstGraphic = null;
+            mGraphics = NO_GRAPHICS;
         }
         postInvalidate();
     }
 
     /**
-     * Adds a graphic to the overlay.
+     * Adds a graphic to the overlay.  Adding a graphic which is already shown only triggers a
+     * redraw.
      */
     public void add(T graphic) {
         synchronized (mLock) {
-            mGraphics.add(graphic);
-            if (mFirstGraphic == null) {
-                mFirstGraphic = graphic;
+            Graphic[] graphics = mGraphics;
+            if (indexOf(graphics, graphic) < 0) {
+                Graphic[] updated = Arrays.copyOf(graphics, graphics.length + 1);
+                updated[graphics.length] = graphic;
+                mGraphics = updated;
             }
         }
         postInvalidate();
@@ -155,23 +198,37 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
      */
     public void remove(T graphic) {
         synchronized (mLock) {
-            mGraphics.remove(graphic);
-            if (mFirstGraphic != null && mFirstGraphic.equals(graphic)) {
-                mFirstGraphic = null;
+            Graphic[] graphics = mGraphics;
+            int index = indexOf(graphics, graphic);
+            if (index >= 0) {
+                Graphic[] updated = new Graphic[graphics.length - 1];
+                System.arraycopy(graphics, 0, updated, 0, index);
+                System.arraycopy(graphics, index + 1, updated, index, updated.length - index);
+                mGraphics = updated;
             }
         }
         postInvalidate();
     }
 
     /**
-     * Returns a copy (as a list) of the set of all active graphics.
-     * @return list of all active graphics.
+     * Replaces all graphics on the overlay at once, triggering a single redraw.
      */
-    public List<T> getGraphics() {
+    public void setGraphics(Collection<? extends T> graphics) {
+        Graphic[] snapshot = graphics.toArray(new Graphic[graphics.size()]);
         synchronized (mLock) {
-            //noinspection unchecked
-            return new Vector(mGraphics);
+            mGraphics = snapshot;
         }
+        postInvalidate();
+    }
+
+    /**
+     * Returns the active graphics at the time of the call.  The returned list is an unmodifiable
+     * view of a snapshot, so it is not affected by graphics added or removed afterwards.
+     * @return list of all active graphics.
+     */
+    public List<T> getGraphics() {
+        //noinspection unchecked
+        return Collections.unmodifiableList(Arrays.asList((T[]) mGraphics));
     }
 
     /**
@@ -188,21 +245,96 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
     }
 
     /**
-     * Draws the overlay with its associated graphic objects.
+     * Sets the region of the preview that detection is restricted to, in preview coordinates, or
+     * null for the whole preview.  Detection coordinates passed to the graphics are taken to be
+     * relative to this region.
+     */
+    public void setScanWindow(Rect scanWindow) {
+        synchronized (mLock) {
+            mScanWindow = scanWindow;
+        }
+        postInvalidate();
+    }
+
+    /**
+     * Makes the graphics render into the given surface from a dedicated render thread, rather
+     * than into this view from the UI thread, or switches back to drawing in this view if null.
+     * The surface view should be laid out over the preview exactly like this view.  Must be
+     * called on the UI thread.
+     */
+    public void setRenderSurface(SurfaceView surface) {
+        if (mRenderer != null) {
+            mRenderer.release();
+            mRenderer = null;
+        }
+        if (surface != null) {
+            mRenderer = new OverlayRenderer(this, surface);
+        }
+        invalidate();
+    }
+
+    /**
+     * Triggers a redraw of the graphics, either of this view or of the render surface if one is
+     * set.  May be called from any thread.
+     */
+    @Override
+    public void postInvalidate() {
+        OverlayRenderer renderer = mRenderer;
+        if (renderer != null) {
+            renderer.requestRender();
+        } else {
+            super.postInvalidate();
+        }
+    }
+
+    /**
+     * Draws the overlay with its associated graphic objects, unless they are rendered into a
+     * separate surface.
      */
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        if (mRenderer == null) {
+            drawOverlay(canvas);
+        }
+    }
 
-        synchronized (mLock) {
-            if ((mPreviewWidth != 0) && (mPreviewHeight != 0)) {
-                mWidthScaleFactor = (float) canvas.getWidth() / (float) mPreviewWidth;
-                mHeightScaleFactor = (float) canvas.getHeight() / (float) mPreviewHeight;
-            }
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mRenderer != null) {
+            mRenderer.release();
+            mRenderer = null;
+        }
+    }
+
+    /**
+     * Draws the scan window and the graphics on the given canvas, which must have the same size
+     * as this view.  Called from onDraw or from the render thread.
+     */
+    void drawOverlay(Canvas canvas) {
+        int previewWidth = mPreviewWidth;
+        int previewHeight = mPreviewHeight;
+        if ((previewWidth != 0) && (previewHeight != 0)) {
+            mWidthScaleFactor = (float) canvas.getWidth() / (float) previewWidth;
+            mHeightScaleFactor = (float) canvas.getHeight() / (float) previewHeight;
+        }
 
-            for (Graphic graphic : mGraphics) {
-                graphic.draw(canvas);
+        Rect window = mScanWindow;
+        if (window != null) {
+            float left = window.left * mWidthScaleFactor;
+            float right = window.right * mWidthScaleFactor;
+            if (mFacing == CameraSource.CAMERA_FACING_FRONT) {
+                float mirroredLeft = getWidth() - right;
+                right = getWidth() - left;
+                left = mirroredLeft;
             }
+            canvas.drawRect(left, window.top * mHeightScaleFactor,
+                    right, window.bottom * mHeightScaleFactor, mScanWindowPaint);
+        }
+
+        for (Graphic graphic : mGraphics) {
+            graphic.draw(canvas);
         }
     }
 
@@ -219,4 +351,13 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
     public float getHeightScaleFactor() {
         return mHeightScaleFactor;
     }
+
+    private static int indexOf(Graphic[] graphics, Graphic graphic) {
+        for (int i = 0; i < graphics.length; i++) {
+            if (graphics[i] == graphic) {
+                return i;
+            }
+        }
+        return -1;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.Trace;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Draws the graphics of a {@link GraphicOverlay} into a transparent surface of its own, from a
+ * dedicated render thread, instead of from the overlay's onDraw on the UI thread.
+ * <p/>
+ * Redraw requests from any thread are coalesced, and the actual drawing is paced by the render
+ * thread's {@link Choreographer}, so the overlay is drawn at most once per display frame.  The time
+ * spent rendering is logged periodically and marked as a trace section, so that overlay work can
+ * be told apart from the rest of the app's UI work.
+ */
+final class OverlayRenderer implements SurfaceHolder.Callback, Choreographer.FrameCallback {
+    private static final String TAG = "OverlayRenderer";
+    private static final String TRACE_SECTION = "OverlayRender";
+
+    /**
+     * Number of rendered frames between two timing log messages.
+     */
+    private static final int LOG_INTERVAL_FRAMES = 300;
+
+    private final GraphicOverlay<?> mOverlay;
+    private final SurfaceHolder mHolder;
+    private final HandlerThread mRenderThread;
+    private final Handler mRenderHandler;
+
+    // Set when a redraw has been requested but not yet started.
+    private final AtomicBoolean mFrameRequested = new AtomicBoolean();
+
+    // Guards the surface against being destroyed while a frame is drawn into it.
+    private final Object mSurfaceLock = new Object();
+    private boolean mHasSurface;
+
+    // Only used on the render thread.
+    private Choreographer mChoreographer;
+    private int mFrameCount;
+    private long mTotalRenderNanos;
+    private long mMaxRenderNanos;
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (mChoreographer == null) {
+                mChoreographer = Choreographer.getInstance();
+            }
+            mChoreographer.postFrameCallback(OverlayRenderer.this);
+        }
+    };
+
+    OverlayRenderer(GraphicOverlay<?> overlay, SurfaceView surfaceView) {
+        mOverlay = overlay;
+
+        // Composited over the camera preview surface, but under the window.
+        surfaceView.setZOrderMediaOverlay(true);
+        mHolder = surfaceView.getHolder();
+        mHolder.setFormat(PixelFormat.TRANSLUCENT);
+
+        mRenderThread = new HandlerThread("OverlayRenderer", Process.THREAD_PRIORITY_DISPLAY);
+        mRenderThread.start();
+        mRenderHandler = new Handler(mRenderThread.getLooper());
+
+        mHolder.addCallback(this);
+    }
+
+    /**
+     * Asks for the overlay to be redrawn on the next display frame.  May be called from any
+     * thread.
+     */
+    void requestRender() {
+        if (mFrameRequested.compareAndSet(false, true)) {
+            mRenderHandler.post(mScheduleFrame);
+        }
+    }
+
+    /**
+     * Stops rendering and finishes the render thread.  The surface itself belongs to its view and
+     * is left alone.
+     */
+    void release() {
+        mHolder.removeCallback(this);
+        synchronized (mSurfaceLock) {
+            mHasSurface = false;
+        }
+        mRenderThread.quitSafely();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Cleared first, so that requests made while drawing get a frame of their own.
+        mFrameRequested.set(false);
+
+        synchronized (mSurfaceLock) {
+            if (!mHasSurface) {
+                return;
+            }
+
+            long startNanos = System.nanoTime();
+            Trace.beginSection(TRACE_SECTION);
+            try {
+                Canvas canvas = mHolder.lockHardwareCanvas();
+                if (canvas == null) {
+                    return;
+                }
+                try {
+                    canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                    mOverlay.drawOverlay(canvas);
+                } finally {
+                    mHolder.unlockCanvasAndPost(canvas);
+                }
+            } finally {
+                Trace.endSection();
+            }
+            recordRenderTime(System.nanoTime() - startNanos);
+        }
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        synchronized (mSurfaceLock) {
+            mHasSurface = true;
+        }
+        requestRender();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        requestRender();
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        // Once this returns, the render thread won't touch the surface anymore.
+        synchronized (mSurfaceLock) {
+            mHasSurface = false;
+        }
+    }
+
+    private void recordRenderTime(long renderNanos) {
+        mFrameCount++;
+        mTotalRenderNanos += renderNanos;
+        mMaxRenderNanos = Math.max(mMaxRenderNanos, renderNanos);
+
+        if (mFrameCount == LOG_INTERVAL_FRAMES) {
+            Log.d(TAG, "Rendered " + mFrameCount + " frames, avg "
+                    + (mTotalRenderNanos / mFrameCount / 1000) + " us, max "
+                    + (mMaxRenderNanos / 1000) + " us");
+            mFrameCount = 0;
+            mTotalRenderNanos = 0;
+            mMaxRenderNanos = 0;
+        }
+    }
+}
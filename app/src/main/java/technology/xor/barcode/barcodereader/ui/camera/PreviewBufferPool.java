@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process-wide pool of camera preview buffers, keyed by buffer size.
+ * <p/>
+ * Preview buffers are several megabytes each, so allocating a fresh set every time the camera is
+ * started (i.e., on every resume of the scanning activity) causes a large allocation burst and a
+ * garbage collection right when the preview is coming up.  Instead, {@link CameraSource} returns
+ * its buffers here when it is stopped and takes them back out when it is started again.
+ * <p/>
+ * The pool listens for memory pressure and gives up its idle buffers when the system asks for
+ * memory back.  Simply hiding the UI is not treated as memory pressure, since that is exactly the
+ * pause/resume case the pool is meant for.
+ */
+final class PreviewBufferPool implements ComponentCallbacks2 {
+    private static final String TAG = "PreviewBufferPool";
+
+    private static PreviewBufferPool sInstance;
+
+    // Guarded by this
+    private final Map<Integer, ArrayDeque<byte[]>> mFreeBuffers = new HashMap<>();
+    private long mRetainedBytes;
+    private final long mMaxRetainedBytes;
+
+    private PreviewBufferPool(long maxRetainedBytes) {
+        mMaxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * Returns the shared pool, creating it and registering it for memory pressure callbacks on
+     * first use.
+     */
+    static synchronized PreviewBufferPool getInstance(Context context) {
+        if (sInstance == null) {
+            // Never hold on to more than a quarter of the heap in idle preview buffers.
+            sInstance = new PreviewBufferPool(Runtime.getRuntime().maxMemory() / 4);
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns an idle buffer of exactly the requested size, or a newly allocated one if there is
+     * none.
+     */
+    synchronized byte[] acquire(int size) {
+        ArrayDeque<byte[]> buffers = mFreeBuffers.get(size);
+        if (buffers != null && !buffers.isEmpty()) {
+            mRetainedBytes -= size;
+            return buffers.pop();
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Returns a buffer to the pool.  The caller must not use the buffer afterwards.
+     */
+    synchronized void recycle(byte[] buffer) {
+        if (mRetainedBytes + buffer.length > mMaxRetainedBytes) {
+            // Let it be collected instead.
+            return;
+        }
+
+        ArrayDeque<byte[]> buffers = mFreeBuffers.get(buffer.length);
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            mFreeBuffers.put(buffer.length, buffers);
+        }
+        buffers.push(buffer);
+        mRetainedBytes += buffer.length;
+    }
+
+    /**
+     * Drops idle buffers until no more than the given number of bytes are retained.
+     */
+    synchronized void trimTo(long maxBytes) {
+        Iterator<ArrayDeque<byte[]>> it = mFreeBuffers.values().iterator();
+        while (mRetainedBytes > maxBytes && it.hasNext()) {
+            ArrayDeque<byte[]> buffers = it.next();
+            while (mRetainedBytes > maxBytes && !buffers.isEmpty()) {
+                mRetainedBytes -= buffers.pop().length;
+            }
+            if (buffers.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            Log.d(TAG, "Releasing all idle preview buffers, trim level " + level);
+            trimTo(0);
+        } else if (level == TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (this) {
+                trimTo(mRetainedBytes / 2);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        trimTo(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
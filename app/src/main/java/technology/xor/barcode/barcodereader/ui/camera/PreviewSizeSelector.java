@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import java.util.List;
+
+/**
+ * Chooses the camera preview size, out of the sizes the camera supports.  See
+ * {@link CameraSource.Builder#setPreviewSizeSelector(PreviewSizeSelector)}.
+ */
+public interface PreviewSizeSelector {
+    /**
+     * Returns the preview and picture size pair to use.
+     *
+     * @param candidates     the supported preview sizes, each paired with a picture size of the
+     *                       same aspect ratio (if there is one); never empty
+     * @param desiredWidth   the requested preview width, see
+     *                       {@link CameraSource.Builder#setRequestedPreviewSize(int, int)}
+     * @param desiredHeight  the requested preview height
+     * @param scanWindowArea the fraction of each frame that is handed to the detector, 1 if there
+     *                       is no scan window
+     */
+    CameraSource.SizePair select(List<CameraSource.SizePair> candidates, int desiredWidth,
+                                 int desiredHeight, float scanWindowArea);
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame source replaying a recording made by {@link FrameRecorder}.  The recording is memory
+ * mapped, so frames are copied straight from the page cache into the consumer's buffers.
+ * <p/>
+ * Frames can be replayed with their recorded timing, or as fast as the consumer hands buffers
+ * back, which measures the throughput of the processing pipeline itself.  Unlike the camera,
+ * this source waits for a free buffer rather than dropping frames, so every recorded frame is
+ * delivered.
+ */
+public final class RecordedFrameSource implements FrameSource {
+    private static final String TAG = "RecordedFrameSource";
+
+    private final MappedByteBuffer mRecording;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final int mFirstFrameOffset;
+    private final boolean mRealTime;
+    private final boolean mLoop;
+
+    private final BlockingQueue<byte[]> mFreeBuffers = new LinkedBlockingQueue<>();
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    /**
+     * Maps a recording for replay.
+     *
+     * @param file     recording made by {@link FrameRecorder}
+     * @param realTime true to keep the recorded spacing between frames, false to replay as fast
+     *                 as possible
+     * @param loop     true to start over at the end of the recording, false to stop
+     * @throws IOException if the file could not be mapped or is not a frame recording
+     */
+    public RecordedFrameSource(File file, boolean realTime, boolean loop) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Recording too large to map: " + channel.size());
+            }
+            mRecording = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+
+        if (mRecording.remaining() < FrameRecorder.HEADER_SIZE
+                || mRecording.getInt(0) != FrameRecorder.MAGIC) {
+            throw new IOException("Not a frame recording: " + file);
+        }
+        if (mRecording.getInt(4) != FrameRecorder.VERSION) {
+            throw new IOException("Unsupported frame recording version: " + mRecording.getInt(4));
+        }
+        mWidth = mRecording.getInt(8);
+        mHeight = mRecording.getInt(12);
+        mRotation = mRecording.getInt(16);
+        mFirstFrameOffset = FrameRecorder.HEADER_SIZE;
+        mRealTime = realTime;
+        mLoop = loop;
+    }
+
+    @Override
+    public int getFrameWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getFrameHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getRotation() {
+        return mRotation;
+    }
+
+    @Override
+    public void addCallbackBuffer(byte[] buffer) {
+        mFreeBuffers.offer(buffer);
+    }
+
+    @Override
+    public synchronized void start(final FrameCallback callback) {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay(callback);
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted while stopping replay.");
+        }
+        mThread = null;
+        mFreeBuffers.clear();
+    }
+
+    private void replay(FrameCallback callback) {
+        // Each thread gets its own view of the mapping, so positions don't interfere.
+        ByteBuffer recording = mRecording.duplicate();
+        long replayStartNanos = System.nanoTime();
+        long firstTimestampMillis = -1;
+
+        try {
+            do {
+                recording.position(mFirstFrameOffset);
+                while (mRunning
+                        && recording.remaining() >= FrameRecorder.FRAME_HEADER_SIZE) {
+                    long timestampMillis = recording.getLong();
+                    int length = recording.getInt();
+                    if (length > recording.remaining()) {
+                        Log.w(TAG, "Recording ends with a truncated frame.");
+                        break;
+                    }
+
+                    byte[] buffer = mFreeBuffers.poll(1, TimeUnit.SECONDS);
+                    if (buffer == null) {
+                        // Nobody is consuming frames; skip this one rather than stall forever.
+                        recording.position(recording.position() + length);
+                        continue;
+                    }
+                    recording.get(buffer, 0, Math.min(length, buffer.length));
+                    if (length > buffer.length) {
+                        recording.position(recording.position() + length - buffer.length);
+                    }
+
+                    if (mRealTime) {
+                        if (firstTimestampMillis < 0) {
+                            firstTimestampMillis = timestampMillis;
+                        }
+                        long dueNanos = replayStartNanos + TimeUnit.MILLISECONDS.toNanos(
+                                timestampMillis - firstTimestampMillis);
+                        long waitNanos = dueNanos - System.nanoTime();
+                        if (waitNanos > 0) {
+                            TimeUnit.NANOSECONDS.sleep(waitNanos);
+                        }
+                    }
+
+                    callback.onFrame(buffer);
+                }
+
+                // Start the clock over, since recorded timestamps restart too.
+                replayStartNanos = System.nanoTime();
+                firstTimestampMillis = -1;
+            } while (mRunning && mLoop);
+        } catch (InterruptedException e) {
+            // Stopped.
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.util.Log;
+
+import com.google.android.gms.vision.Detector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puts detection results from several detection workers back into frame order before handing
+ * them to a single processor.
+ * <p/>
+ * Every frame id handed out by the camera source must eventually be reported here exactly once,
+ * either with its detections through {@link #complete(int, Detector.Detections)} or as dropped
+ * through {@link #skip(int)}.  Results are delivered to the processor strictly in increasing frame
+ * id order, so trackers see the same sequence of frames they would see from a single detector.
+ * <p/>
+ * Reporting a frame only records it.  Delivery happens on a thread of its own running
+ * {@link #run()}, outside the lock, so that a slow processor holds up neither the workers nor the
+ * camera callback thread, which reports frames dropped on the way to the workers.
+ */
+final class ResultSequencer<T> implements Runnable {
+    private static final String TAG = "ResultSequencer";
+
+    /**
+     * Marks a frame that was dropped and has no detections to deliver.
+     */
+    private static final Object SKIPPED = new Object();
+
+    /**
+     * Most frames, skipped ones included, that may wait behind a missing one before it is assumed
+     * lost.  Far more than can be dropped at any frame rate while one detection runs, so this only
+     * kicks in when a frame was never reported and only skips follow it.
+     */
+    static final int MAX_WAITING = 1024;
+
+    private final Detector.Processor<T> mProcessor;
+
+    /**
+     * If this many detected frames are waiting behind a missing one, the missing frame is assumed
+     * lost and skipped, so that a bug elsewhere can't stall result delivery forever.  Skipped
+     * frames don't count: they come in bursts whenever frames are dropped faster than a slow
+     * detection finishes, and counting them would give up on frames still being detected.
+     */
+    private final int mMaxReorder;
+
+    // Guarded by this
+    private final Map<Integer, Object> mWaiting = new HashMap<>();
+    private final ArrayDeque<Detector.Detections<T>> mReady = new ArrayDeque<>();
+    private int mWaitingDetections;
+    private int mNextId;
+    private boolean mActive;
+
+    // Results taken off mReady for delivery.  Only touched by the delivery thread.
+    private final List<Detector.Detections<T>> mDelivering = new ArrayList<>();
+
+    ResultSequencer(Detector.Processor<T> processor, int maxReorder) {
+        mProcessor = processor;
+        mMaxReorder = maxReorder;
+    }
+
+    /**
+     * Forgets any results still waiting or ready and starts delivering from the given frame id.
+     * Only called while neither the workers nor the delivery thread are running.
+     */
+    synchronized void reset(int nextId) {
+        mWaiting.clear();
+        mReady.clear();
+        mWaitingDetections = 0;
+        mNextId = nextId;
+    }
+
+    /**
+     * Marks the sequencer as active/not active.  Deactivating wakes the delivery thread, which
+     * delivers whatever is ready and then returns.
+     */
+    synchronized void setActive(boolean active) {
+        mActive = active;
+        notifyAll();
+    }
+
+    /**
+     * Reports the detections for a frame.
+     */
+    synchronized void complete(int frameId, Detector.Detections<T> detections) {
+        put(frameId, detections);
+    }
+
+    /**
+     * Reports that a frame was dropped without being detected on.
+     */
+    synchronized void skip(int frameId) {
+        put(frameId, SKIPPED);
+    }
+
+    /**
+     * Releases the processor.  Only called once the delivery thread has completed.
+     */
+    void release() {
+        mProcessor.release();
+    }
+
+    /**
+     * Delivers results in frame order as they become ready, until the sequencer is deactivated
+     * or the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        while (awaitReady()) {
+            deliverReady();
+        }
+    }
+
+    /**
+     * Delivers the results that are ready, without holding the lock.  Only called from the
+     * delivery thread.
+     */
+    void deliverReady() {
+        synchronized (this) {
+            Detector.Detections<T> detections;
+            while ((detections = mReady.poll()) != null) {
+                mDelivering.add(detections);
+            }
+        }
+        for (int i = 0; i < mDelivering.size(); ++i) {
+            try {
+                mProcessor.receiveDetections(mDelivering.get(i));
+            } catch (Throwable t) {
+                Log.e(TAG, "Exception thrown from processor.", t);
+            }
+        }
+        mDelivering.clear();
+    }
+
+    /**
+     * Waits until results are ready or the sequencer is deactivated.
+     *
+     * @return whether there are results to deliver
+     */
+    private synchronized boolean awaitReady() {
+        while (mReady.isEmpty() && mActive) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return !mReady.isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void put(int frameId, Object result) {
+        if (frameId < mNextId) {
+            // Reported after a forced skip or a reset; too late to deliver.
+            return;
+        }
+        mWaiting.put(frameId, result);
+        if (result != SKIPPED) {
+            mWaitingDetections++;
+        }
+
+        if (mWaitingDetections > mMaxReorder || mWaiting.size() > MAX_WAITING) {
+            Log.w(TAG, "Frame " + mNextId + " never completed, skipping it.");
+            while (!mWaiting.containsKey(mNextId)) {
+                mNextId++;
+            }
+        }
+
+        int readyBefore = mReady.size();
+        Object next;
+        while ((next = mWaiting.remove(mNextId)) != null) {
+            mNextId++;
+            if (next != SKIPPED) {
+                mWaitingDetections--;
+                mReady.add((Detector.Detections<T>) next);
+            }
+        }
+        if (mReady.size() > readyBefore) {
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.graphics.Rect;
+
+import com.google.android.gms.vision.Frame;
+
+/**
+ * Region of the camera frame that is handed to the detector.  The window is expressed in
+ * normalized coordinates (0 to 1) of the upright image, i.e. the image as the user sees it in the
+ * preview, regardless of how the camera sensor is mounted.
+ * <p/>
+ * Preview frames arrive in the sensor's orientation, so the window is first mapped into sensor
+ * coordinates using the frame rotation (see {@link Frame.Metadata#getRotation()}), and then
+ * aligned to even pixels so that the subsampled chroma plane of an NV21 image can be cropped along
+ * with the luma plane.
+ */
+final class ScanWindow {
+    private final float mLeft;
+    private final float mTop;
+    private final float mRight;
+    private final float mBottom;
+
+    ScanWindow(float left, float top, float right, float bottom) {
+        if (left < 0 || top < 0 || right > 1 || bottom > 1 || left >= right || top >= bottom) {
+            throw new IllegalArgumentException("Invalid scan window: [" + left + ", " + top
+                    + ", " + right + ", " + bottom + "]");
+        }
+        mLeft = left;
+        mTop = top;
+        mRight = right;
+        mBottom = bottom;
+    }
+
+    /**
+     * Returns the fraction of the frame's pixels that fall inside the window.
+     */
+    float areaFraction() {
+        return (mRight - mLeft) * (mBottom - mTop);
+    }
+
+    /**
+     * Computes the crop rectangle in sensor coordinates for a frame of the given size and
+     * rotation.  The rectangle's origin and size are always even.
+     */
+    Rect sensorCrop(int width, int height, int rotation) {
+        float left;
+        float top;
+        float right;
+        float bottom;
+        switch (rotation) {
+            case Frame.ROTATION_90:
+                left = mTop;
+                right = mBottom;
+                top = 1 - mRight;
+                bottom = 1 - mLeft;
+                break;
+            case Frame.ROTATION_180:
+                left = 1 - mRight;
+                right = 1 - mLeft;
+                top = 1 - mBottom;
+                bottom = 1 - mTop;
+                break;
+            case Frame.ROTATION_270:
+                left = 1 - mBottom;
+                right = 1 - mTop;
+                top = mLeft;
+                bottom = mRight;
+                break;
+            default:
+                left = mLeft;
+                right = mRight;
+                top = mTop;
+                bottom = mBottom;
+                break;
+        }
+
+        int cropLeft = evenFloor(left * width);
+        int cropTop = evenFloor(top * height);
+        int cropRight = Math.max(cropLeft + 2, evenFloor(right * width));
+        int cropBottom = Math.max(cropTop + 2, evenFloor(bottom * height));
+        return new Rect(cropLeft, cropTop, cropRight, cropBottom);
+    }
+
+    /**
+     * Maps a crop rectangle in sensor coordinates back to the upright image, which is the
+     * coordinate system detection results are reported in.
+     */
+    static Rect uprightRect(Rect crop, int width, int height, int rotation) {
+        switch (rotation) {
+            case Frame.ROTATION_90:
+                return new Rect(height - crop.bottom, crop.left, height - crop.top, crop.right);
+            case Frame.ROTATION_180:
+                return new Rect(width - crop.right, height - crop.bottom,
+                        width - crop.left, height - crop.top);
+            case Frame.ROTATION_270:
+                return new Rect(crop.top, width - crop.right, crop.bottom, width - crop.left);
+            default:
+                return new Rect(crop);
+        }
+    }
+
+    /**
+     * Returns the size in bytes of an NV21 image holding the given crop.
+     */
+    static int croppedSize(Rect crop) {
+        return crop.width() * crop.height() * 3 / 2;
+    }
+
+    /**
+     * Copies the cropped region of an NV21 image into {@code dst}, which must hold at least
+     * {@link #croppedSize(Rect)} bytes.
+     */
+    static void cropNv21(byte[] src, int width, int height, Rect crop, byte[] dst) {
+        int cropWidth = crop.width();
+        int cropHeight = crop.height();
+
+        // Luma plane, one byte per pixel.
+        int srcOffset = crop.top * width + crop.left;
+        int dstOffset = 0;
+        for (int row = 0; row < cropHeight; ++row) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, cropWidth);
+            srcOffset += width;
+            dstOffset += cropWidth;
+        }
+
+        // Interleaved VU plane, one pair per 2x2 block of pixels.  Since the crop is aligned to
+        // even pixels, each row of the crop is also cropWidth bytes here.
+        srcOffset = width * height + (crop.top / 2) * width + crop.left;
+        for (int row = 0; row < cropHeight / 2; ++row) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, cropWidth);
+            srcOffset += width;
+            dstOffset += cropWidth;
+        }
+    }
+
+    private static int evenFloor(float value) {
+        return ((int) value) & ~1;
+    }
+}
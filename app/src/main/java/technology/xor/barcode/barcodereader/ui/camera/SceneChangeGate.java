@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.graphics.Rect;
+
+/**
+ * Check run before detection that skips frames showing the same scene as the last frame detected
+ * on, e.g. for fixed-mount scanners looking at an empty counter most of the time.
+ * <p/>
+ * Each frame is reduced to a compact signature: the average luma of each cell of a coarse grid.
+ * A frame is only detected on if its signature differs enough from that of the last frame that
+ * was, measured as the mean absolute difference per cell.  So that trackers still see frames and
+ * can report codes as missing or done, a frame is let through at least once per refresh interval
+ * even if nothing changed.
+ * <p/>
+ * Checking a frame and making it the reference are separate steps, since a frame that passes the
+ * gate may still be dropped before detection (e.g. by the detection governor), and must then not
+ * hide the change from later frames.  Each caller computes signatures into a buffer of its own,
+ * which {@link #commit} swaps with the reference buffer, so no allocation is needed per frame.
+ * <p/>
+ * A gate may be shared by several detection workers.
+ */
+public final class SceneChangeGate {
+    /**
+     * Default mean luma difference per cell (on a 0 to 255 scale) that counts as a change.
+     */
+    public static final float DEFAULT_THRESHOLD = 4.0f;
+
+    /**
+     * Default longest time between two detections on an unchanged scene.
+     */
+    public static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Cells per side of the signature grid.
+     */
+    private static final int GRID_SIZE = 16;
+
+    /**
+     * Pixels sampled per cell and direction.  Averaging a handful of pixels per cell is plenty to
+     * tell whether something moved, and keeps the cost independent of the frame size.
+     */
+    private static final int SAMPLES_PER_CELL = 4;
+
+    private final float mThreshold;
+    private final long mRefreshIntervalMillis;
+
+    // Guarded by this
+    private int[] mReference = newSignature();
+    private boolean mHasReference;
+    private long mReferenceMillis;
+
+    /**
+     * Creates a gate with the default threshold and refresh interval.
+     */
+    public SceneChangeGate() {
+        this(DEFAULT_THRESHOLD, DEFAULT_REFRESH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Creates a gate.
+     *
+     * @param threshold             mean luma difference per cell (0 to 255) below which a frame
+     *                              counts as unchanged
+     * @param refreshIntervalMillis longest time to go without detecting on a frame
+     */
+    public SceneChangeGate(float threshold, long refreshIntervalMillis) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid threshold: " + threshold);
+        }
+        if (refreshIntervalMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid refresh interval: " + refreshIntervalMillis);
+        }
+        mThreshold = threshold;
+        mRefreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    /**
+     * Returns a buffer to compute signatures into, to be kept by the caller.
+     */
+    static int[] newSignature() {
+        return new int[GRID_SIZE * GRID_SIZE];
+    }
+
+    /**
+     * Decides whether the given region of an NV21 frame has changed enough since the reference
+     * frame to be worth detecting on.  The frame's signature is left in the given buffer, to be
+     * passed to {@link #commit} if the frame does get detected on.
+     */
+    boolean hasChanged(byte[] data, int width, Rect region, long timestampMillis,
+                       int[] signature) {
+        signature(data, width, region, signature);
+        synchronized (this) {
+            return !mHasReference
+                    || timestampMillis - mReferenceMillis >= mRefreshIntervalMillis
+                    || difference(signature, mReference) >= mThreshold;
+        }
+    }
+
+    /**
+     * Makes the frame with the given signature, as computed by {@link #hasChanged}, the new
+     * reference.
+     *
+     * @return the previous reference buffer, which the caller takes over for its next signature
+     */
+    synchronized int[] commit(int[] signature, long timestampMillis) {
+        int[] previous = mReference;
+        mReference = signature;
+        mReferenceMillis = timestampMillis;
+        mHasReference = true;
+        return previous;
+    }
+
+    /**
+     * Forgets the reference frame, so that the next frame is accepted.
+     */
+    synchronized void reset() {
+        mHasReference = false;
+    }
+
+    /**
+     * Computes the average sampled luma of each grid cell of the region into the given buffer.
+     */
+    static void signature(byte[] data, int width, Rect region, int[] signature) {
+        // Only the region's fields are read, so that this also runs in local unit tests.
+        int regionWidth = region.right - region.left;
+        int regionHeight = region.bottom - region.top;
+        int cellWidth = Math.max(1, regionWidth / GRID_SIZE);
+        int cellHeight = Math.max(1, regionHeight / GRID_SIZE);
+        int stepX = Math.max(1, cellWidth / SAMPLES_PER_CELL);
+        int stepY = Math.max(1, cellHeight / SAMPLES_PER_CELL);
+
+        for (int cellY = 0; cellY < GRID_SIZE; ++cellY) {
+            int top = region.top + Math.min(cellY * cellHeight, regionHeight - 1);
+            int bottom = Math.min(top + cellHeight, region.bottom);
+            for (int cellX = 0; cellX < GRID_SIZE; ++cellX) {
+                int left = region.left + Math.min(cellX * cellWidth, regionWidth - 1);
+                int right = Math.min(left + cellWidth, region.right);
+
+                int sum = 0;
+                int count = 0;
+                for (int y = top; y < bottom; y += stepY) {
+                    int row = y * width;
+                    for (int x = left; x < right; x += stepX) {
+                        sum += data[row + x] & 0xff;
+                        count++;
+                    }
+                }
+                signature[cellY * GRID_SIZE + cellX] = sum / count;
+            }
+        }
+    }
+
+    private static float difference(int[] a, int[] b) {
+        int sum = 0;
+        for (int i = 0; i < a.length; ++i) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return (float) sum / a.length;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.graphics.Rect;
+
+/**
+ * Cheap check run before detection that skips frames too blurred to decode, e.g. smeared by hand
+ * motion or taken while the lens is still focusing.
+ * <p/>
+ * Sharpness is scored as the variance of the Laplacian of the luma plane, sampled on a sparse grid
+ * so that scoring costs a small fraction of a detection.  What counts as sharp depends heavily on
+ * the scene and lighting, so the threshold is relative: a frame passes if it scores at least a
+ * given fraction of the sharpest recent frame.  The reference decays from frame to frame, so that
+ * the gate adapts when the scene changes and never locks out detection for long.
+ * <p/>
+ * A gate may be shared by several detection workers.
+ */
+public final class SharpnessGate {
+    /**
+     * Default fraction of the reference sharpness a frame needs to reach.
+     */
+    public static final float DEFAULT_RELATIVE_THRESHOLD = 0.5f;
+
+    /**
+     * Default spacing in pixels between sampled points.
+     */
+    public static final int DEFAULT_SAMPLE_STEP = 4;
+
+    /**
+     * How much of the reference sharpness is forgotten per frame.  At 30 frames per second, the
+     * reference halves in about half a second.
+     */
+    private static final float REFERENCE_DECAY = 0.05f;
+
+    private final float mRelativeThreshold;
+    private final int mSampleStep;
+
+    // Guarded by this
+    private float mReference;
+
+    /**
+     * Creates a gate with the default threshold and sampling.
+     */
+    public SharpnessGate() {
+        this(DEFAULT_RELATIVE_THRESHOLD, DEFAULT_SAMPLE_STEP);
+    }
+
+    /**
+     * Creates a gate.
+     *
+     * @param relativeThreshold fraction (0 to 1) of the recent peak sharpness a frame must reach
+     *                          to be detected on
+     * @param sampleStep        spacing in pixels between the points sampled, in both directions
+     */
+    public SharpnessGate(float relativeThreshold, int sampleStep) {
+        if (relativeThreshold < 0 || relativeThreshold > 1) {
+            throw new IllegalArgumentException("Invalid relative threshold: " + relativeThreshold);
+        }
+        if (sampleStep < 1) {
+            throw new IllegalArgumentException("Invalid sample step: " + sampleStep);
+        }
+        mRelativeThreshold = relativeThreshold;
+        mSampleStep = sampleStep;
+    }
+
+    /**
+     * Scores the given region of an NV21 frame and decides whether it is sharp enough to detect
+     * on.
+     */
+    boolean accept(byte[] data, int width, Rect region) {
+        float sharpness = sharpness(data, width, region, mSampleStep);
+        synchronized (this) {
+            mReference = Math.max(sharpness, mReference * (1 - REFERENCE_DECAY));
+            return sharpness >= mRelativeThreshold * mReference;
+        }
+    }
+
+    /**
+     * Returns the variance of the 4-neighbour Laplacian of the luma plane, sampled every
+     * {@code step} pixels inside the region.
+     */
+    static float sharpness(byte[] data, int width, Rect region, int step) {
+        // Stay one pixel inside the region, so every neighbour is inside it too.
+        int left = region.left + 1;
+        int right = region.right - 1;
+        int top = region.top + 1;
+        int bottom = region.bottom - 1;
+
+        long sum = 0;
+        long sumOfSquares = 0;
+        int count = 0;
+        for (int y = top; y < bottom; y += step) {
+            int row = y * width;
+            for (int x = left; x < right; x += step) {
+                int center = row + x;
+                int laplacian = 4 * (data[center] & 0xff)
+                        - (data[center - 1] & 0xff)
+                        - (data[center + 1] & 0xff)
+                        - (data[center - width] & 0xff)
+                        - (data[center + width] & 0xff);
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        float mean = (float) sum / count;
+        return (float) sumOfSquares / count - mean * mean;
+    }
+}
@@ -0,0 +1,153 @@
+package technology.xor.barcode.upload;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Adapts how many uploads are in flight at once, and how many scan sets go into a batch, to how
+ * the server is coping, with additive increase and multiplicative decrease.
+ * <p/>
+ * Every response answered within the latency target adds a little to both limits: the
+ * concurrency limit grows by about one for each full window of requests, the batch size by one
+ * set per response.  An overloaded server, shown by a 408, 429 or 5xx response, a network error
+ * or a response slower than the target, halves both.  Only requests started after the last
+ * decrease can cause another one, so a burst of failures from the same overload counts once.
+ * <p/>
+ * A Retry-After on an overload response pauses all uploads until the time the server asked for,
+ * plus up to a fifth more at random, so that the clients it was sent to don't all come back at
+ * the same moment.
+ */
+final class AimdController {
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double RETRY_AFTER_JITTER = 0.2;
+
+    private final int mMaxConcurrency;
+    private final int mMaxBatchSize;
+    private final long mLatencyTargetMillis;
+    private final Random mRandom = new Random();
+
+    // Guarded by this
+    private double mConcurrency;
+    private double mBatchSize;
+    private long mLastDecreaseMillis = Long.MIN_VALUE;
+    private long mPausedUntilMillis;
+
+    /**
+     * @param initialConcurrency  uploads in flight at once to start with
+     * @param maxConcurrency      most uploads ever in flight at once
+     * @param maxBatchSize        most scan sets ever in a batch, which is also the starting size
+     * @param latencyTargetMillis response time above which the server counts as overloaded
+     */
+    AimdController(int initialConcurrency, int maxConcurrency, int maxBatchSize,
+            long latencyTargetMillis) {
+        if (initialConcurrency <= 0 || maxConcurrency < initialConcurrency) {
+            throw new IllegalArgumentException(
+                    "Invalid concurrency: " + initialConcurrency + " to " + maxConcurrency);
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size: " + maxBatchSize);
+        }
+        if (latencyTargetMillis <= 0) {
+            throw new IllegalArgumentException("Invalid latency target: " + latencyTargetMillis);
+        }
+        mConcurrency = initialConcurrency;
+        mMaxConcurrency = maxConcurrency;
+        mBatchSize = maxBatchSize;
+        mMaxBatchSize = maxBatchSize;
+        mLatencyTargetMillis = latencyTargetMillis;
+    }
+
+    /**
+     * Returns the number of uploads which may currently be in flight at once.
+     */
+    synchronized int getConcurrencyLimit() {
+        return (int) mConcurrency;
+    }
+
+    /**
+     * Returns the number of scan sets which should currently go into a batch.
+     */
+    synchronized int getBatchSize() {
+        return (int) mBatchSize;
+    }
+
+    /**
+     * Returns how much longer uploads are paused for a Retry-After, or 0 if they aren't.
+     */
+    synchronized long getPauseMillis(long nowMillis) {
+        return Math.max(0, mPausedUntilMillis - nowMillis);
+    }
+
+    /**
+     * Records a response accepting an upload.
+     *
+     * @param startedAtMillis when the request was started
+     */
+    synchronized void onSuccess(long startedAtMillis, long nowMillis) {
+        if (nowMillis - startedAtMillis > mLatencyTargetMillis) {
+            decrease(startedAtMillis, nowMillis);
+            return;
+        }
+        mConcurrency = Math.min(mMaxConcurrency, mConcurrency + 1 / mConcurrency);
+        mBatchSize = Math.min(mMaxBatchSize, mBatchSize + 1);
+    }
+
+    /**
+     * Records a sign of overload: a response worth retrying, or a network error.
+     *
+     * @param startedAtMillis  when the request was started
+     * @param retryAfterMillis how long the server asked to wait, or 0
+     */
+    synchronized void onOverload(long startedAtMillis, long nowMillis, long retryAfterMillis) {
+        if (retryAfterMillis > 0) {
+            long jitterMillis =
+                    (long) (mRandom.nextDouble() * RETRY_AFTER_JITTER * retryAfterMillis);
+            mPausedUntilMillis = Math.max(mPausedUntilMillis,
+                    nowMillis + retryAfterMillis + jitterMillis);
+        }
+        decrease(startedAtMillis, nowMillis);
+    }
+
+    private void decrease(long startedAtMillis, long nowMillis) {
+        if (startedAtMillis < mLastDecreaseMillis) {
+            // Already reacted to the overload this request ran into.
+            return;
+        }
+        mLastDecreaseMillis = nowMillis;
+        mConcurrency = Math.max(1, mConcurrency * DECREASE_FACTOR);
+        mBatchSize = Math.max(1, mBatchSize * DECREASE_FACTOR);
+    }
+
+    /**
+     * Parses a Retry-After header, given either as a number of seconds or as an HTTP date.
+     *
+     * @return the time to wait in milliseconds, or 0 if the header is missing or malformed
+     */
+    static long parseRetryAfter(String value, long nowMillis) {
+        if (value == null) {
+            return 0;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, try a date
+        }
+        SimpleDateFormat format =
+                new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(value).getTime() - nowMillis);
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "concurrency=" + mConcurrency + " batchSize=" + mBatchSize;
+    }
+}
@@ -0,0 +1,106 @@
+package technology.xor.barcode.upload;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Watches the TLS handshake of every new connection, to time it apart from the request and tell
+ * new sessions from resumed ones, in the given {@link UploadMetrics}.  The handshake itself is
+ * left to the HTTP stack, which starts it right after creating the socket.
+ * <p/>
+ * Sockets created while the calling thread has a list set in the given thread local are added
+ * to it, so that a transport can close a prewarmed connection which goes unused.
+ */
+final class HandshakeTimingSocketFactory extends SSLSocketFactory {
+    private static final String TAG = "HandshakeTiming";
+
+    private final SSLSocketFactory mDelegate;
+    private final UploadMetrics mMetrics;
+    private final ThreadLocal<List<Socket>> mWarmingSockets;
+
+    HandshakeTimingSocketFactory(SSLSocketFactory delegate, UploadMetrics metrics,
+            ThreadLocal<List<Socket>> warmingSockets) {
+        mDelegate = delegate;
+        mMetrics = metrics;
+        mWarmingSockets = warmingSockets;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+            throws IOException {
+        return watch(mDelegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return watch(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+        return watch(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return watch(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+            int localPort) throws IOException {
+        return watch(mDelegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket watch(Socket socket) {
+        List<Socket> warming = mWarmingSockets.get();
+        if (warming != null) {
+            warming.add(socket);
+        }
+        if (!(socket instanceof SSLSocket)) {
+            return socket;
+        }
+        SSLSocket sslSocket = (SSLSocket) socket;
+        sslSocket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            final long mCreatedAtMillis = System.currentTimeMillis();
+            final long mCreatedAtNanos = System.nanoTime();
+
+            // Called once the handshake is done; on some platforms from another thread.
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                long handshakeNanos = System.nanoTime() - mCreatedAtNanos;
+
+                // A resumed session was created by an earlier handshake.
+                boolean resumed = event.getSession().getCreationTime() < mCreatedAtMillis;
+                mMetrics.mHandshakeNanos.addAndGet(handshakeNanos);
+                if (resumed) {
+                    mMetrics.mResumedHandshakes.incrementAndGet();
+                }
+                mMetrics.mHandshakes.incrementAndGet();
+                Log.d(TAG, (resumed ? "Resumed" : "Full") + " TLS handshake took "
+                        + handshakeNanos / 1000000 + " ms");
+            }
+        });
+        return socket;
+    }
+}
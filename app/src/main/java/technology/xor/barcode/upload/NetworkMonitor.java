@@ -0,0 +1,51 @@
+package technology.xor.barcode.upload;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Follows the device's default network, and lets the {@link UploadScheduler} know when it comes
+ * back so that uploads held back while offline can be sent.
+ */
+final class NetworkMonitor implements UploadScheduler.Connectivity {
+    private static final String TAG = "NetworkMonitor";
+
+    private final ConnectivityManager mConnectivityManager;
+    private volatile boolean mOnline;
+
+    NetworkMonitor(Context context) {
+        mConnectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        mOnline = info != null && info.isConnected();
+    }
+
+    /**
+     * Starts following the default network, for the lifetime of the process.
+     */
+    void start(final UploadScheduler scheduler) {
+        mConnectivityManager.registerDefaultNetworkCallback(
+                new ConnectivityManager.NetworkCallback() {
+                    @Override
+                    public void onAvailable(Network network) {
+                        Log.d(TAG, "Default network available");
+                        mOnline = true;
+                        scheduler.onNetworkAvailable();
+                    }
+
+                    @Override
+                    public void onLost(Network network) {
+                        Log.d(TAG, "Default network lost");
+                        mOnline = false;
+                    }
+                });
+    }
+
+    @Override
+    public boolean isOnline() {
+        return mOnline;
+    }
+}
@@ -0,0 +1,535 @@
+package technology.xor.barcode.upload;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import technology.xor.barcode.general.NoSSLv3SocketFactory;
+
+/**
+ * Long-lived WebSocket channel to the server, streaming every code as soon as it is accepted
+ * instead of posting it with its set.  Each code costs a single frame rather than a request.
+ * <p/>
+ * Codes go out as
+ * <pre>
+ * {"seq": 17, "id": 342, "team": "...", "code": "...", "capturedAt": 1540000000000}
+ * </pre>
+ * numbered from 1 on every connection, and the server acknowledges them cumulatively with
+ * {@code {"ack": 17}}, which marks them uploaded in the {@link ScanJournal}.  At most a window of
+ * codes is sent without being acknowledged; the rest wait their turn.
+ * <p/>
+ * If the connection drops, or the server stops answering, the codes not acknowledged yet fall
+ * back to the POST path, without splitting the sets they belong to.  Codes of a set the caller
+ * has closed with {@link #closeSet(List)} are handed to the {@link UploadScheduler} as that set.
+ * The others go back to pending in the journal, and {@link #closeSet(List)} returns them later
+ * along with the rest of their set, for the caller to post as a whole.  Meanwhile, the channel
+ * reconnects after an exponential backoff with jitter, and
+ * {@link #offer(String, ScanJournal.Scan)} turns codes down until it is back, so that they are
+ * sent with their set.
+ * <p/>
+ * The channel is process-wide, so it stays connected from one capture to the next.
+ */
+public final class ScanChannel {
+    private static final String TAG = "ScanChannel";
+
+    // Codes sent without being acknowledged, at most
+    static final int DEFAULT_WINDOW = 32;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+
+    // The server is pinged while the channel is idle, and given up on if nothing at all comes
+    // back for a couple of pings.
+    private static final long PING_INTERVAL_MS = 20000;
+    private static final int READ_TIMEOUT_MS = 45000;
+
+    // A server which answers pings but not codes is given up on as well.
+    private static final long ACK_TIMEOUT_MS = 30000;
+
+    private static final long BASE_RECONNECT_MILLIS = 1000;
+    private static final long MAX_RECONNECT_MILLIS = 60000;
+
+    private static ScanChannel sInstance;
+
+    /**
+     * A code offered to the channel, until it is acknowledged or falls back to the POST path.
+     */
+    private static final class Event {
+        final String mTeam;
+        final ScanJournal.Scan mScan;
+        final long mOfferedAtNanos = System.nanoTime();
+
+        // Sequence number on the current connection, and when it was sent
+        long mSeq;
+        long mSentAtNanos;
+
+        // Identifies the set the code belongs to once the caller has closed it, null before
+        Object mSet;
+
+        Event(String team, ScanJournal.Scan scan) {
+            mTeam = team;
+            mScan = scan;
+        }
+    }
+
+    private final URI mUri;
+    private final String mPostUrl;
+    private final SSLSocketFactory mSocketFactory;
+    private final HostnameVerifier mHostnameVerifier;
+    private final ScanJournal mJournal;
+    private final UploadScheduler mScheduler;
+    private final int mWindow;
+    private final long mBaseReconnectMillis;
+    private final long mMaxReconnectMillis;
+    private final Random mRandom = new Random();
+
+    // Connects and writes, so that offering a code never waits for the network
+    private final ScheduledExecutorService mExecutor;
+
+    // Guarded by this
+    private WebSocket mSocket;
+    private final ArrayDeque<Event> mQueued = new ArrayDeque<>();
+    private final ArrayDeque<Event> mInFlight = new ArrayDeque<>();
+    private long mLastSeq;
+    private int mReconnectAttempts;
+    private boolean mClosed;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Starts connecting to the given wss: URI in the background.
+     *
+     * @param postUrl where codes are posted when the channel drops
+     * @param window  codes sent without being acknowledged, at most
+     */
+    ScanChannel(URI uri, String postUrl, SSLSocketFactory socketFactory,
+            HostnameVerifier hostnameVerifier, ScanJournal journal, UploadScheduler scheduler,
+            int window, long baseReconnectMillis, long maxReconnectMillis) {
+        if (!"wss".equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("Not a wss: URI: " + uri);
+        }
+        if (window <= 0) {
+            throw new IllegalArgumentException("Invalid window: " + window);
+        }
+        if (baseReconnectMillis <= 0 || maxReconnectMillis < baseReconnectMillis) {
+            throw new IllegalArgumentException("Invalid reconnect delay: " + baseReconnectMillis
+                    + " to " + maxReconnectMillis);
+        }
+        mUri = uri;
+        mPostUrl = postUrl;
+        mSocketFactory = socketFactory;
+        mHostnameVerifier = hostnameVerifier;
+        mJournal = journal;
+        mScheduler = scheduler;
+        mWindow = window;
+        mBaseReconnectMillis = baseReconnectMillis;
+        mMaxReconnectMillis = maxReconnectMillis;
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        });
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                ping();
+            }
+        }, PING_INTERVAL_MS, PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the process-wide channel to the given wss: URL, creating it on first use.  A
+     * channel to a different URL is closed first.
+     *
+     * @param postUrl where codes are posted when the channel drops
+     */
+    public static synchronized ScanChannel getInstance(Context context, String url,
+            String postUrl) throws GeneralSecurityException {
+        URI uri = URI.create(url);
+        if (sInstance != null
+                && (!sInstance.mUri.equals(uri) || !sInstance.mPostUrl.equals(postUrl))) {
+            sInstance.close();
+            sInstance = null;
+        }
+        if (sInstance == null) {
+            // Force TLS1.2, and PREVENT SSLv3
+            SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+            sslContext.init(null, null, null);
+            Context appContext = context.getApplicationContext();
+            sInstance = new ScanChannel(uri, postUrl,
+                    new NoSSLv3SocketFactory(sslContext.getSocketFactory()),
+                    HttpsURLConnection.getDefaultHostnameVerifier(),
+                    ScanJournal.getInstance(appContext), UploadScheduler.getInstance(appContext),
+                    DEFAULT_WINDOW, BASE_RECONNECT_MILLIS, MAX_RECONNECT_MILLIS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Streams a code, if the channel is connected.  A code taken by the channel is marked in
+     * flight in the journal, and is either acknowledged over the channel or posted in its place.
+     *
+     * @return whether the channel took the code; if not, it is up to the caller to send it
+     */
+    public boolean offer(String team, ScanJournal.Scan scan) {
+        synchronized (this) {
+            if (mSocket == null) {
+                return false;
+            }
+            // Marked before it can be sent, so that its acknowledgement comes after.
+            mJournal.markInFlight(Collections.singletonList(scan));
+            mQueued.add(new Event(team, scan));
+        }
+        execute(mFlush);
+        return true;
+    }
+
+    /**
+     * Ends a set of codes, some of which may have been offered to the channel.  Codes of the set
+     * still waiting for their acknowledgement are posted together, as what is left of the set,
+     * if the connection drops.
+     *
+     * @return the codes of the set the caller has to post itself: those the channel didn't take,
+     * or handed back when a connection dropped
+     */
+    public List<ScanJournal.Scan> closeSet(List<ScanJournal.Scan> scans) {
+        Object set = new Object();
+        List<ScanJournal.Scan> untaken = new ArrayList<>();
+        synchronized (this) {
+            for (ScanJournal.Scan scan : scans) {
+                Event event = find(mInFlight, scan);
+                if (event == null) {
+                    event = find(mQueued, scan);
+                }
+                if (event != null) {
+                    event.mSet = set;
+                } else {
+                    untaken.add(scan);
+                }
+            }
+            // Handed back codes are pending again; acknowledged ones are gone from the journal.
+            return mJournal.getPending(untaken);
+        }
+    }
+
+    /**
+     * Returns whether the channel is connected and taking codes.
+     */
+    public synchronized boolean isOpen() {
+        return mSocket != null;
+    }
+
+    /**
+     * Returns the number of codes taken by the channel and not acknowledged yet.
+     */
+    public synchronized int getUnacknowledgedCount() {
+        return mQueued.size() + mInFlight.size();
+    }
+
+    /**
+     * Closes the channel for good.  Codes not acknowledged yet fall back to the POST path.
+     */
+    void close() {
+        WebSocket socket;
+        synchronized (this) {
+            mClosed = true;
+            socket = mSocket;
+        }
+        if (socket != null) {
+            onDropped(socket, "channel closed");
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private static Event find(ArrayDeque<Event> events, ScanJournal.Scan scan) {
+        for (Event event : events) {
+            if (event.mScan == scan) {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    private void connect() {
+        synchronized (this) {
+            if (mClosed || mSocket != null) {
+                return;
+            }
+        }
+        final WebSocket socket;
+        try {
+            socket = WebSocket.connect(mUri, mSocketFactory, mHostnameVerifier,
+                    CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to connect to " + mUri, e);
+            scheduleReconnect();
+            return;
+        }
+        synchronized (this) {
+            if (mClosed) {
+                socket.close();
+                return;
+            }
+            mSocket = socket;
+            mLastSeq = 0;
+            mReconnectAttempts = 0;
+        }
+        Log.i(TAG, "Connected to " + mUri);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(socket);
+            }
+        }, TAG + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void scheduleReconnect() {
+        long delayMillis;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            long backoff = mBaseReconnectMillis;
+            for (int i = 0; i < mReconnectAttempts && backoff < mMaxReconnectMillis; i++) {
+                backoff *= 2;
+            }
+            mReconnectAttempts++;
+            backoff = Math.min(backoff, mMaxReconnectMillis);
+            delayMillis = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+        }
+        Log.d(TAG, "Reconnecting in " + delayMillis + " ms");
+        try {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connect();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile; the codes have fallen back to the POST path.
+        }
+    }
+
+    /**
+     * Sends the queued codes which fit in the window.  Runs on the executor, so codes go out in
+     * the order they were offered.
+     */
+    private void flush() {
+        WebSocket socket;
+        List<Event> sending = new ArrayList<>();
+        synchronized (this) {
+            socket = mSocket;
+            if (socket == null) {
+                return;
+            }
+            while (mInFlight.size() < mWindow && !mQueued.isEmpty()) {
+                Event event = mQueued.poll();
+                event.mSeq = ++mLastSeq;
+                event.mSentAtNanos = System.nanoTime();
+                mInFlight.add(event);
+                sending.add(event);
+            }
+        }
+        try {
+            for (Event event : sending) {
+                socket.sendText(encode(event));
+            }
+        } catch (IOException e) {
+            onDropped(socket, e.toString());
+        }
+    }
+
+    private void ping() {
+        WebSocket socket;
+        boolean acknowledging;
+        synchronized (this) {
+            socket = mSocket;
+            acknowledging = mInFlight.isEmpty() || System.nanoTime()
+                    - mInFlight.peek().mSentAtNanos < ACK_TIMEOUT_MS * 1000000;
+        }
+        if (socket == null) {
+            return;
+        }
+        if (!acknowledging) {
+            onDropped(socket, "no acknowledgement within " + ACK_TIMEOUT_MS + " ms");
+            return;
+        }
+        try {
+            socket.sendPing();
+        } catch (IOException e) {
+            onDropped(socket, e.toString());
+        }
+    }
+
+    /**
+     * Reads the server's acknowledgements until the connection drops.  Runs on a thread of its
+     * own for every connection.
+     */
+    private void read(WebSocket socket) {
+        try {
+            String message;
+            while ((message = socket.receive()) != null) {
+                onMessage(socket, message);
+            }
+            onDropped(socket, "closed by the server");
+        } catch (IOException e) {
+            onDropped(socket, e.toString());
+        }
+    }
+
+    /**
+     * Handles a message read from the given connection.  Sequence numbers start over on every
+     * connection, so acknowledgements read late from a connection given up on are ignored.
+     */
+    void onMessage(WebSocket socket, String message) {
+        long ack;
+        try {
+            JsonElement json = new JsonParser().parse(message);
+            if (!json.isJsonObject() || !json.getAsJsonObject().has("ack")) {
+                Log.w(TAG, "Ignoring message " + message);
+                return;
+            }
+            ack = json.getAsJsonObject().get("ack").getAsLong();
+        } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+            Log.w(TAG, "Ignoring malformed message " + message, e);
+            return;
+        }
+
+        List<ScanJournal.Scan> acknowledged = new ArrayList<>();
+        long nowNanos = System.nanoTime();
+        UploadMetrics metrics = mScheduler.getMetrics();
+        synchronized (this) {
+            if (mSocket != socket) {
+                return;
+            }
+            while (!mInFlight.isEmpty() && mInFlight.peek().mSeq <= ack) {
+                Event event = mInFlight.poll();
+                acknowledged.add(event.mScan);
+                metrics.recordAck(nowNanos - event.mOfferedAtNanos);
+            }
+        }
+        if (!acknowledged.isEmpty()) {
+            mJournal.markUploaded(acknowledged);
+            // The window has room again.
+            execute(mFlush);
+        }
+    }
+
+    /**
+     * Gives up on a connection which failed or was closed, and reconnects.  Codes it didn't get
+     * acknowledged are posted with what is left of their set if the set was closed already, or
+     * handed back to the journal otherwise.  Does nothing if the connection was given up on
+     * already.
+     */
+    private void onDropped(WebSocket socket, String reason) {
+        List<Event> unacknowledged;
+        synchronized (this) {
+            if (mSocket != socket) {
+                return;
+            }
+            mSocket = null;
+            unacknowledged = new ArrayList<>(mInFlight);
+            unacknowledged.addAll(mQueued);
+            mInFlight.clear();
+            mQueued.clear();
+
+            // Handed back while holding the lock, so closeSet() sees them pending right away.
+            List<ScanJournal.Scan> handedBack = new ArrayList<>();
+            for (Event event : unacknowledged) {
+                if (event.mSet == null) {
+                    handedBack.add(event.mScan);
+                }
+            }
+            mJournal.markFailed(handedBack);
+        }
+        socket.close();
+        Log.w(TAG, "Channel to " + mUri + " dropped (" + reason + "), "
+                + unacknowledged.size() + " codes not acknowledged");
+
+        // One set for every closed set with codes left
+        Map<Object, List<Event>> sets = new LinkedHashMap<>();
+        for (Event event : unacknowledged) {
+            if (event.mSet != null) {
+                List<Event> events = sets.get(event.mSet);
+                if (events == null) {
+                    events = new ArrayList<>();
+                    sets.put(event.mSet, events);
+                }
+                events.add(event);
+            }
+        }
+        for (List<Event> events : sets.values()) {
+            List<ScanJournal.Scan> scans = new ArrayList<>();
+            for (Event event : events) {
+                scans.add(event.mScan);
+            }
+            mScheduler.submit(UploadJob.forSet(mPostUrl, events.get(0).mTeam, scans));
+        }
+        scheduleReconnect();
+    }
+
+    private static String encode(Event event) throws IOException {
+        StringWriter json = new StringWriter();
+        JsonWriter writer = new JsonWriter(json);
+        writer.beginObject();
+        writer.name("seq").value(event.mSeq);
+        writer.name("id").value(event.mScan.getId());
+        writer.name("team").value(event.mTeam);
+        writer.name("code").value(event.mScan.getValue());
+        writer.name("capturedAt").value(event.mScan.getCapturedAtMillis());
+        writer.endObject();
+        writer.close();
+        return json.toString();
+    }
+}
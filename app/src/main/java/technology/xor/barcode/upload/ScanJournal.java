@@ -0,0 +1,691 @@
+package technology.xor.barcode.upload;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the scanned codes and of their upload state, so that no scan is lost if
+ * the process dies or an upload fails.
+ * <p/>
+ * Every accepted scan, along with the server and team it was scanned for, and every upload state
+ * change is appended to the journal file as a record framed by its length and CRC32.  Records are
+ * written and synced by a dedicated writer thread, which commits everything queued since its last
+ * sync with a single fsync, so bursts of scans share the cost of syncing.  Callers don't wait for
+ * the sync unless they ask to with {@link #sync()}.
+ * <p/>
+ * When the journal is opened, the file is replayed up to the first damaged or incomplete record,
+ * which is where a crash would have left it.  Scans which were being uploaded at the time are
+ * considered not uploaded.  Scans the server rejected are kept, but aren't pending upload any
+ * more, so they aren't sent again until they are marked failed.  The file is rewritten with just
+ * the scans not uploaded yet, and the next scan id, when it is opened, and again whenever records
+ * of uploaded scans make up most of it.  The writer thread rewrites it from a snapshot, so scans
+ * are recorded meanwhile.
+ */
+public final class ScanJournal implements Closeable {
+    private static final String TAG = "ScanJournal";
+    private static final String FILE_NAME = "scan_journal.log";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x534a524e;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    // Record length and CRC32 of the payload.
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    // Upper bound on a single record, to tell a damaged length from a real one.
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    private static final byte TYPE_SCAN = 1;
+    private static final byte TYPE_STATE = 2;
+    private static final byte TYPE_NEXT_ID = 3;
+    private static final byte TYPE_JOURNAL_ID = 4;
+
+    private static final byte STATE_PENDING = 0;
+    private static final byte STATE_IN_FLIGHT = 1;
+    private static final byte STATE_UPLOADED = 2;
+    private static final byte STATE_REJECTED = 3;
+
+    // Keeps small journals from being compacted over and over.
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    private static ScanJournal sInstance;
+
+    private final File mFile;
+    private final Thread mWriterThread;
+
+    // Random id of this journal, kept across restarts.  Only changed while opening.
+    private UUID mJournalId = UUID.randomUUID();
+
+    // Guarded by this
+    private final LinkedHashMap<Long, Entry> mScans = new LinkedHashMap<>();
+    private ArrayList<ByteBuffer> mQueue = new ArrayList<>();
+    private long mNextId = 1;
+    private long mQueuedCount;
+    private long mDurableCount;
+    private int mRecordsInFile;
+    private IOException mFailure;
+    private boolean mClosed;
+
+    // Only used by the writer thread, and while opening.
+    private FileChannel mChannel;
+
+    /**
+     * A scanned code, as recorded in the journal.
+     */
+    public static final class Scan {
+        private final UUID mJournalId;
+        private final long mId;
+        private final String mUrl;
+        private final String mTeam;
+        private final String mValue;
+        private final long mCapturedAtMillis;
+
+        Scan(UUID journalId, long id, String url, String team, String value,
+             long capturedAtMillis) {
+            mJournalId = journalId;
+            mId = id;
+            mUrl = url;
+            mTeam = team;
+            mValue = value;
+            mCapturedAtMillis = capturedAtMillis;
+        }
+
+        /**
+         * Returns the id of the scan, unique within the journal.  Ids are never reused, even once
+         * the scans they were given to are uploaded and compacted away.
+         */
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * Returns the id of the journal the scan was recorded in, which tells apart scans of
+         * different installs with the same id.
+         */
+        UUID getJournalId() {
+            return mJournalId;
+        }
+
+        /**
+         * Returns the URL of the server the code was scanned for, or null if not known.
+         */
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * Returns the code name of the team the code was scanned for, or null if not known.
+         */
+        public String getTeam() {
+            return mTeam;
+        }
+
+        public String getValue() {
+            return mValue;
+        }
+
+        /**
+         * Returns the wall clock time the code was scanned at.
+         */
+        public long getCapturedAtMillis() {
+            return mCapturedAtMillis;
+        }
+    }
+
+    private static final class Entry {
+        final Scan mScan;
+        byte mState;
+
+        Entry(Scan scan, byte state) {
+            mScan = scan;
+            mState = state;
+        }
+    }
+
+    private ScanJournal(File file) {
+        mFile = file;
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "ScanJournal");
+    }
+
+    /**
+     * Returns the app's journal, opening it on first use.  If the journal file can't be opened,
+     * returns a journal which only keeps the scans in memory, and tries again on the next call.
+     */
+    public static synchronized ScanJournal getInstance(Context context) {
+        if (sInstance == null) {
+            File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+            try {
+                sInstance = open(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open the scan journal, scans won't survive a restart.", e);
+                ScanJournal journal = new ScanJournal(file);
+                journal.mFailure = e;
+                return journal;
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Opens the journal in the given file, replaying and compacting it, or creates it if it
+     * doesn't exist yet.
+     */
+    public static ScanJournal open(File file) throws IOException {
+        ScanJournal journal = new ScanJournal(file);
+        List<Entry> entries;
+        long nextId;
+        synchronized (journal) {
+            journal.replay();
+            entries = journal.snapshot();
+            nextId = journal.mNextId;
+        }
+        journal.compact(entries, nextId);
+        journal.mWriterThread.start();
+        return journal;
+    }
+
+    /**
+     * Records a newly accepted scan, which is then pending upload.
+     *
+     * @param url  the server the code is to be sent to
+     * @param team the code name of the team it was scanned for
+     */
+    public synchronized Scan recordScan(String url, String team, String value,
+                                        long capturedAtMillis) {
+        Scan scan = new Scan(mJournalId, mNextId++, url, team, value, capturedAtMillis);
+        mScans.put(scan.getId(), new Entry(scan, STATE_PENDING));
+        enqueue(scanRecord(scan));
+        return scan;
+    }
+
+    /**
+     * Records a newly accepted scan not tied to a server or team, which is sent wherever pending
+     * scans are sent once resumed.
+     */
+    public Scan recordScan(String value, long capturedAtMillis) {
+        return recordScan(null, null, value, capturedAtMillis);
+    }
+
+    /**
+     * Records that the given scans are being uploaded.
+     */
+    public void markInFlight(List<Scan> scans) {
+        recordState(scans, STATE_IN_FLIGHT);
+    }
+
+    /**
+     * Records that the given scans were uploaded.  They are dropped from the journal.
+     */
+    public void markUploaded(List<Scan> scans) {
+        recordState(scans, STATE_UPLOADED);
+    }
+
+    /**
+     * Records that uploading the given scans failed, so that they are pending upload again.
+     */
+    public void markFailed(List<Scan> scans) {
+        recordState(scans, STATE_PENDING);
+    }
+
+    /**
+     * Records that the server rejected the given scans, and won't accept them if they are sent
+     * again as they are.  They are kept, but aren't pending upload any more.
+     */
+    public void markRejected(List<Scan> scans) {
+        recordState(scans, STATE_REJECTED);
+    }
+
+    /**
+     * Returns the scans pending upload, oldest first.  Scans being uploaded aren't included.
+     */
+    public synchronized List<Scan> getPending() {
+        List<Scan> pending = new ArrayList<>();
+        for (Entry entry : mScans.values()) {
+            if (entry.mState == STATE_PENDING) {
+                pending.add(entry.mScan);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Returns the scans the server rejected, oldest first.
+     */
+    public synchronized List<Scan> getRejected() {
+        List<Scan> rejected = new ArrayList<>();
+        for (Entry entry : mScans.values()) {
+            if (entry.mState == STATE_REJECTED) {
+                rejected.add(entry.mScan);
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * Returns those of the given scans which are still pending upload, leaving out the ones
+     * being uploaded, uploaded already or rejected.
+     */
+    public synchronized List<Scan> getPending(List<Scan> scans) {
+        List<Scan> pending = new ArrayList<>();
+        for (Scan scan : scans) {
+            Entry entry = mScans.get(scan.getId());
+            if (entry != null && entry.mState == STATE_PENDING) {
+                pending.add(scan);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Waits until everything recorded so far is safely on storage.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    public synchronized void sync() throws IOException {
+        long target = mQueuedCount;
+        while (mDurableCount < target) {
+            if (mFailure != null) {
+                throw new IOException("Scan journal failed", mFailure);
+            }
+            if (mClosed) {
+                throw new IOException("Scan journal closed");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Writes out whatever is still queued and closes the journal file.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (ScanJournal.class) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+    }
+
+    private void recordState(List<Scan> scans, byte state) {
+        if (scans.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            ByteBuffer payload = ByteBuffer.allocate(1 + 1 + 4 + 8 * scans.size());
+            payload.put(TYPE_STATE).put(state).putInt(scans.size());
+            for (Scan scan : scans) {
+                payload.putLong(scan.getId());
+                applyState(scan.getId(), state);
+            }
+            enqueue(payload);
+        }
+    }
+
+    private void applyState(long id, byte state) {
+        if (state == STATE_UPLOADED) {
+            mScans.remove(id);
+        } else {
+            Entry entry = mScans.get(id);
+            if (entry != null) {
+                entry.mState = state;
+            }
+        }
+    }
+
+    /**
+     * Frames a record and queues it for the writer thread.  Must hold the lock.
+     */
+    private void enqueue(ByteBuffer payload) {
+        if (mFailure != null) {
+            // Nothing can be written anymore; the scans are only kept in memory.
+            return;
+        }
+        mQueue.add(frame(payload));
+        mQueuedCount++;
+        notifyAll();
+    }
+
+    /**
+     * Returns the payload of the record of a scan.  The server and team come last, so that
+     * records written before they were recorded still read back.
+     */
+    private static ByteBuffer scanRecord(Scan scan) {
+        byte[] value = scan.getValue().getBytes(UTF_8);
+        byte[] team = bytesOf(scan.getTeam());
+        byte[] url = bytesOf(scan.getUrl());
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 8 + 4 + value.length
+                + 4 + (team != null ? team.length : 0) + 4 + (url != null ? url.length : 0));
+        payload.put(TYPE_SCAN).putLong(scan.getId()).putLong(scan.getCapturedAtMillis())
+                .putInt(value.length).put(value);
+        putBytes(payload, team);
+        putBytes(payload, url);
+        return payload;
+    }
+
+    private static byte[] bytesOf(String string) {
+        return string != null ? string.getBytes(UTF_8) : null;
+    }
+
+    /**
+     * Writes the given bytes preceded by their length, or a length of -1 for null.
+     */
+    private static void putBytes(ByteBuffer payload, byte[] bytes) {
+        if (bytes == null) {
+            payload.putInt(-1);
+        } else {
+            payload.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Returns the given record payload framed by its length and CRC32, ready to be written.
+     */
+    private static ByteBuffer frame(ByteBuffer payload) {
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, payload.limit());
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.limit());
+        record.putInt(payload.limit()).putInt((int) crc.getValue()).put(payload);
+        record.flip();
+        return record;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<ByteBuffer> batch;
+            synchronized (this) {
+                while (mQueue.isEmpty() && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only stops when closed.
+                    }
+                }
+                if (mQueue.isEmpty()) {
+                    break;
+                }
+                batch = mQueue;
+                mQueue = new ArrayList<>();
+            }
+
+            IOException failure = null;
+            try {
+                // One write and one sync for everything queued since the last commit.
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers) {
+                    remaining += buffer.remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= mChannel.write(buffers);
+                }
+                mChannel.force(false);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write the scan journal.", e);
+                failure = e;
+            }
+
+            List<Entry> snapshot = null;
+            long nextId = 0;
+            synchronized (this) {
+                if (failure != null) {
+                    mFailure = failure;
+                } else {
+                    mDurableCount += batch.size();
+                    mRecordsInFile += batch.size();
+                    if (mRecordsInFile > 2 * Math.max(mScans.size(), MIN_COMPACT_RECORDS)) {
+                        snapshot = snapshot();
+                        nextId = mNextId;
+                    }
+                }
+                notifyAll();
+            }
+            if (failure != null) {
+                break;
+            }
+
+            if (snapshot != null) {
+                // Rewritten without holding the lock, so scans are still recorded meanwhile.
+                // Their records stay queued, and are appended to the new file next.
+                try {
+                    compact(snapshot, nextId);
+                } catch (IOException e) {
+                    // Appending to the old file carries on.
+                    Log.w(TAG, "Failed to compact the scan journal.", e);
+                }
+            }
+        }
+
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the scan journal.", e);
+        }
+    }
+
+    /**
+     * Reads back the records in the file, up to the first damaged one.  Must hold the lock.
+     */
+    private void replay() throws IOException {
+        if (!mFile.exists() || mFile.length() < FILE_HEADER_SIZE) {
+            return;
+        }
+
+        ByteBuffer data;
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            FileChannel channel = in.getChannel();
+            data = ByteBuffer.allocate((int) channel.size());
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // Keep reading.
+            }
+            data.flip();
+        } finally {
+            in.close();
+        }
+
+        if (data.getInt() != MAGIC || data.getInt() != VERSION) {
+            Log.w(TAG, "Discarding a scan journal in an unknown format.");
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        int records = 0;
+        while (data.remaining() >= RECORD_HEADER_SIZE) {
+            int length = data.getInt();
+            int expectedCrc = data.getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || length > data.remaining()) {
+                break;
+            }
+            crc.reset();
+            crc.update(data.array(), data.position(), length);
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.wrap(data.array(), data.position(), length).slice();
+            data.position(data.position() + length);
+            readRecord(payload);
+            records++;
+        }
+        if (data.hasRemaining()) {
+            Log.w(TAG, "Scan journal damaged after " + records + " records, ignoring the rest.");
+        }
+
+        // A crash may have left some uploads unfinished; they are sent again.
+        for (Entry entry : mScans.values()) {
+            if (entry.mState == STATE_IN_FLIGHT) {
+                entry.mState = STATE_PENDING;
+            }
+        }
+    }
+
+    private void readRecord(ByteBuffer payload) {
+        byte type = payload.get();
+        if (type == TYPE_SCAN) {
+            long id = payload.getLong();
+            long capturedAtMillis = payload.getLong();
+            String value = getString(payload);
+            String team = null;
+            String url = null;
+            if (payload.hasRemaining()) {
+                team = getString(payload);
+                url = getString(payload);
+            }
+            mScans.put(id, new Entry(new Scan(mJournalId, id, url, team, value,
+                    capturedAtMillis), STATE_PENDING));
+            mNextId = Math.max(mNextId, id + 1);
+        } else if (type == TYPE_JOURNAL_ID) {
+            // Always the first record, ahead of any scan.
+            mJournalId = new UUID(payload.getLong(), payload.getLong());
+        } else if (type == TYPE_NEXT_ID) {
+            mNextId = Math.max(mNextId, payload.getLong());
+        } else if (type == TYPE_STATE) {
+            byte state = payload.get();
+            int count = payload.getInt();
+            for (int i = 0; i < count; i++) {
+                applyState(payload.getLong(), state);
+            }
+        } else {
+            Log.w(TAG, "Skipping scan journal record of unknown type " + type);
+        }
+    }
+
+    /**
+     * Returns a copy of the scans not uploaded yet, with their state, oldest first.  Must hold
+     * the lock.
+     */
+    private List<Entry> snapshot() {
+        List<Entry> entries = new ArrayList<>(mScans.size());
+        for (Entry entry : mScans.values()) {
+            entries.add(new Entry(entry.mScan, entry.mState));
+        }
+        return entries;
+    }
+
+    /**
+     * Rewrites the file with the given scans and next scan id, and opens it for appending.  Runs
+     * either while opening or on the writer thread, without holding the lock.
+     */
+    private void compact(List<Entry> entries, long nextId) throws IOException {
+        List<Long> rejected = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.mState == STATE_REJECTED) {
+                rejected.add(entry.mScan.getId());
+            }
+        }
+        FileChannel channel = rewrite(entries, rejected, nextId);
+        if (mChannel != null) {
+            mChannel.close();
+        }
+        mChannel = channel;
+        synchronized (this) {
+            mRecordsInFile = 2 + entries.size() + (rejected.isEmpty() ? 0 : 1);
+        }
+    }
+
+    /**
+     * Writes the compacted journal to a temporary file which then replaces the journal file, and
+     * returns a channel for appending to it.
+     */
+    private FileChannel rewrite(List<Entry> entries, List<Long> rejected, long nextId)
+            throws IOException {
+        // Write to a temporary file first, so a crash halfway leaves the old journal intact.  The
+        // channel stays open across the rename, so it keeps appending to the new file.
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileChannel channel = new RandomAccessFile(temp, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(channel, header);
+
+            // The journal id and the next id go first, so that ids aren't given out again once
+            // every scan holding them has been compacted away.
+            ByteBuffer payload = ByteBuffer.allocate(1 + 16);
+            payload.put(TYPE_JOURNAL_ID).putLong(mJournalId.getMostSignificantBits())
+                    .putLong(mJournalId.getLeastSignificantBits());
+            writeFully(channel, frame(payload));
+            payload = ByteBuffer.allocate(1 + 8);
+            payload.put(TYPE_NEXT_ID).putLong(nextId);
+            writeFully(channel, frame(payload));
+
+            for (Entry entry : entries) {
+                writeFully(channel, frame(scanRecord(entry.mScan)));
+            }
+
+            // Every other scan left is pending, since a reopened journal sends in-flight ones
+            // again.
+            if (!rejected.isEmpty()) {
+                payload = ByteBuffer.allocate(1 + 1 + 4 + 8 * rejected.size());
+                payload.put(TYPE_STATE).put(STATE_REJECTED).putInt(rejected.size());
+                for (long id : rejected) {
+                    payload.putLong(id);
+                }
+                writeFully(channel, frame(payload));
+            }
+            channel.force(false);
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Could not rename " + temp + " to " + mFile);
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package technology.xor.barcode.upload;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import technology.xor.barcode.general.NoSSLv3SocketFactory;
+
+/**
+ * HTTPS client shared by all uploads in the process, and the {@link UploadTransport} going
+ * through HttpsURLConnection.
+ * <p/>
+ * The TLS context and socket factory are set up once, rather than for every request, and the
+ * factory is given to each connection instead of being installed as the global default.  Since
+ * every connection uses the same factory, the platform keeps connections alive between requests
+ * and reuses them, and new connections can resume an earlier TLS session from the session cache
+ * instead of going through a full handshake.  Handshakes and requests are timed separately in the
+ * client's {@link UploadMetrics}.
+ * <p/>
+ * A connection can also be opened ahead of time with {@link #prewarm(String, long)}, while the
+ * codes of a set are still being captured, so that the upload doesn't have to wait for DNS, TCP
+ * and TLS setup once the set is complete.
+ */
+public final class UploadClient implements UploadTransport {
+    private static final String TAG = "UploadClient";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 15000;
+
+    // Deflater buffer size for compressed bodies
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    // TLS sessions remembered for resumption, and for how long.
+    private static final int SESSION_CACHE_SIZE = 16;
+    private static final int SESSION_TIMEOUT_SECONDS = 12 * 60 * 60;
+
+    private static UploadClient sInstance;
+
+    private final SSLSocketFactory mSocketFactory;
+    private final UploadMetrics mMetrics = new UploadMetrics();
+
+    // Opens warm connections, and closes them again if they go unused
+    private final ScheduledExecutorService mWarmer;
+    private final WarmConnections mWarm;
+
+    UploadClient(SSLContext sslContext) {
+        configureSessions(sslContext);
+        mWarmer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG + "-warmer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mWarm = new WarmConnections(TAG, mMetrics, mWarmer);
+
+        // PREVENT SSLv3, and time the handshakes
+        mSocketFactory = new HandshakeTimingSocketFactory(
+                new NoSSLv3SocketFactory(sslContext.getSocketFactory()), mMetrics,
+                mWarm.getWarmingSockets());
+    }
+
+    /**
+     * Keeps enough TLS sessions, for long enough, that new connections to the upload server
+     * resume one instead of going through a full handshake.
+     */
+    static void configureSessions(SSLContext sslContext) {
+        SSLSessionContext sessions = sslContext.getClientSessionContext();
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Returns the process-wide client, creating it on first use.
+     */
+    public static synchronized UploadClient getInstance() throws GeneralSecurityException {
+        if (sInstance == null) {
+            // Force TLS1.2
+            SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+            sslContext.init(null, null, null);
+            sInstance = new UploadClient(sslContext);
+        }
+        return sInstance;
+    }
+
+    @Override
+    public Response post(String url, String contentType, final byte[] body,
+            Map<String, String> headers) throws IOException {
+        return execute(url, contentType, new BodyWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(body);
+            }
+        }, body.length, false, headers);
+    }
+
+    /**
+     * Posts a body of unknown length, written as it is sent in chunked streaming mode and
+     * compressed on the fly if asked to, and reads the response, whatever its status.
+     */
+    @Override
+    public Response post(String url, String contentType, BodyWriter body, boolean gzip,
+            Map<String, String> headers) throws IOException {
+        return execute(url, contentType, body, -1, gzip, headers);
+    }
+
+    /**
+     * Resolves the host of the given URL and opens a connection to it in the background, ready
+     * for the next request.  The connection is closed again if no request to the host has
+     * started within the idle timeout.  Does nothing if a warm connection to the host is still
+     * waiting to be used.
+     */
+    @Override
+    public void prewarm(final String url, final long idleTimeoutMillis) {
+        mWarmer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warm(new URL(url), idleTimeoutMillis);
+                } catch (IOException e) {
+                    // Nothing lost, the upload will connect by itself.
+                    Log.w(TAG, "Unable to prewarm a connection to " + url, e);
+                }
+            }
+        });
+    }
+
+    private void warm(URL url, long idleTimeoutMillis) throws IOException {
+        String host = url.getHost();
+        if (mWarm.isWarm(host)) {
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        InetAddress.getAllByName(host);
+        long resolvedNanos = System.nanoTime();
+
+        // A HEAD request leaves a connection in the pool, which the upload then picks up.
+        List<Socket> sockets = mWarm.startWarming();
+        try {
+            HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+            conn.setSSLSocketFactory(mSocketFactory);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setRequestMethod("HEAD");
+            int code = conn.getResponseCode();
+            InputStream in = code < HttpsURLConnection.HTTP_BAD_REQUEST
+                    ? conn.getInputStream() : conn.getErrorStream();
+            if (in != null) {
+                readFully(in);
+            }
+        } finally {
+            mWarm.stopWarming();
+        }
+        Log.d(TAG, "Prewarmed a connection to " + host + ": DNS "
+                + (resolvedNanos - startNanos) / 1000000 + " ms, connection "
+                + (System.nanoTime() - resolvedNanos) / 1000000 + " ms");
+        mWarm.warmed(host, sockets, idleTimeoutMillis);
+    }
+
+    private Response execute(String url, String contentType, BodyWriter body, long length,
+            boolean gzip, Map<String, String> headers) throws IOException {
+        long startNanos = System.nanoTime();
+        mMetrics.mRequests.incrementAndGet();
+        try {
+            URL target = new URL(url);
+            mWarm.onRequest(target.getHost());
+            HttpsURLConnection conn = (HttpsURLConnection) target.openConnection();
+            conn.setSSLSocketFactory(mSocketFactory);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", contentType);
+            if (gzip) {
+                conn.setRequestProperty("Content-Encoding", "gzip");
+            }
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+            conn.setDoInput(true);
+            conn.setDoOutput(true);
+            if (length >= 0 && !gzip) {
+                conn.setFixedLengthStreamingMode(length);
+            } else {
+                conn.setChunkedStreamingMode(0);
+            }
+
+            OutputStream out = conn.getOutputStream();
+            try {
+                if (gzip) {
+                    GZIPOutputStream gzipOut = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+                    body.writeTo(gzipOut);
+                    gzipOut.finish();
+                } else {
+                    body.writeTo(out);
+                }
+            } finally {
+                out.close();
+            }
+
+            int code = conn.getResponseCode();
+            InputStream in = code < HttpsURLConnection.HTTP_BAD_REQUEST
+                    ? conn.getInputStream() : conn.getErrorStream();
+            // Read to the end and closed, but not disconnected, so the connection is kept alive.
+            String responseBody = in != null ? readFully(in) : "";
+            return new Response(code, conn.getHeaderFields(), responseBody);
+        } catch (IOException e) {
+            mMetrics.mFailures.incrementAndGet();
+            throw e;
+        } finally {
+            mMetrics.mRequestNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Returns the request and handshake counters of this client.
+     */
+    @Override
+    public UploadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
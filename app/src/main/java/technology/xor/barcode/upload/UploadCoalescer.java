@@ -0,0 +1,164 @@
+package technology.xor.barcode.upload;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs scan sets into batch uploads, so that many sets go to the server in one request instead
+ * of one request each.
+ * <p/>
+ * Sets are queued by {@link #add(String, String, List)}, and sent once the configured number of
+ * sets is waiting or the oldest set has lingered for the configured time, whichever comes first.
+ * While the server is overloaded, the scheduler may ask for smaller batches than configured.
+ * Each batch is handed to the {@link UploadScheduler} as a single {@link UploadJob}, which
+ * streams them to the server gzip-compressed.
+ * <p/>
+ * The coalescer is process-wide, so sets keep lingering after the activity which queued them has
+ * finished.  Their scans are marked in flight in the {@link ScanJournal} as soon as they are
+ * queued, and are pending again if the process dies before the batch is accepted.
+ */
+public final class UploadCoalescer {
+    private static final String TAG = "UploadCoalescer";
+
+    private static final int DEFAULT_MAX_SETS = 20;
+    private static final long DEFAULT_LINGER_MILLIS = 60000;
+
+    // Why a batch was sent, for the log
+    private static final String FLUSH_SIZE = "size";
+    private static final String FLUSH_LINGER = "linger";
+    private static final String FLUSH_MANUAL = "manual";
+    private static final String FLUSH_URL_CHANGED = "url changed";
+
+    private static UploadCoalescer sInstance;
+
+    private final UploadScheduler mScheduler;
+    private final ScanJournal mJournal;
+    private final ScheduledExecutorService mTimer;
+
+    // Guarded by this
+    private int mMaxSets = DEFAULT_MAX_SETS;
+    private long mLingerMillis = DEFAULT_LINGER_MILLIS;
+    private String mUrl;
+    private ArrayList<UploadJob.ScanSet> mPending = new ArrayList<>();
+    private ScheduledFuture<?> mLingerFlush;
+
+    // Counts the batches sent, so that a linger timer which fired too late to be cancelled can
+    // tell it is no longer wanted.
+    private int mBatchCount;
+
+    UploadCoalescer(UploadScheduler scheduler, ScanJournal journal) {
+        mScheduler = scheduler;
+        mJournal = journal;
+        mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the process-wide coalescer, creating it on first use.
+     */
+    public static synchronized UploadCoalescer getInstance(Context context)
+            throws GeneralSecurityException {
+        if (sInstance == null) {
+            sInstance = new UploadCoalescer(UploadScheduler.getInstance(context),
+                    ScanJournal.getInstance(context.getApplicationContext()));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Sets how many sets make a full batch, and how long a set may wait for others to join it.
+     * Applies from the next set queued.
+     */
+    public synchronized void setPolicy(int maxSets, long lingerMillis) {
+        if (maxSets <= 0) {
+            throw new IllegalArgumentException("Invalid batch size: " + maxSets);
+        }
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("Invalid linger time: " + lingerMillis);
+        }
+        mMaxSets = maxSets;
+        mLingerMillis = lingerMillis;
+    }
+
+    /**
+     * Queues a set of codes for the batch endpoint at the given URL.  A set queued for a
+     * different URL than the waiting ones sends those first.
+     */
+    public void add(String url, String team, List<ScanJournal.Scan> scans) {
+        mJournal.markInFlight(scans);
+        synchronized (this) {
+            enqueue(url, new UploadJob.ScanSet(team, scans));
+        }
+    }
+
+    // Called with the lock held
+    private void enqueue(String url, UploadJob.ScanSet set) {
+        if (mUrl != null && !mUrl.equals(url)) {
+            send(FLUSH_URL_CHANGED);
+        }
+        mUrl = url;
+        mPending.add(set);
+
+        if (mPending.size() >= Math.min(mMaxSets, mScheduler.getBatchSizeLimit())) {
+            send(FLUSH_SIZE);
+        } else if (mPending.size() == 1) {
+            final int batch = mBatchCount;
+            mLingerFlush = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (UploadCoalescer.this) {
+                        if (mBatchCount == batch) {
+                            send(FLUSH_LINGER);
+                        }
+                    }
+                }
+            }, mLingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the waiting sets right away, if there are any.
+     */
+    public synchronized void flush() {
+        send(FLUSH_MANUAL);
+    }
+
+    /**
+     * Returns the number of sets waiting for the next batch.
+     */
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    // Called with the lock held
+    private void send(String reason) {
+        if (mLingerFlush != null) {
+            mLingerFlush.cancel(false);
+            mLingerFlush = null;
+        }
+        if (mPending.isEmpty()) {
+            return;
+        }
+        UploadJob job = UploadJob.forBatch(mUrl, mPending);
+        mPending = new ArrayList<>();
+        mBatchCount++;
+        Log.d(TAG, "Sending " + job.getSetCount() + " sets, " + job.getScans().size()
+                + " codes (" + reason + ")");
+        mScheduler.submit(job);
+    }
+}
@@ -0,0 +1,180 @@
+package technology.xor.barcode.upload;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * One upload request for the {@link UploadScheduler}: either a single set of codes, posted as
+ * <pre>
+ * {"team": "...", "1": "...", "2": "...", ...}
+ * </pre>
+ * or a batch of sets, posted gzip-compressed as {@code {"sets": [...]}} with every set in the
+ * form above.
+ * <p/>
+ * Every request carries an Idempotency-Key header derived from the ids of its scans and of the
+ * journal they were recorded in, so that it is the same on every retry, and the server can tell a
+ * retry of a request it already handled, but whose response was lost, from a new one.  Scan ids
+ * are never reused within a journal, and every install has its own journal id, so no other set
+ * gets the same key.
+ */
+public final class UploadJob {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CONTENT_TYPE = "application/json";
+
+    /**
+     * Codes scanned together, by one team.
+     */
+    static final class ScanSet {
+        final String mTeam;
+        final List<ScanJournal.Scan> mScans;
+
+        // When the set was complete and handed over for upload (System.nanoTime)
+        final long mCompletedAtNanos = System.nanoTime();
+
+        ScanSet(String team, List<ScanJournal.Scan> scans) {
+            mTeam = team;
+            mScans = Collections.unmodifiableList(new ArrayList<>(scans));
+        }
+    }
+
+    private final String mUrl;
+    private final List<ScanSet> mSets;
+    private final boolean mBatch;
+    private final List<ScanJournal.Scan> mScans;
+    private final String mIdempotencyKey;
+    private final long mCompletedAtNanos;
+
+    // Guarded by the scheduler
+    int mAttempts;
+
+    private UploadJob(String url, List<ScanSet> sets, boolean batch) {
+        mUrl = url;
+        mSets = sets;
+        mBatch = batch;
+
+        List<ScanJournal.Scan> scans = new ArrayList<>();
+        long completedAtNanos = sets.get(0).mCompletedAtNanos;
+        for (ScanSet set : sets) {
+            scans.addAll(set.mScans);
+            completedAtNanos = Math.min(completedAtNanos, set.mCompletedAtNanos);
+        }
+        mCompletedAtNanos = completedAtNanos;
+        mScans = Collections.unmodifiableList(scans);
+
+        UUID journalId = scans.get(0).getJournalId();
+        ByteBuffer ids = ByteBuffer.allocate(16 + 8 * scans.size());
+        ids.putLong(journalId.getMostSignificantBits())
+                .putLong(journalId.getLeastSignificantBits());
+        for (ScanJournal.Scan scan : scans) {
+            ids.putLong(scan.getId());
+        }
+        mIdempotencyKey = UUID.nameUUIDFromBytes(ids.array()).toString();
+    }
+
+    /**
+     * Returns a job posting a single set of codes to the given URL.
+     */
+    public static UploadJob forSet(String url, String team, List<ScanJournal.Scan> scans) {
+        if (scans.isEmpty()) {
+            throw new IllegalArgumentException("Empty scan set");
+        }
+        return new UploadJob(url, Collections.singletonList(new ScanSet(team, scans)), false);
+    }
+
+    /**
+     * Returns a job posting the given sets together to a batch endpoint.
+     */
+    static UploadJob forBatch(String url, List<ScanSet> sets) {
+        if (sets.isEmpty()) {
+            throw new IllegalArgumentException("Empty batch");
+        }
+        return new UploadJob(url, new ArrayList<>(sets), true);
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Returns the scans of all sets of the job.
+     */
+    public List<ScanJournal.Scan> getScans() {
+        return mScans;
+    }
+
+    public String getIdempotencyKey() {
+        return mIdempotencyKey;
+    }
+
+    /**
+     * Returns when the oldest set of the job was complete, on the System.nanoTime clock.
+     */
+    public long getCompletedAtNanos() {
+        return mCompletedAtNanos;
+    }
+
+    /**
+     * Returns the number of sets of codes the job posts.
+     */
+    public int getSetCount() {
+        return mSets.size();
+    }
+
+    /**
+     * Posts the job once.
+     */
+    UploadTransport.Response post(UploadTransport transport) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept", CONTENT_TYPE);
+        headers.put("Idempotency-Key", mIdempotencyKey);
+
+        if (mBatch) {
+            return transport.post(mUrl, CONTENT_TYPE, new UploadTransport.BodyWriter() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    writeBatch(out);
+                }
+            }, true, headers);
+        }
+        // A single set is small, and sent with a fixed length as it always was.
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(body, UTF_8));
+        writeSet(writer, mSets.get(0));
+        writer.close();
+        return transport.post(mUrl, CONTENT_TYPE, body.toByteArray(), headers);
+    }
+
+    private void writeBatch(OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, UTF_8));
+        writer.beginObject();
+        writer.name("sets").beginArray();
+        for (ScanSet set : mSets) {
+            writeSet(writer, set);
+        }
+        writer.endArray();
+        writer.endObject();
+        // Flushed but not closed; the transport finishes the stream.
+        writer.flush();
+    }
+
+    private static void writeSet(JsonWriter writer, ScanSet set) throws IOException {
+        writer.beginObject();
+        writer.name("team").value(set.mTeam);
+        for (int i = 0; i < set.mScans.size(); i++) {
+            writer.name(String.valueOf(i + 1)).value(set.mScans.get(i).getValue());
+        }
+        writer.endObject();
+    }
+}
@@ -0,0 +1,145 @@
+package technology.xor.barcode.upload;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the requests made by an {@link UploadTransport}, how much of their time
+ * went into TLS handshakes, and how long codes took from capture to being acknowledged by the
+ * server.  Counters are cumulative over the lifetime of the transport.
+ */
+public final class UploadMetrics {
+    final AtomicLong mRequests = new AtomicLong();
+    final AtomicLong mFailures = new AtomicLong();
+    final AtomicLong mRequestNanos = new AtomicLong();
+    final AtomicLong mHandshakes = new AtomicLong();
+    final AtomicLong mResumedHandshakes = new AtomicLong();
+    final AtomicLong mHandshakeNanos = new AtomicLong();
+    final AtomicLong mPrewarms = new AtomicLong();
+    final AtomicLong mPrewarmsUsed = new AtomicLong();
+    final AtomicLong mPrewarmsDropped = new AtomicLong();
+    final AtomicLong mAcks = new AtomicLong();
+    final AtomicLong mAckNanos = new AtomicLong();
+    final AtomicLong mMaxAckNanos = new AtomicLong();
+
+    UploadMetrics() {
+    }
+
+    /**
+     * Returns the number of requests made, whether they succeeded or not.
+     */
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * Returns the number of requests which failed before a response was received.
+     */
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    /**
+     * Returns the number of TLS handshakes, which is the number of new connections made.
+     */
+    public long getHandshakeCount() {
+        return mHandshakes.get();
+    }
+
+    /**
+     * Returns the number of TLS handshakes which resumed an earlier session.
+     */
+    public long getResumedHandshakeCount() {
+        return mResumedHandshakes.get();
+    }
+
+    /**
+     * Returns the average time, in milliseconds, from the start of a request until its response
+     * was read, including any handshake.
+     */
+    public float getAverageRequestMillis() {
+        long requests = mRequests.get();
+        return requests == 0 ? 0 : mRequestNanos.get() / 1e6f / requests;
+    }
+
+    /**
+     * Returns the average time, in milliseconds, spent in a TLS handshake.
+     */
+    public float getAverageHandshakeMillis() {
+        long handshakes = mHandshakes.get();
+        return handshakes == 0 ? 0 : mHandshakeNanos.get() / 1e6f / handshakes;
+    }
+
+    /**
+     * Returns the number of connections opened ahead of an upload.
+     */
+    public long getPrewarmCount() {
+        return mPrewarms.get();
+    }
+
+    /**
+     * Returns the number of connections opened ahead of an upload which an upload then used.
+     */
+    public long getPrewarmUsedCount() {
+        return mPrewarmsUsed.get();
+    }
+
+    /**
+     * Returns the number of connections opened ahead of an upload which were closed unused.
+     */
+    public long getPrewarmDroppedCount() {
+        return mPrewarmsDropped.get();
+    }
+
+    /**
+     * Returns the number of uploads acknowledged by the server.
+     */
+    public long getAckCount() {
+        return mAcks.get();
+    }
+
+    /**
+     * Returns the average time, in milliseconds, from a set of codes being complete to the
+     * server acknowledging it.
+     */
+    public float getAverageAckMillis() {
+        long acks = mAcks.get();
+        return acks == 0 ? 0 : mAckNanos.get() / 1e6f / acks;
+    }
+
+    /**
+     * Returns the longest time, in milliseconds, from a set of codes being complete to the
+     * server acknowledging it.
+     */
+    public float getMaxAckMillis() {
+        return mMaxAckNanos.get() / 1e6f;
+    }
+
+    /**
+     * Records the acknowledgement of codes completed the given time ago.
+     */
+    void recordAck(long ackNanos) {
+        mAckNanos.addAndGet(ackNanos);
+        mAcks.incrementAndGet();
+        long max;
+        while (ackNanos > (max = mMaxAckNanos.get())
+                && !mMaxAckNanos.compareAndSet(max, ackNanos)) {
+            // Raced with another acknowledgement, try again
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + getRequestCount()
+                + " failures=" + getFailureCount()
+                + " handshakes=" + getHandshakeCount()
+                + " resumedHandshakes=" + getResumedHandshakeCount()
+                + " avgRequestMillis=" + getAverageRequestMillis()
+                + " avgHandshakeMillis=" + getAverageHandshakeMillis()
+                + " prewarms=" + getPrewarmCount()
+                + " prewarmsUsed=" + getPrewarmUsedCount()
+                + " prewarmsDropped=" + getPrewarmDroppedCount()
+                + " acks=" + getAckCount()
+                + " avgAckMillis=" + getAverageAckMillis()
+                + " maxAckMillis=" + getMaxAckMillis();
+    }
+}
@@ -0,0 +1,415 @@
+package technology.xor.barcode.upload;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs uploads in the background, retrying them until the server accepts them.
+ * <p/>
+ * Jobs run on a small pool of upload threads, and go out through an {@link UploadTransport}
+ * picked for the class of device.  How many run at once, up to
+ * {@link #MAX_CONCURRENT_UPLOADS}, is adapted to the server's latency and overload responses by
+ * an {@link AimdController}, which also sizes the batches of the {@link UploadCoalescer} and
+ * pauses all uploads for as long as a Retry-After asks.
+ * <p/>
+ * A job that fails with a network error or a response worth retrying (408, 429 or 5xx) is tried
+ * again after an exponential backoff with jitter, so that devices which lost the server at the
+ * same time don't all come back at the same moment.  While there is no network, jobs are
+ * held back instead of burning through their attempts, and all of them are sent as soon as the
+ * network returns.  A job which runs out of attempts is given up, and its scans are left pending
+ * in the {@link ScanJournal} for a later session.  Any other response is final: the scans are
+ * marked rejected in the journal, where they are kept, but they aren't sent again.
+ * <p/>
+ * The scheduler is process-wide and doesn't depend on any activity, so uploads carry on after
+ * the capture activity has finished.
+ */
+public final class UploadScheduler {
+    private static final String TAG = "UploadScheduler";
+
+    static final int MAX_CONCURRENT_UPLOADS = 4;
+    private static final int INITIAL_CONCURRENT_UPLOADS = 2;
+
+    // Most scan sets in a batch upload, and the response time above which the server is taken
+    // to be overloaded
+    private static final int MAX_BATCH_SETS = 100;
+    private static final long LATENCY_TARGET_MILLIS = 3000;
+
+    // Attempts before a job is given up, and the backoff between them
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Classes of device which may be given different transports.
+     */
+    static final int DEVICE_CLASS_LOW_RAM = 0;
+    static final int DEVICE_CLASS_STANDARD = 1;
+
+    /**
+     * Transports uploads can go through.
+     */
+    static final int TRANSPORT_HTTPS_URL_CONNECTION = 0;
+    static final int TRANSPORT_VOLLEY = 1;
+
+    // Transport for each class of device, by class.  The HttpsURLConnection client streams
+    // compressed batch bodies instead of holding them in memory, so it is used for a class until
+    // UploadTransportBenchmark has shown Volley to be faster there.
+    private static final int[] TRANSPORT_BY_DEVICE_CLASS = {
+            TRANSPORT_HTTPS_URL_CONNECTION,
+            TRANSPORT_HTTPS_URL_CONNECTION,
+    };
+
+    private static UploadScheduler sInstance;
+
+    /**
+     * Tells whether the device can currently reach the network.
+     */
+    interface Connectivity {
+        boolean isOnline();
+    }
+
+    private final UploadTransport mTransport;
+    private final ScanJournal mJournal;
+    private final Connectivity mConnectivity;
+    private final AimdController mController;
+    private final long mBaseBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledExecutorService mTimer;
+    private final Random mRandom = new Random();
+
+    // Guarded by this
+    private final ArrayDeque<UploadJob> mReady = new ArrayDeque<>();
+    private final List<UploadJob> mOffline = new ArrayList<>();
+    private int mRunning;
+    private int mBackingOff;
+    private boolean mResumeScheduled;
+
+    UploadScheduler(UploadTransport transport, ScanJournal journal, Connectivity connectivity,
+            long baseBackoffMillis, long maxBackoffMillis) {
+        this(transport, journal, connectivity, new AimdController(INITIAL_CONCURRENT_UPLOADS,
+                MAX_CONCURRENT_UPLOADS, MAX_BATCH_SETS, LATENCY_TARGET_MILLIS),
+                baseBackoffMillis, maxBackoffMillis);
+    }
+
+    UploadScheduler(UploadTransport transport, ScanJournal journal, Connectivity connectivity,
+            AimdController controller, long baseBackoffMillis, long maxBackoffMillis) {
+        if (baseBackoffMillis <= 0 || maxBackoffMillis < baseBackoffMillis) {
+            throw new IllegalArgumentException(
+                    "Invalid backoff: " + baseBackoffMillis + " to " + maxBackoffMillis);
+        }
+        mTransport = transport;
+        mJournal = journal;
+        mConnectivity = connectivity;
+        mController = controller;
+        mBaseBackoffMillis = baseBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+
+        // Never more jobs handed to the pool than it has threads, so its queue can't fill up.
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_UPLOADS, MAX_CONCURRENT_UPLOADS,
+                30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_CONCURRENT_UPLOADS),
+                new NamedThreadFactory(TAG));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mTimer = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory(TAG + "-timer"));
+    }
+
+    /**
+     * Returns the process-wide scheduler, creating it on first use.
+     */
+    public static synchronized UploadScheduler getInstance(Context context)
+            throws GeneralSecurityException {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            NetworkMonitor monitor = new NetworkMonitor(appContext);
+            int deviceClass = getDeviceClass(appContext);
+            sInstance = new UploadScheduler(createTransport(getTransport(deviceClass)),
+                    ScanJournal.getInstance(appContext), monitor,
+                    BASE_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+            monitor.start(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the class of the device, as far as picking a transport goes.
+     */
+    static int getDeviceClass(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager != null && activityManager.isLowRamDevice()
+                ? DEVICE_CLASS_LOW_RAM : DEVICE_CLASS_STANDARD;
+    }
+
+    /**
+     * Returns the transport uploads go through on the given class of device.
+     */
+    static int getTransport(int deviceClass) {
+        if (deviceClass < 0 || deviceClass >= TRANSPORT_BY_DEVICE_CLASS.length) {
+            throw new IllegalArgumentException("Invalid device class: " + deviceClass);
+        }
+        return TRANSPORT_BY_DEVICE_CLASS[deviceClass];
+    }
+
+    /**
+     * Returns the process-wide instance of the given transport.
+     */
+    static UploadTransport createTransport(int transport) throws GeneralSecurityException {
+        switch (transport) {
+            case TRANSPORT_HTTPS_URL_CONNECTION:
+                return UploadClient.getInstance();
+            case TRANSPORT_VOLLEY:
+                return VolleyTransport.getInstance();
+            default:
+                throw new IllegalArgumentException("Invalid transport: " + transport);
+        }
+    }
+
+    /**
+     * Queues a job, marking its scans as being uploaded.
+     */
+    public void submit(UploadJob job) {
+        mJournal.markInFlight(job.getScans());
+        synchronized (this) {
+            mReady.add(job);
+            pump();
+        }
+    }
+
+    /**
+     * Opens a connection for an upload to the given URL which is coming soon, unless the device
+     * is offline.
+     *
+     * @see UploadTransport#prewarm(String, long)
+     */
+    public void prewarm(String url, long idleTimeoutMillis) {
+        if (mConnectivity.isOnline()) {
+            mTransport.prewarm(url, idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * Returns the counters of the transport the uploads go through.
+     */
+    public UploadMetrics getMetrics() {
+        return mTransport.getMetrics();
+    }
+
+    /**
+     * Returns the number of scan sets a batch upload should currently hold, which shrinks while
+     * the server is overloaded.
+     */
+    int getBatchSizeLimit() {
+        return mController.getBatchSize();
+    }
+
+    /**
+     * Sends the jobs held back while the device was offline.  Called by the network monitor.
+     */
+    synchronized void onNetworkAvailable() {
+        if (!mOffline.isEmpty()) {
+            Log.i(TAG, "Network is back, sending " + mOffline.size() + " held uploads");
+            mReady.addAll(mOffline);
+            mOffline.clear();
+        }
+        pump();
+    }
+
+    /**
+     * Returns the number of jobs not finished yet, whether running, waiting to be retried or
+     * held back for the network.
+     */
+    public synchronized int getUnfinishedCount() {
+        return mReady.size() + mOffline.size() + mRunning + mBackingOff;
+    }
+
+    /**
+     * Stops the upload threads.  Jobs not finished yet stay in flight in the journal, and are
+     * pending again once it is reopened.
+     */
+    void shutdown() {
+        mTimer.shutdownNow();
+        mExecutor.shutdownNow();
+    }
+
+    // Called with the lock held
+    private void pump() {
+        while (mRunning < mController.getConcurrencyLimit() && !mReady.isEmpty()) {
+            if (!mConnectivity.isOnline()) {
+                mOffline.addAll(mReady);
+                mReady.clear();
+                return;
+            }
+            long pauseMillis = mController.getPauseMillis(System.currentTimeMillis());
+            if (pauseMillis > 0) {
+                resumeAfter(pauseMillis);
+                return;
+            }
+            final UploadJob job = mReady.poll();
+            mRunning++;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        attempt(job);
+                    } finally {
+                        synchronized (UploadScheduler.this) {
+                            mRunning--;
+                            pump();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts the jobs again once the Retry-After pause is over.  Called with the lock held.
+     */
+    private void resumeAfter(long pauseMillis) {
+        if (mResumeScheduled) {
+            return;
+        }
+        mResumeScheduled = true;
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (UploadScheduler.this) {
+                    mResumeScheduled = false;
+                    pump();
+                }
+            }
+        }, pauseMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(UploadJob job) {
+        job.mAttempts++;
+        long startedAtMillis = System.currentTimeMillis();
+        try {
+            UploadTransport.Response response = job.post(mTransport);
+            int code = response.getCode();
+            if (code == HttpURLConnection.HTTP_OK) {
+                mController.onSuccess(startedAtMillis, System.currentTimeMillis());
+                mJournal.markUploaded(job.getScans());
+                long ackNanos = System.nanoTime() - job.getCompletedAtNanos();
+                mTransport.getMetrics().recordAck(ackNanos);
+                Log.i(TAG, "Upload " + job.getIdempotencyKey() + " acknowledged "
+                        + ackNanos / 1000000 + " ms after its codes were complete, attempt "
+                        + job.mAttempts);
+            } else if (isRetryable(code)) {
+                retry(job, "HTTP " + code, startedAtMillis, AimdController.parseRetryAfter(
+                        response.getHeader("Retry-After"), System.currentTimeMillis()));
+            } else {
+                reject(job, code);
+            }
+        } catch (IOException e) {
+            retry(job, e.toString(), startedAtMillis, 0);
+        }
+    }
+
+    private void retry(final UploadJob job, String reason, long startedAtMillis,
+            long retryAfterMillis) {
+        synchronized (this) {
+            if (!mConnectivity.isOnline()) {
+                // Held until the network is back, without using up an attempt.
+                job.mAttempts--;
+                mOffline.add(job);
+                return;
+            }
+        }
+        mController.onOverload(startedAtMillis, System.currentTimeMillis(), retryAfterMillis);
+        if (job.mAttempts >= MAX_ATTEMPTS) {
+            giveUp(job, reason);
+            return;
+        }
+
+        long delayMillis = backoffMillis(job.mAttempts);
+        Log.w(TAG, "Upload " + job.getIdempotencyKey() + " failed (" + reason + "), attempt "
+                + job.mAttempts + ", retrying in " + delayMillis + " ms, " + mController);
+        synchronized (this) {
+            mBackingOff++;
+        }
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (UploadScheduler.this) {
+                    mBackingOff--;
+                    mReady.add(job);
+                    pump();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives up a job which ran out of attempts.  Its scans are pending again, to be sent in a
+     * later session.
+     */
+    private void giveUp(UploadJob job, String reason) {
+        Log.e(TAG, "Giving up upload " + job.getIdempotencyKey() + " after " + job.mAttempts
+                + " attempts (" + reason + "), its " + job.getScans().size()
+                + " codes stay pending");
+        mJournal.markFailed(job.getScans());
+    }
+
+    /**
+     * Gives up a job the server gave a final response to.  Sending it again would get the same
+     * response, so its scans are marked rejected, and aren't sent again automatically.
+     */
+    private void reject(UploadJob job, int code) {
+        Log.e(TAG, "Upload " + job.getIdempotencyKey() + " rejected with HTTP " + code
+                + ", its " + job.getScans().size() + " codes are kept but not sent again");
+        mJournal.markRejected(job.getScans());
+    }
+
+    /**
+     * Returns the delay before the next attempt: half of the exponential backoff for the number
+     * of attempts made, plus a random share of the other half.
+     */
+    private long backoffMillis(int attempts) {
+        long backoff = mBaseBackoffMillis;
+        for (int i = 1; i < attempts && backoff < mMaxBackoffMillis; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, mMaxBackoffMillis);
+        return backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+    }
+
+    private static boolean isRetryable(int code) {
+        return code == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || code == 429
+                || code >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package technology.xor.barcode.upload;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries upload requests to the server, for the {@link UploadScheduler}.
+ * <p/>
+ * The scheduler decides when and how often a request is made, and how many are in flight at
+ * once; a transport only makes the request and reads its response, on the calling thread.
+ * {@link UploadClient} does so with HttpsURLConnection, and {@link VolleyTransport} hands the
+ * request to a Volley queue.  Which one a device uses is picked by
+ * {@link UploadScheduler#getInstance(android.content.Context)}, so that the capture code never
+ * has to know.
+ */
+public interface UploadTransport {
+    /**
+     * Response to a request.  The body has been read completely, so the connection could go back
+     * to the pool.
+     */
+    final class Response {
+        private final int mCode;
+        private final Map<String, List<String>> mHeaders;
+        private final String mBody;
+
+        Response(int code, Map<String, List<String>> headers, String body) {
+            mCode = code;
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        /**
+         * Returns the first value of the given response header, or null if it isn't present.
+         */
+        public String getHeader(String name) {
+            for (Map.Entry<String, List<String>> header : mHeaders.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                    return header.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+        public String getBody() {
+            return mBody;
+        }
+    }
+
+    /**
+     * Writes a request body straight to the connection, so that it never has to be held in
+     * memory as a whole.
+     */
+    interface BodyWriter {
+        /**
+         * Writes the body.  The stream is finished and closed by the transport afterwards.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Posts the given body and reads the response, whatever its status.
+     *
+     * @param headers additional request headers, may be empty
+     * @throws IOException if no response could be read
+     */
+    Response post(String url, String contentType, byte[] body, Map<String, String> headers)
+            throws IOException;
+
+    /**
+     * Posts a body of unknown length and reads the response, whatever its status.
+     *
+     * @param gzip    whether to compress the body, with a Content-Encoding of gzip
+     * @param headers additional request headers, may be empty
+     * @throws IOException if the body couldn't be written or no response could be read
+     */
+    Response post(String url, String contentType, BodyWriter body, boolean gzip,
+            Map<String, String> headers) throws IOException;
+
+    /**
+     * Gets a connection to the host of the given URL ready in the background, for a request
+     * which is coming soon.  Transports which can't do so ignore the call.
+     */
+    void prewarm(String url, long idleTimeoutMillis);
+
+    /**
+     * Returns the request counters of this transport.
+     */
+    UploadMetrics getMetrics();
+}
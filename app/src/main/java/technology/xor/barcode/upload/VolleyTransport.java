@@ -0,0 +1,300 @@
+package technology.xor.barcode.upload;
+
+import android.util.Log;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpResponse;
+import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.toolbox.RequestFuture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLContext;
+
+import technology.xor.barcode.general.NoSSLv3SocketFactory;
+
+/**
+ * {@link UploadTransport} handing requests to a Volley queue, whose network dispatchers run them
+ * in parallel.
+ * <p/>
+ * The queue has no cache, and Volley doesn't retry: retries and backoff are left to the
+ * {@link UploadScheduler}.  Responses are delivered on the dispatcher thread which read them,
+ * instead of Volley's default of the main thread, so that a busy capture screen doesn't hold up
+ * the upload thread waiting for them.  Volley sends request bodies from memory, so a streamed
+ * body is written out, and compressed if asked to, before the request is queued.
+ * <p/>
+ * As in {@link UploadClient}, TLS sessions are kept for resumption, handshakes are timed, and a
+ * prewarmed connection which no request has used within its idle timeout is closed.
+ */
+final class VolleyTransport implements UploadTransport {
+    private static final String TAG = "VolleyTransport";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Applies to connecting and to reading alike, as in HurlStack
+    private static final int TIMEOUT_MS = 15000;
+
+    // How long to wait for a request, on top of the timeout of its connection
+    private static final long RESPONSE_GRACE_MS = 5000;
+
+    private static VolleyTransport sInstance;
+
+    private final RequestQueue mQueue;
+    private final UploadMetrics mMetrics = new UploadMetrics();
+    private final WarmConnections mWarm;
+
+    /**
+     * @param dispatchers number of requests the queue runs at once
+     */
+    VolleyTransport(SSLContext sslContext, int dispatchers) {
+        if (dispatchers <= 0) {
+            throw new IllegalArgumentException("Invalid dispatcher count: " + dispatchers);
+        }
+        // Closes warm connections again if they go unused
+        ScheduledExecutorService dropper = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, TAG + "-dropper");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mWarm = new WarmConnections(TAG, mMetrics, dropper);
+        UploadClient.configureSessions(sslContext);
+
+        // PREVENT SSLv3, and time the handshakes
+        HurlStack stack = new HurlStack(null, new HandshakeTimingSocketFactory(
+                new NoSSLv3SocketFactory(sslContext.getSocketFactory()), mMetrics,
+                mWarm.getWarmingSockets())) {
+            @Override
+            public HttpResponse executeRequest(Request<?> request,
+                    Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+                if (!(request instanceof PrewarmRequest)) {
+                    return super.executeRequest(request, additionalHeaders);
+                }
+                PrewarmRequest prewarm = (PrewarmRequest) request;
+                List<Socket> sockets = mWarm.startWarming();
+                HttpResponse response;
+                try {
+                    response = super.executeRequest(request, additionalHeaders);
+                } finally {
+                    mWarm.stopWarming();
+                }
+                mWarm.warmed(prewarm.mHost, sockets, prewarm.mIdleTimeoutMillis);
+                return response;
+            }
+        };
+        mQueue = new RequestQueue(new NoCache(), new BasicNetwork(stack), dispatchers,
+                new ExecutorDelivery(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                }));
+        mQueue.start();
+    }
+
+    /**
+     * Returns the process-wide Volley transport, creating it on first use.
+     */
+    static synchronized VolleyTransport getInstance() throws GeneralSecurityException {
+        if (sInstance == null) {
+            // Force TLS1.2
+            SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+            sslContext.init(null, null, null);
+            sInstance = new VolleyTransport(sslContext, UploadScheduler.MAX_CONCURRENT_UPLOADS);
+        }
+        return sInstance;
+    }
+
+    @Override
+    public Response post(String url, String contentType, byte[] body,
+            Map<String, String> headers) throws IOException {
+        long startNanos = System.nanoTime();
+        mMetrics.mRequests.incrementAndGet();
+        RequestFuture<Response> future = RequestFuture.newFuture();
+        Request<Response> request =
+                new BytesRequest(Request.Method.POST, url, contentType, body, headers, future);
+        future.setRequest(request);
+        try {
+            mWarm.onRequest(new URL(url).getHost());
+            mQueue.add(request);
+            return await(future);
+        } catch (IOException e) {
+            mMetrics.mFailures.incrementAndGet();
+            Log.w(TAG, "Request to " + url + " failed", e);
+            throw e;
+        } finally {
+            mMetrics.mRequestNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+    }
+
+    @Override
+    public Response post(String url, String contentType, BodyWriter body, boolean gzip,
+            Map<String, String> headers) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (gzip) {
+            GZIPOutputStream gzipOut = new GZIPOutputStream(bytes);
+            body.writeTo(gzipOut);
+            gzipOut.close();
+            headers = new HashMap<>(headers);
+            headers.put("Content-Encoding", "gzip");
+        } else {
+            body.writeTo(bytes);
+        }
+        return post(url, contentType, bytes.toByteArray(), headers);
+    }
+
+    /**
+     * Sends a HEAD request to the host of the given URL, which leaves a connection in the pool
+     * of Volley's stack for the next request.  The connection is closed again if no request to
+     * the host has started within the idle timeout.  Does nothing if a warm connection to the
+     * host is still waiting to be used.
+     */
+    @Override
+    public void prewarm(String url, long idleTimeoutMillis) {
+        String host;
+        try {
+            host = new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            // Nothing lost, the upload will fail by itself.
+            Log.w(TAG, "Unable to prewarm a connection to " + url, e);
+            return;
+        }
+        if (mWarm.isWarm(host)) {
+            return;
+        }
+        mQueue.add(new PrewarmRequest(url, host, idleTimeoutMillis));
+    }
+
+    @Override
+    public UploadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    private static Response await(RequestFuture<Response> future) throws IOException {
+        try {
+            return future.get(TIMEOUT_MS + RESPONSE_GRACE_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            VolleyError error = (VolleyError) e.getCause();
+            // Volley reports any status outside 2xx as an error, but it is a response all the
+            // same.
+            if (error.networkResponse != null) {
+                return toResponse(error.networkResponse);
+            }
+            throw new IOException("Request failed", error);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new IOException("No response within " + TIMEOUT_MS + " ms", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a response");
+        }
+    }
+
+    private static Response toResponse(NetworkResponse response) {
+        Map<String, List<String>> headers = new HashMap<>();
+        if (response.headers != null) {
+            for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                headers.put(header.getKey(), Collections.singletonList(header.getValue()));
+            }
+        }
+        String body = response.data != null ? new String(response.data, UTF_8) : "";
+        return new Response(response.statusCode, headers, body);
+    }
+
+    /**
+     * A HEAD request opening a connection ahead of an upload.  Nobody waits for its response.
+     */
+    private static final class PrewarmRequest extends BytesRequest {
+        final String mHost;
+        final long mIdleTimeoutMillis;
+
+        PrewarmRequest(String url, String host, long idleTimeoutMillis) {
+            super(Request.Method.HEAD, url, null, null, Collections.<String, String>emptyMap(),
+                    null);
+            mHost = host;
+            mIdleTimeoutMillis = idleTimeoutMillis;
+        }
+    }
+
+    /**
+     * A request with a body held in memory, whose response is passed on whatever its status.
+     */
+    private static class BytesRequest extends Request<Response> {
+        private final String mContentType;
+        private final byte[] mBody;
+        private final Map<String, String> mHeaders;
+        private final RequestFuture<Response> mFuture;
+
+        /**
+         * @param future waits for the response, or null if nobody does
+         */
+        BytesRequest(int method, String url, String contentType, byte[] body,
+                Map<String, String> headers, RequestFuture<Response> future) {
+            super(method, url, future);
+            mContentType = contentType;
+            mBody = body;
+            mHeaders = headers;
+            mFuture = future;
+            setShouldCache(false);
+            setRetryPolicy(new DefaultRetryPolicy(TIMEOUT_MS, 0, 1f));
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return mContentType != null ? mContentType : super.getBodyContentType();
+        }
+
+        @Override
+        public byte[] getBody() throws AuthFailureError {
+            return mBody;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            return mHeaders;
+        }
+
+        @Override
+        protected com.android.volley.Response<Response> parseNetworkResponse(
+                NetworkResponse response) {
+            return com.android.volley.Response.success(toResponse(response), null);
+        }
+
+        @Override
+        protected void deliverResponse(Response response) {
+            if (mFuture != null) {
+                mFuture.onResponse(response);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package technology.xor.barcode.upload;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the connection a transport opened ahead of an upload with
+ * {@link UploadTransport#prewarm(String, long)}, and closes it if no upload to its host starts
+ * within its idle timeout.
+ * <p/>
+ * The transport runs its warm-up request between {@link #startWarming()} and
+ * {@link #stopWarming()}, on one thread, with the thread local of {@link #getWarmingSockets()}
+ * given to its {@link HandshakeTimingSocketFactory}, which collects the sockets the request
+ * creates.  Only one warm connection is kept at a time.
+ */
+final class WarmConnections {
+    private final String mTag;
+    private final UploadMetrics mMetrics;
+
+    // Closes warm connections again if they go unused
+    private final ScheduledExecutorService mDropper;
+
+    // Sockets created by the warm-up request running on the calling thread, if any
+    private final ThreadLocal<List<Socket>> mWarmingSockets = new ThreadLocal<>();
+
+    // Guarded by this
+    private WarmConnection mWarm;
+
+    /**
+     * A connection opened ahead of an upload, until an upload to its host starts or it is
+     * dropped.
+     */
+    private static final class WarmConnection {
+        final String mHost;
+        final List<Socket> mSockets;
+
+        WarmConnection(String host, List<Socket> sockets) {
+            mHost = host;
+            mSockets = sockets;
+        }
+    }
+
+    /**
+     * @param tag     log tag of the transport
+     * @param metrics counters of the transport, for the prewarms made, used and dropped
+     * @param dropper runs the closing of unused connections
+     */
+    WarmConnections(String tag, UploadMetrics metrics, ScheduledExecutorService dropper) {
+        mTag = tag;
+        mMetrics = metrics;
+        mDropper = dropper;
+    }
+
+    /**
+     * Returns the thread local in which the sockets of a warm-up request are collected, for the
+     * transport's {@link HandshakeTimingSocketFactory}.
+     */
+    ThreadLocal<List<Socket>> getWarmingSockets() {
+        return mWarmingSockets;
+    }
+
+    /**
+     * Returns whether a warm connection to the given host is waiting to be used.
+     */
+    synchronized boolean isWarm(String host) {
+        return mWarm != null && mWarm.mHost.equals(host);
+    }
+
+    /**
+     * Starts collecting the sockets created on the calling thread.
+     *
+     * @return the list they are collected in
+     */
+    List<Socket> startWarming() {
+        List<Socket> sockets = new ArrayList<>();
+        mWarmingSockets.set(sockets);
+        return sockets;
+    }
+
+    /**
+     * Stops collecting the sockets created on the calling thread.
+     */
+    void stopWarming() {
+        mWarmingSockets.remove();
+    }
+
+    /**
+     * Keeps the sockets a warm-up request opened as the warm connection to its host, in place of
+     * any other, and schedules closing them after the idle timeout.
+     */
+    void warmed(String host, List<Socket> sockets, long idleTimeoutMillis) {
+        mMetrics.mPrewarms.incrementAndGet();
+        final WarmConnection warm = new WarmConnection(host, sockets);
+        synchronized (this) {
+            mWarm = warm;
+        }
+        mDropper.schedule(new Runnable() {
+            @Override
+            public void run() {
+                drop(warm);
+            }
+        }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands the warm connection to a request to the given host which is about to start, if
+     * there is one, so that it isn't closed any more.
+     */
+    synchronized void onRequest(String host) {
+        if (mWarm != null && mWarm.mHost.equals(host)) {
+            mWarm = null;
+            mMetrics.mPrewarmsUsed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Closes a warm connection which no request has used.  The connection pool notices the
+     * closed socket and discards the connection.
+     */
+    private void drop(WarmConnection warm) {
+        synchronized (this) {
+            if (mWarm != warm) {
+                return;
+            }
+            mWarm = null;
+        }
+        for (Socket socket : warm.mSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        mMetrics.mPrewarmsDropped.incrementAndGet();
+        Log.d(mTag, "Dropped the unused warm connection to " + warm.mHost);
+    }
+}
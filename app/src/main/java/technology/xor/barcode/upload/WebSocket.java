@@ -0,0 +1,346 @@
+package technology.xor.barcode.upload;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Client end of a WebSocket connection (RFC 6455) over TLS, with just what the
+ * {@link ScanChannel} needs: text messages each way, pings and closing.
+ * <p/>
+ * Messages are sent from any thread, each frame written whole.  Messages are received by a
+ * single thread, which also answers the server's pings.
+ */
+final class WebSocket implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xa;
+
+    // Status code of a normal closure
+    private static final byte[] CLOSE_NORMAL = {0x03, (byte) 0xe8};
+
+    // Upper bound on a received message, to tell a damaged frame from a real one.
+    private static final int MAX_MESSAGE_SIZE = 1 << 20;
+
+    private final Socket mSocket;
+    private final InputStream mIn;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    // Guarded by mWriteLock
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+    private final OutputStream mOut;
+    private boolean mCloseSent;
+
+    private WebSocket(Socket socket) throws IOException {
+        mSocket = socket;
+        mIn = new BufferedInputStream(socket.getInputStream());
+        mOut = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Opens a connection to the given wss: URI and goes through the opening handshake.
+     *
+     * @param readTimeoutMillis how long {@link #receive()} waits for the server before failing
+     * @throws IOException if the server couldn't be reached, or didn't accept the connection as
+     *                     a WebSocket
+     */
+    static WebSocket connect(URI uri, SSLSocketFactory socketFactory, HostnameVerifier verifier,
+            int connectTimeoutMillis, int readTimeoutMillis) throws IOException {
+        if (!"wss".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+            throw new IllegalArgumentException("Not a wss: URI: " + uri);
+        }
+        String host = uri.getHost();
+        int port = uri.getPort() != -1 ? uri.getPort() : 443;
+
+        Socket socket = new Socket();
+        boolean connected = false;
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            socket.setSoTimeout(readTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(socket, host, port, true);
+            // Closing the TLS socket closes the connection under it too.
+            socket = sslSocket;
+            sslSocket.startHandshake();
+            // Unlike HttpsURLConnection, a bare socket doesn't check the server's name.
+            if (!verifier.verify(host, sslSocket.getSession())) {
+                throw new SSLPeerUnverifiedException("Certificate doesn't match " + host);
+            }
+            WebSocket webSocket = new WebSocket(sslSocket);
+            webSocket.handshake(uri, host, port);
+            connected = true;
+            return webSocket;
+        } finally {
+            // Whatever failed, the server refusing the upgrade included, the socket goes.
+            if (!connected) {
+                socket.close();
+            }
+        }
+    }
+
+    private void handshake(URI uri, String host, int port) throws IOException {
+        byte[] nonce = new byte[16];
+        mRandom.nextBytes(nonce);
+        String key = Base64.getEncoder().encodeToString(nonce);
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty()
+                ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + (port == 443 ? host : host + ":" + port) + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + "\r\n";
+        mWriteLock.lock();
+        try {
+            mOut.write(request.getBytes(UTF_8));
+            mOut.flush();
+        } finally {
+            mWriteLock.unlock();
+        }
+
+        String status = readLine();
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new ProtocolException("Server refused the WebSocket: " + status);
+        }
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        if (!"websocket".equalsIgnoreCase(headers.get("upgrade"))
+                || !acceptKey(key).equals(headers.get("sec-websocket-accept"))) {
+            throw new ProtocolException("Invalid WebSocket handshake response: " + headers);
+        }
+    }
+
+    /**
+     * Returns the Sec-WebSocket-Accept the server has to answer the given key with.
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(
+                    sha1.digest((key + ACCEPT_GUID).getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Sends a text message in a single frame.
+     */
+    void sendText(String text) throws IOException {
+        writeFrame(OPCODE_TEXT, text.getBytes(UTF_8));
+    }
+
+    /**
+     * Sends a ping, which the server answers with a pong.
+     */
+    void sendPing() throws IOException {
+        writeFrame(OPCODE_PING, new byte[0]);
+    }
+
+    /**
+     * Waits for the next message from the server.  Pings are answered on the way.
+     *
+     * @return the message, or null once the server has closed the connection
+     * @throws IOException if the connection failed, or no frame came within the read timeout
+     */
+    String receive() throws IOException {
+        ByteArrayOutputStream message = null;
+        while (true) {
+            int first = readByte();
+            int second = readByte();
+            boolean fin = (first & 0x80) != 0;
+            int opcode = first & 0x0f;
+            if ((second & 0x80) != 0) {
+                throw new ProtocolException("Masked frame from the server");
+            }
+            long length = second & 0x7f;
+            if (length == 126) {
+                length = (readByte() << 8) | readByte();
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte();
+                }
+            }
+            if (length > MAX_MESSAGE_SIZE) {
+                throw new ProtocolException("Frame too large: " + length);
+            }
+            byte[] payload = readFully((int) length);
+
+            switch (opcode) {
+                case OPCODE_PING:
+                    writeFrame(OPCODE_PONG, payload);
+                    break;
+                case OPCODE_PONG:
+                    break;
+                case OPCODE_CLOSE:
+                    mWriteLock.lock();
+                    try {
+                        if (!mCloseSent) {
+                            writeFrame(OPCODE_CLOSE, CLOSE_NORMAL);
+                        }
+                    } finally {
+                        mWriteLock.unlock();
+                    }
+                    return null;
+                case OPCODE_TEXT:
+                case OPCODE_BINARY:
+                    message = new ByteArrayOutputStream();
+                    // Fall through
+                case OPCODE_CONTINUATION:
+                    if (message == null) {
+                        throw new ProtocolException("Continuation without a message");
+                    }
+                    message.write(payload);
+                    if (message.size() > MAX_MESSAGE_SIZE) {
+                        throw new ProtocolException("Message too large: " + message.size());
+                    }
+                    if (fin) {
+                        return new String(message.toByteArray(), UTF_8);
+                    }
+                    break;
+                default:
+                    throw new ProtocolException("Unknown opcode " + opcode);
+            }
+        }
+    }
+
+    /**
+     * Sends a close frame, unless one was sent already, and closes the connection without
+     * waiting for the server to answer.  If another thread is in the middle of writing, which may
+     * be stuck on a server that stopped reading, the close frame is skipped rather than waited
+     * for; closing the socket then fails that write.
+     */
+    @Override
+    public void close() {
+        if (mWriteLock.tryLock()) {
+            try {
+                if (!mCloseSent) {
+                    writeFrame(OPCODE_CLOSE, CLOSE_NORMAL);
+                }
+            } catch (IOException e) {
+                // Closing anyway
+            } finally {
+                mWriteLock.unlock();
+            }
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * Writes a frame, masked as every frame from a client has to be.
+     */
+    private void writeFrame(int opcode, byte[] payload) throws IOException {
+        byte[] mask = new byte[4];
+        mRandom.nextBytes(mask);
+        byte[] masked = new byte[payload.length];
+        for (int i = 0; i < payload.length; i++) {
+            masked[i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+
+        mWriteLock.lock();
+        try {
+            if (mCloseSent) {
+                throw new IOException("WebSocket closed");
+            }
+            mOut.write(0x80 | opcode);
+            if (payload.length < 126) {
+                mOut.write(0x80 | payload.length);
+            } else if (payload.length <= 0xffff) {
+                mOut.write(0x80 | 126);
+                mOut.write(payload.length >>> 8);
+                mOut.write(payload.length);
+            } else {
+                mOut.write(0x80 | 127);
+                for (int i = 7; i >= 0; i--) {
+                    mOut.write((int) ((long) payload.length >>> (8 * i)));
+                }
+            }
+            mOut.write(mask);
+            mOut.write(masked);
+            mOut.flush();
+            if (opcode == OPCODE_CLOSE) {
+                mCloseSent = true;
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private int readByte() throws IOException {
+        int b = mIn.read();
+        if (b == -1) {
+            throw new EOFException("Connection closed");
+        }
+        return b;
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = mIn.read(bytes, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException("Connection closed");
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = readByte()) != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), UTF_8);
+    }
+}
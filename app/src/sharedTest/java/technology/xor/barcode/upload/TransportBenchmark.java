@@ -0,0 +1,131 @@
+package technology.xor.barcode.upload;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the requests per second and latency percentiles of an {@link UploadTransport}, with a
+ * number of threads posting set-sized bodies to a server at once.  Run on the JVM against a local
+ * server, and on devices against a test server, to pick the transport for each class of device.
+ */
+final class TransportBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+
+    // Codes in the body of every request, as in a typical set
+    private static final int CODES_PER_SET = 10;
+
+    /**
+     * Outcome of a run.
+     */
+    static final class Result {
+        private final String mName;
+        private final long mElapsedNanos;
+        private final long[] mLatencyNanos;
+        private final int mFailures;
+
+        Result(String name, long elapsedNanos, long[] latencyNanos, int failures) {
+            mName = name;
+            mElapsedNanos = elapsedNanos;
+            mLatencyNanos = latencyNanos;
+            mFailures = failures;
+            Arrays.sort(mLatencyNanos);
+        }
+
+        /**
+         * Returns the number of requests answered with a 200 per second.
+         */
+        float getRequestsPerSecond() {
+            return (mLatencyNanos.length - mFailures) * 1e9f / mElapsedNanos;
+        }
+
+        /**
+         * Returns the latency, in milliseconds, which the given share of requests stayed within.
+         */
+        float getPercentileMillis(double percentile) {
+            int index = (int) Math.ceil(percentile / 100 * mLatencyNanos.length) - 1;
+            return mLatencyNanos[Math.max(0, index)] / 1e6f;
+        }
+
+        /**
+         * Returns the number of requests which failed or weren't answered with a 200.
+         */
+        int getFailureCount() {
+            return mFailures;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mLatencyNanos.length + " requests, "
+                    + getRequestsPerSecond() + " req/s, p50 " + getPercentileMillis(50)
+                    + " ms, p99 " + getPercentileMillis(99) + " ms, "
+                    + mFailures + " failures";
+        }
+    }
+
+    private TransportBenchmark() {
+    }
+
+    /**
+     * Posts the given number of requests to the URL from a number of threads at once, after a
+     * round of warm-up requests which isn't measured.
+     */
+    static Result run(String name, UploadTransport transport, String url, int threads,
+            int requests) throws InterruptedException {
+        if (threads <= 0 || requests < threads) {
+            throw new IllegalArgumentException(
+                    "Invalid run: " + requests + " requests on " + threads + " threads");
+        }
+        byte[] body = createSetBody();
+        measure(transport, url, body, threads, new long[threads], new AtomicInteger());
+
+        long[] latencyNanos = new long[requests];
+        AtomicInteger failures = new AtomicInteger();
+        long startNanos = System.nanoTime();
+        measure(transport, url, body, threads, latencyNanos, failures);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        return new Result(name, elapsedNanos, latencyNanos, failures.get());
+    }
+
+    private static void measure(final UploadTransport transport, final String url,
+            final byte[] body, int threads, final long[] latencyNanos,
+            final AtomicInteger failures) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int request;
+                    while ((request = next.getAndIncrement()) < latencyNanos.length) {
+                        long startNanos = System.nanoTime();
+                        try {
+                            if (transport.post(url, "application/json", body, NO_HEADERS)
+                                    .getCode() != 200) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                        latencyNanos[request] = System.nanoTime() - startNanos;
+                    }
+                    done.countDown();
+                }
+            }, "TransportBenchmark-" + t).start();
+        }
+        done.await();
+    }
+
+    private static byte[] createSetBody() {
+        StringBuilder json = new StringBuilder("{\"team\":\"RED\"");
+        for (int i = 1; i <= CODES_PER_SET; i++) {
+            json.append(",\"").append(i).append("\":\"benchmark-code-").append(i).append('"');
+        }
+        return json.append('}').toString().getBytes(UTF_8);
+    }
+}
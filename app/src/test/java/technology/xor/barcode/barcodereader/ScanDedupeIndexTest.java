@@ -0,0 +1,165 @@
+package technology.xor.barcode.barcodereader;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Duplicate window, eviction and persistence of the dedupe index.
+ */
+public class ScanDedupeIndexTest {
+    private static final long WINDOW_MILLIS = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Barcode barcode(String value) {
+        Barcode barcode = new Barcode();
+        barcode.format = Barcode.QR_CODE;
+        barcode.rawValue = value;
+        return barcode;
+    }
+
+    @Test
+    public void rejectsCodesWithinWindow() throws IOException {
+        File file = folder.newFile("dedupe");
+        ScanDedupeIndex index = ScanDedupeIndex.open(file, WINDOW_MILLIS, 100);
+        long now = System.currentTimeMillis();
+
+        assertFalse(index.isDuplicate(barcode("a"), now));
+        assertTrue(index.accept(barcode("a"), now));
+        assertTrue(index.isDuplicate(barcode("a"), now + 1));
+        assertFalse(index.accept(barcode("a"), now + WINDOW_MILLIS - 1));
+        assertTrue(index.accept(barcode("b"), now));
+
+        // Accepted again once the window has passed, which starts a new window.
+        assertFalse(index.isDuplicate(barcode("a"), now + WINDOW_MILLIS));
+        assertTrue(index.accept(barcode("a"), now + WINDOW_MILLIS));
+        assertFalse(index.accept(barcode("a"), now + WINDOW_MILLIS + 1));
+        assertEquals(2, index.size());
+        index.close();
+    }
+
+    @Test
+    public void distinguishesFormats() {
+        Barcode qr = barcode("1234");
+        Barcode other = barcode("1234");
+        other.format = Barcode.QR_CODE + 1;
+        assertNotEquals(ScanDedupeIndex.keyOf(qr), ScanDedupeIndex.keyOf(other));
+
+        Barcode bytes = barcode("ignored");
+        bytes.rawBytes = "1234".getBytes();
+        assertEquals(ScanDedupeIndex.keyOf(qr), ScanDedupeIndex.keyOf(bytes));
+    }
+
+    @Test
+    public void evictsOldestBeyondMaxEntries() throws IOException {
+        ScanDedupeIndex index = ScanDedupeIndex.open(folder.newFile("dedupe"), WINDOW_MILLIS, 3);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(index.accept(barcode("code " + i), now + i));
+        }
+        assertEquals(3, index.size());
+        assertTrue(index.accept(barcode("code 0"), now + 10));
+        assertFalse(index.accept(barcode("code 2"), now + 10));
+        index.close();
+    }
+
+    @Test
+    public void reloadsAcceptedCodes() throws IOException {
+        File file = folder.newFile("dedupe");
+        ScanDedupeIndex index = ScanDedupeIndex.open(file, WINDOW_MILLIS, 100);
+        long now = System.currentTimeMillis();
+        index.accept(barcode("recent"), now);
+        index.accept(barcode("expired"), now - WINDOW_MILLIS);
+        index.close();
+
+        ScanDedupeIndex reopened = ScanDedupeIndex.open(file, WINDOW_MILLIS, 100);
+        assertEquals(1, reopened.size());
+        assertTrue(reopened.isDuplicate(barcode("recent"), now + 1));
+        assertFalse(reopened.isDuplicate(barcode("expired"), now + 1));
+
+        // Too few expired records to be worth rewriting the file for.
+        assertEquals(8 + 2 * 16, file.length());
+        reopened.close();
+    }
+
+    @Test
+    public void compactsOnOpenOnceMostRecordsAreDead() throws IOException {
+        File file = folder.newFile("dedupe");
+        ScanDedupeIndex index = ScanDedupeIndex.open(file, WINDOW_MILLIS, 100);
+        index.close();
+
+        // As left by a session which ended with mostly expired codes in the file.
+        long now = System.currentTimeMillis();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        for (int i = 0; i < 3000; i++) {
+            out.writeLong(ScanDedupeIndex.keyOf(barcode("expired " + i)));
+            out.writeLong(now - WINDOW_MILLIS);
+        }
+        out.writeLong(ScanDedupeIndex.keyOf(barcode("recent")));
+        out.writeLong(now);
+        out.close();
+
+        ScanDedupeIndex reopened = ScanDedupeIndex.open(file, WINDOW_MILLIS, 100);
+        assertEquals(1, reopened.size());
+        assertEquals(8 + 16, file.length());
+        assertTrue(reopened.isDuplicate(barcode("recent"), now + 1));
+        reopened.close();
+    }
+
+    @Test
+    public void keepsCodesBeforeTornRecord() throws IOException {
+        File file = folder.newFile("dedupe");
+        ScanDedupeIndex index = ScanDedupeIndex.open(file, WINDOW_MILLIS, 100);
+        long now = System.currentTimeMillis();
+        index.accept(barcode("a"), now);
+        index.accept(barcode("b"), now);
+        index.close();
+
+        // A crash in the middle of appending the second record.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 5);
+        raf.close();
+
+        ScanDedupeIndex reopened = ScanDedupeIndex.open(file, WINDOW_MILLIS, 100);
+        assertEquals(1, reopened.size());
+        assertTrue(reopened.isDuplicate(barcode("a"), now));
+
+        // The torn record is dropped rather than appended after, which would misalign the rest.
+        assertTrue(reopened.accept(barcode("c"), now));
+        reopened.close();
+        reopened = ScanDedupeIndex.open(file, WINDOW_MILLIS, 100);
+        assertTrue(reopened.isDuplicate(barcode("a"), now));
+        assertTrue(reopened.isDuplicate(barcode("c"), now));
+        reopened.close();
+    }
+
+    @Test
+    public void startsEmptyFromUnknownFile() throws IOException {
+        File file = folder.newFile("dedupe");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not an index".getBytes());
+        out.close();
+
+        ScanDedupeIndex index = ScanDedupeIndex.open(file, WINDOW_MILLIS, 100);
+        assertEquals(0, index.size());
+        long now = System.currentTimeMillis();
+        assertTrue(index.accept(barcode("a"), now));
+        index.close();
+
+        ScanDedupeIndex reopened = ScanDedupeIndex.open(file, WINDOW_MILLIS, 100);
+        assertTrue(reopened.isDuplicate(barcode("a"), now));
+        reopened.close();
+    }
+}
@@ -0,0 +1,39 @@
+package technology.xor.barcode.barcodereader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scan rates over the last minute and since the first scan.
+ */
+public class ScanRateMeterTest {
+    @Test
+    public void countsScansInLastMinute() {
+        ScanRateMeter meter = new ScanRateMeter();
+        assertEquals(0, meter.getLastMinuteCount(0));
+        meter.record(1000);
+        meter.record(2000);
+        meter.record(30000);
+        assertEquals(3, meter.getLastMinuteCount(30000));
+        assertEquals(2, meter.getLastMinuteCount(61000));
+        assertEquals(1, meter.getLastMinuteCount(62000));
+        assertEquals(0, meter.getLastMinuteCount(90000));
+        assertEquals(3, meter.getTotal());
+    }
+
+    @Test
+    public void averagesSinceFirstScan() {
+        ScanRateMeter meter = new ScanRateMeter();
+        assertEquals(0, meter.getAveragePerMinute(1000), 0);
+
+        // Less than a minute in, the average is the count so far.
+        for (int i = 0; i < 10; i++) {
+            meter.record(5000 + i * 1000);
+        }
+        assertEquals(10, meter.getAveragePerMinute(20000), 0.001);
+
+        // Ten scans over two minutes.
+        assertEquals(5, meter.getAveragePerMinute(5000 + 120000), 0.001);
+    }
+}
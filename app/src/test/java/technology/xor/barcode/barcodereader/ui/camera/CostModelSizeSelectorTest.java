@@ -0,0 +1,71 @@
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import com.google.android.gms.common.images.Size;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Preview sizes picked by the cost model for typical camera size lists.
+ */
+public class CostModelSizeSelectorTest {
+    private static List<CameraSource.SizePair> sizes(int... dimensions) {
+        List<CameraSource.SizePair> pairs = new ArrayList<>();
+        for (int i = 0; i < dimensions.length; i += 2) {
+            pairs.add(new CameraSource.SizePair(new Size(dimensions[i], dimensions[i + 1]), null));
+        }
+        return pairs;
+    }
+
+    private static Size select(CostModelSizeSelector selector, List<CameraSource.SizePair> pairs,
+                               float scanWindowArea) {
+        return selector.select(pairs, 1920, 1080, scanWindowArea).previewSize();
+    }
+
+    @Test
+    public void prefersLargestSizeWithinBudget() {
+        // The default budget is one megapixel.
+        List<CameraSource.SizePair> pairs =
+                sizes(1920, 1080, 1280, 720, 960, 540, 640, 480, 320, 240);
+        Size selected = select(new CostModelSizeSelector(), pairs, 1.0f);
+        assertEquals(new Size(1280, 720), selected);
+    }
+
+    @Test
+    public void scanWindowAllowsLargerPreview() {
+        List<CameraSource.SizePair> pairs = sizes(1920, 1080, 1280, 720, 640, 480);
+        Size selected = select(new CostModelSizeSelector(), pairs, 0.25f);
+        assertEquals(new Size(1920, 1080), selected);
+    }
+
+    @Test
+    public void prefersMatchingAspectRatio() {
+        // Both fit the budget; the 4:3 size only wins when the view is 4:3 too.
+        List<CameraSource.SizePair> pairs = sizes(1024, 768, 1280, 720);
+        CostModelSizeSelector selector = new CostModelSizeSelector();
+        assertEquals(new Size(1280, 720), selector.select(pairs, 1920, 1080, 1.0f).previewSize());
+        assertEquals(new Size(1024, 768), selector.select(pairs, 1440, 1080, 1.0f).previewSize());
+    }
+
+    @Test
+    public void picksLargestWhenAllTooSmall() {
+        List<CameraSource.SizePair> pairs = sizes(176, 144, 320, 240);
+        Size selected = select(new CostModelSizeSelector(), pairs, 1.0f);
+        assertEquals(new Size(320, 240), selected);
+    }
+
+    @Test
+    public void returnsNullWithoutCandidates() {
+        assertNull(new CostModelSizeSelector().select(
+                new ArrayList<CameraSource.SizePair>(), 1920, 1080, 1.0f));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidModel() {
+        new CostModelSizeSelector(0, 20000, 480);
+    }
+}
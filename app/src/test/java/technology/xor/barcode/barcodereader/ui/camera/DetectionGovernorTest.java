@@ -0,0 +1,66 @@
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Staleness and duty cycle decisions of the detection governor.
+ */
+public class DetectionGovernorTest {
+    @Test
+    public void dropsStaleFrames() {
+        DetectionGovernor governor = new DetectionGovernor(1.0f, 100);
+        assertEquals(DetectionGovernor.DROP_STALE, governor.admit(1000, 1101));
+        assertEquals(DetectionGovernor.SUBMIT, governor.admit(1000, 1100));
+    }
+
+    @Test
+    public void keepsDetectorWithinDutyCycle() {
+        DetectionGovernor governor = new DetectionGovernor(0.5f, 1000);
+
+        // Nothing is known about the detector yet.
+        assertEquals(0, governor.idleIntervalMillis());
+        assertEquals(DetectionGovernor.SUBMIT, governor.admit(0, 0));
+
+        // 30 ms per frame at half the time leaves the detector idle for 30 ms after each frame.
+        governor.onDetectionComplete(30);
+        assertEquals(30, governor.idleIntervalMillis());
+        assertEquals(DetectionGovernor.DROP_THROTTLED, governor.admit(59, 59));
+        assertEquals(DetectionGovernor.SUBMIT, governor.admit(60, 60));
+        governor.onDetectionComplete(30);
+        assertEquals(DetectionGovernor.DROP_THROTTLED, governor.admit(100, 100));
+        assertEquals(DetectionGovernor.SUBMIT, governor.admit(120, 120));
+    }
+
+    @Test
+    public void runsBackToBackAtFullDutyCycle() {
+        DetectionGovernor governor = new DetectionGovernor(1.0f, 1000);
+        long nowMillis = 0;
+        long[] latencies = {50, 10, 80, 5, 5, 60, 1};
+        for (long latency : latencies) {
+            assertEquals(DetectionGovernor.SUBMIT, governor.admit(nowMillis, nowMillis));
+            governor.onDetectionComplete(latency);
+            nowMillis += latency;
+        }
+        assertEquals(0, governor.idleIntervalMillis());
+    }
+
+    @Test
+    public void smoothsLatency() {
+        DetectionGovernor governor = new DetectionGovernor(0.5f, 1000);
+        governor.onDetectionComplete(100);
+        governor.onDetectionComplete(200);
+        assertEquals(120, governor.idleIntervalMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidDutyCycle() {
+        new DetectionGovernor(1.5f, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidDeadline() {
+        new DetectionGovernor(0.5f, 0);
+    }
+}
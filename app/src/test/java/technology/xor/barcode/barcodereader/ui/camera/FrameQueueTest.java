@@ -0,0 +1,152 @@
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering, overflow and shutdown behavior of the frame queue under both policies.
+ */
+public class FrameQueueTest {
+    @Test
+    public void fifoKeepsArrivalOrder() {
+        FrameQueue<Integer> queue = new FrameQueue<>(FrameQueue.POLICY_FIFO, 3);
+        assertEquals(3, queue.capacity());
+
+        // Wraps around the ring a few times.
+        for (int i = 0; i < 10; i++) {
+            assertNull(queue.offer(2 * i));
+            assertNull(queue.offer(2 * i + 1));
+            assertEquals(Integer.valueOf(2 * i), queue.poll());
+            assertEquals(Integer.valueOf(2 * i + 1), queue.poll());
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void fifoHandsBackNewestWhenFull() {
+        FrameQueue<Integer> queue = new FrameQueue<>(FrameQueue.POLICY_FIFO, 2);
+        assertNull(queue.offer(1));
+        assertNull(queue.offer(2));
+        assertEquals(Integer.valueOf(3), queue.offer(3));
+
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertNull(queue.offer(4));
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(4), queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void latestHandsBackOldest() {
+        FrameQueue<Integer> queue = new FrameQueue<>(FrameQueue.POLICY_LATEST, 5);
+        assertEquals(1, queue.capacity());
+
+        assertNull(queue.offer(1));
+        assertEquals(Integer.valueOf(1), queue.offer(2));
+        assertEquals(Integer.valueOf(2), queue.offer(3));
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertNull(queue.poll());
+        assertNull(queue.offer(4));
+    }
+
+    @Test
+    public void clearDropsPendingFrames() {
+        FrameQueue<Integer> queue = new FrameQueue<>(FrameQueue.POLICY_FIFO, 4);
+        queue.offer(1);
+        queue.offer(2);
+        queue.clear();
+        assertNull(queue.poll());
+        assertNull(queue.offer(3));
+        assertEquals(Integer.valueOf(3), queue.poll());
+    }
+
+    @Test
+    public void takeWaitsForProducer() throws Exception {
+        final FrameQueue<Integer> queue = new FrameQueue<>(FrameQueue.POLICY_FIFO, 8);
+        final int count = 100000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    Integer item = queue.take();
+                    if (item == null || item != i) {
+                        failure.set("Expected " + i + " but took " + item);
+                        return;
+                    }
+                }
+            }
+        };
+        consumer.start();
+
+        for (int i = 0; i < count; i++) {
+            while (queue.offer(i) != null) {
+                Thread.yield();
+            }
+        }
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void deactivatingWakesParkedConsumer() throws Exception {
+        final FrameQueue<Integer> queue = new FrameQueue<>(FrameQueue.POLICY_LATEST, 1);
+        final CountDownLatch taken = new CountDownLatch(1);
+        final AtomicReference<Integer> result = new AtomicReference<>(-1);
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                result.set(queue.take());
+                taken.countDown();
+            }
+        };
+        consumer.start();
+
+        // Give the consumer time to park on the empty queue.
+        Thread.sleep(100);
+        assertEquals(1, taken.getCount());
+        queue.setActive(false);
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        assertNull(result.get());
+        assertFalse(queue.isActive());
+
+        // An inactive queue doesn't block at all.
+        queue.offer(1);
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void interruptWakesParkedConsumer() throws Exception {
+        final FrameQueue<Integer> queue = new FrameQueue<>(FrameQueue.POLICY_FIFO, 2);
+        final CountDownLatch taken = new CountDownLatch(1);
+        final AtomicReference<Integer> result = new AtomicReference<>(-1);
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                result.set(queue.take());
+                taken.countDown();
+            }
+        };
+        consumer.start();
+        Thread.sleep(100);
+        consumer.interrupt();
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        assertNull(result.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyCapacity() {
+        new FrameQueue<Integer>(FrameQueue.POLICY_FIFO, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownPolicy() {
+        new FrameQueue<Integer>(2, 1);
+    }
+}
@@ -0,0 +1,214 @@
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.graphics.Rect;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records synthetic camera traffic, replays it with {@link RecordedFrameSource} and runs the
+ * replayed frames through the sharpness and scene change gates the way the frame processing loop
+ * does: sharpness first, and only sharp frames on to the scene change gate.
+ * <p/>
+ * The traffic is a handful of moving (noise) frames, a few blurred ones, the last moving frame
+ * held still for a while, and some more moving frames.
+ */
+public class FrameReplayTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int ROTATION = 1;
+    private static final long FRAME_INTERVAL_MILLIS = 33;
+
+    private static final int MOVING_FRAMES = 10;
+    private static final int BLURRED_FRAMES = 5;
+    private static final int STILL_FRAMES = 10;
+    private static final int MORE_MOVING_FRAMES = 5;
+    private static final int FRAMES =
+            MOVING_FRAMES + BLURRED_FRAMES + STILL_FRAMES + MORE_MOVING_FRAMES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns the NV21 data of the given frame of the traffic.
+     */
+    static byte[] frame(int index) {
+        byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(data, (byte) 128);
+        if (index >= MOVING_FRAMES && index < MOVING_FRAMES + BLURRED_FRAMES) {
+            // A smooth gradient, with no detail left at all.
+            for (int y = 0; y < HEIGHT; y++) {
+                Arrays.fill(data, y * WIDTH, (y + 1) * WIDTH, (byte) (64 + y / 2));
+            }
+            return data;
+        }
+
+        int seed = index;
+        if (index >= MOVING_FRAMES + BLURRED_FRAMES
+                && index < MOVING_FRAMES + BLURRED_FRAMES + STILL_FRAMES) {
+            seed = MOVING_FRAMES - 1;
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            data[i] = (byte) random.nextInt(256);
+        }
+        return data;
+    }
+
+    private File record() throws IOException {
+        File file = folder.newFile("frames");
+        FrameRecorder recorder = new FrameRecorder(file);
+        for (int i = 0; i < FRAMES; i++) {
+            recorder.record(frame(i), WIDTH, HEIGHT, ROTATION, i * FRAME_INTERVAL_MILLIS);
+        }
+        recorder.close();
+        return file;
+    }
+
+    @Test
+    public void replaysRecordedFrames() throws Exception {
+        final RecordedFrameSource source = new RecordedFrameSource(record(), false, false);
+        assertEquals(WIDTH, source.getFrameWidth());
+        assertEquals(HEIGHT, source.getFrameHeight());
+        assertEquals(ROTATION, source.getRotation());
+
+        final AtomicInteger mismatches = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(FRAMES);
+        source.addCallbackBuffer(new byte[WIDTH * HEIGHT * 3 / 2]);
+        source.addCallbackBuffer(new byte[WIDTH * HEIGHT * 3 / 2]);
+        source.start(new FrameSource.FrameCallback() {
+            private int mIndex;
+
+            @Override
+            public void onFrame(byte[] data) {
+                if (!Arrays.equals(frame(mIndex++), data)) {
+                    mismatches.incrementAndGet();
+                }
+                source.addCallbackBuffer(data);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        source.stop();
+        assertEquals(0, mismatches.get());
+    }
+
+    @Test
+    public void gatesSkipBlurredAndStillFrames() throws Exception {
+        final SharpnessGate sharpnessGate = new SharpnessGate();
+        final SceneChangeGate sceneChangeGate =
+                new SceneChangeGate(SceneChangeGate.DEFAULT_THRESHOLD, 60000);
+        final Rect region = fullFrame();
+
+        final RecordedFrameSource source = new RecordedFrameSource(record(), false, false);
+        final boolean[] accepted = new boolean[FRAMES];
+        final AtomicInteger blurred = new AtomicInteger();
+        final AtomicInteger unchanged = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(FRAMES);
+        source.addCallbackBuffer(new byte[WIDTH * HEIGHT * 3 / 2]);
+        source.start(new FrameSource.FrameCallback() {
+            private int mIndex;
+            private int[] mSignature = SceneChangeGate.newSignature();
+
+            @Override
+            public void onFrame(byte[] data) {
+                int index = mIndex++;
+                long timestampMillis = index * FRAME_INTERVAL_MILLIS;
+                if (!sharpnessGate.accept(data, WIDTH, region)) {
+                    blurred.incrementAndGet();
+                } else if (!sceneChangeGate.hasChanged(
+                        data, WIDTH, region, timestampMillis, mSignature)) {
+                    unchanged.incrementAndGet();
+                } else {
+                    mSignature = sceneChangeGate.commit(mSignature, timestampMillis);
+                    accepted[index] = true;
+                }
+                source.addCallbackBuffer(data);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        source.stop();
+
+        assertEquals(BLURRED_FRAMES, blurred.get());
+        assertEquals(STILL_FRAMES, unchanged.get());
+        for (int i = 0; i < FRAMES; i++) {
+            boolean moving = i < MOVING_FRAMES || i >= FRAMES - MORE_MOVING_FRAMES;
+            assertEquals("Frame " + i, moving, accepted[i]);
+        }
+    }
+
+    @Test
+    public void stillSceneIsRefreshed() {
+        SceneChangeGate gate = new SceneChangeGate(SceneChangeGate.DEFAULT_THRESHOLD, 1000);
+        Rect region = fullFrame();
+        int[] signature = SceneChangeGate.newSignature();
+
+        byte[] still = frame(0);
+        assertTrue(gate.hasChanged(still, WIDTH, region, 0, signature));
+        signature = gate.commit(signature, 0);
+        assertFalse(gate.hasChanged(still, WIDTH, region, 999, signature));
+        assertTrue(gate.hasChanged(still, WIDTH, region, 1000, signature));
+        signature = gate.commit(signature, 1000);
+        gate.reset();
+        assertTrue(gate.hasChanged(still, WIDTH, region, 1001, signature));
+    }
+
+    /**
+     * A changed frame that the governor then throttles is never detected on, so it must not
+     * become the reference, or the new scene would be skipped as unchanged until the refresh.
+     */
+    @Test
+    public void throttledFrameDoesNotBecomeReference() {
+        SceneChangeGate gate = new SceneChangeGate(SceneChangeGate.DEFAULT_THRESHOLD, 1000);
+        DetectionGovernor governor = new DetectionGovernor(0.5f, 1000);
+        Rect region = fullFrame();
+        int[] signature = SceneChangeGate.newSignature();
+        byte[] before = frame(0);
+        byte[] after = frame(1);
+
+        // Detected on for 100 ms, so at half duty the detector then idles until 200 ms.
+        assertTrue(gate.hasChanged(before, WIDTH, region, 0, signature));
+        assertEquals(DetectionGovernor.SUBMIT, governor.admit(0, 0));
+        signature = gate.commit(signature, 0);
+        governor.onDetectionComplete(100);
+
+        assertTrue(gate.hasChanged(after, WIDTH, region, 150, signature));
+        assertEquals(DetectionGovernor.DROP_THROTTLED, governor.admit(150, 150));
+
+        // The scene then holds still, but still differs from the last frame detected on.
+        assertTrue(gate.hasChanged(after, WIDTH, region, 250, signature));
+        assertEquals(DetectionGovernor.SUBMIT, governor.admit(250, 250));
+        signature = gate.commit(signature, 250);
+        governor.onDetectionComplete(100);
+
+        assertFalse(gate.hasChanged(after, WIDTH, region, 500, signature));
+    }
+
+    /**
+     * Returns the whole frame as a region, assigned field by field, as the android.jar used by
+     * local tests has no Rect code.
+     */
+    private static Rect fullFrame() {
+        Rect region = new Rect();
+        region.right = WIDTH;
+        region.bottom = HEIGHT;
+        return region;
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new RecordedFrameSource(folder.newFile("empty"), false, false);
+    }
+}
@@ -0,0 +1,173 @@
+package technology.xor.barcode.barcodereader.ui.camera;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Delivery order of detection results completed out of order by several workers.  Most tests
+ * deliver by calling {@link ResultSequencer#deliverReady()} in place of the delivery thread.
+ */
+public class ResultSequencerTest {
+    /**
+     * Records the frame id of each delivered result, found by identity among the results
+     * created by {@link #detections(int)}.
+     */
+    private final List<Detector.Detections<String>> mCreated = new ArrayList<>();
+    private final List<Integer> mDelivered = Collections.synchronizedList(new ArrayList<Integer>());
+    private final CountDownLatch mDeliveredTwo = new CountDownLatch(2);
+    private boolean mReleased;
+
+    private final Detector.Processor<String> mProcessor = new Detector.Processor<String>() {
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+
+        @Override
+        public void receiveDetections(Detector.Detections<String> detections) {
+            mDelivered.add(mCreated.indexOf(detections));
+            mDeliveredTwo.countDown();
+        }
+    };
+
+    private Detector.Detections<String> detections(int frameId) {
+        while (mCreated.size() <= frameId) {
+            mCreated.add(new Detector.Detections<>(
+                    new SparseArray<String>(), new Frame.Metadata(), true));
+        }
+        return mCreated.get(frameId);
+    }
+
+    @Test
+    public void deliversInFrameOrder() {
+        ResultSequencer<String> sequencer = new ResultSequencer<>(mProcessor, 8);
+        sequencer.complete(2, detections(2));
+        sequencer.complete(1, detections(1));
+        sequencer.deliverReady();
+        assertTrue(mDelivered.isEmpty());
+
+        sequencer.complete(0, detections(0));
+        sequencer.deliverReady();
+        assertEquals(Arrays.asList(0, 1, 2), mDelivered);
+
+        sequencer.complete(4, detections(4));
+        sequencer.complete(3, detections(3));
+        sequencer.deliverReady();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), mDelivered);
+    }
+
+    @Test
+    public void skippedFramesReleaseTheOnesBehindThem() {
+        ResultSequencer<String> sequencer = new ResultSequencer<>(mProcessor, 8);
+        sequencer.complete(1, detections(1));
+        sequencer.complete(3, detections(3));
+        sequencer.skip(2);
+        sequencer.deliverReady();
+        assertTrue(mDelivered.isEmpty());
+
+        // Skipping only records the frame; the results it releases wait for the delivery thread.
+        sequencer.skip(0);
+        assertTrue(mDelivered.isEmpty());
+        sequencer.deliverReady();
+        assertEquals(Arrays.asList(1, 3), mDelivered);
+    }
+
+    @Test
+    public void givesUpOnMissingFrameAfterMaxReorder() {
+        ResultSequencer<String> sequencer = new ResultSequencer<>(mProcessor, 2);
+        sequencer.complete(1, detections(1));
+        sequencer.complete(2, detections(2));
+        sequencer.deliverReady();
+        assertTrue(mDelivered.isEmpty());
+
+        // Frame 0 is assumed lost once a third result is waiting behind it.
+        sequencer.complete(3, detections(3));
+        sequencer.deliverReady();
+        assertEquals(Arrays.asList(1, 2, 3), mDelivered);
+
+        // And is ignored if it does turn up.
+        sequencer.complete(0, detections(0));
+        sequencer.deliverReady();
+        assertEquals(Arrays.asList(1, 2, 3), mDelivered);
+    }
+
+    @Test
+    public void givesUpOnMissingFrameAfterMaxWaiting() {
+        ResultSequencer<String> sequencer = new ResultSequencer<>(mProcessor, 2);
+
+        // Frame 0 was lost and only skips follow it, which don't count toward the reorder limit.
+        for (int i = 1; i <= ResultSequencer.MAX_WAITING + 1; i++) {
+            sequencer.skip(i);
+        }
+        int next = ResultSequencer.MAX_WAITING + 2;
+        sequencer.complete(next, detections(next));
+        sequencer.deliverReady();
+        assertEquals(Collections.singletonList(next), mDelivered);
+    }
+
+    @Test
+    public void waitsOutSkippedFramesBehindMissingOne() {
+        ResultSequencer<String> sequencer = new ResultSequencer<>(mProcessor, 2);
+
+        // Frame 0 is still being detected while many frames behind it are dropped.
+        for (int i = 1; i <= 100; i++) {
+            sequencer.skip(i);
+        }
+        sequencer.complete(101, detections(101));
+        sequencer.deliverReady();
+        assertTrue(mDelivered.isEmpty());
+
+        sequencer.complete(0, detections(0));
+        sequencer.deliverReady();
+        assertEquals(Arrays.asList(0, 101), mDelivered);
+    }
+
+    @Test
+    public void resetForgetsWaitingResults() {
+        ResultSequencer<String> sequencer = new ResultSequencer<>(mProcessor, 8);
+        sequencer.complete(1, detections(1));
+        sequencer.reset(5);
+        sequencer.complete(0, detections(0));
+        sequencer.complete(6, detections(6));
+        sequencer.deliverReady();
+        assertTrue(mDelivered.isEmpty());
+
+        sequencer.complete(5, detections(5));
+        sequencer.deliverReady();
+        assertEquals(Arrays.asList(5, 6), mDelivered);
+
+        sequencer.release();
+        assertTrue(mReleased);
+    }
+
+    @Test
+    public void deliversOnDeliveryThread() throws Exception {
+        ResultSequencer<String> sequencer = new ResultSequencer<>(mProcessor, 8);
+        sequencer.setActive(true);
+        Thread thread = new Thread(sequencer);
+        thread.start();
+
+        sequencer.complete(1, detections(1));
+        sequencer.complete(2, detections(2));
+        sequencer.skip(0);
+        assertTrue(mDeliveredTwo.await(5, TimeUnit.SECONDS));
+
+        sequencer.setActive(false);
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(Arrays.asList(1, 2), mDelivered);
+    }
+}
@@ -0,0 +1,206 @@
+package technology.xor.barcode.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * Behavior of the AIMD controller, and a simulation of many devices uploading to one overloaded
+ * server.
+ */
+public class AimdControllerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void increasesAdditivelyAndDecreasesMultiplicatively() {
+        AimdController controller = new AimdController(2, 8, 16, 1000);
+        assertEquals(2, controller.getConcurrencyLimit());
+        assertEquals(16, controller.getBatchSize());
+
+        // One full window of fast responses adds one.
+        controller.onSuccess(0, 10);
+        controller.onSuccess(0, 10);
+        assertEquals(2, controller.getConcurrencyLimit());
+        controller.onSuccess(0, 10);
+        assertEquals(3, controller.getConcurrencyLimit());
+
+        controller.onOverload(100, 110, 0);
+        assertEquals(1, controller.getConcurrencyLimit());
+        assertEquals(8, controller.getBatchSize());
+
+        // Requests started before that decrease ran into the same overload.
+        controller.onOverload(90, 120, 0);
+        assertEquals(8, controller.getBatchSize());
+        controller.onOverload(115, 130, 0);
+        assertEquals(4, controller.getBatchSize());
+
+        // A slow success is a sign of overload too.
+        controller.onSuccess(200, 1300);
+        assertEquals(2, controller.getBatchSize());
+        assertEquals(1, controller.getConcurrencyLimit());
+    }
+
+    @Test
+    public void honorsRetryAfter() throws Exception {
+        AimdController controller = new AimdController(2, 8, 16, 1000);
+        assertEquals(0, controller.getPauseMillis(1000));
+        controller.onOverload(900, 1000, 5000);
+        long pause = controller.getPauseMillis(1000);
+        assertTrue(pause >= 5000 && pause <= 6000);
+        assertEquals(0, controller.getPauseMillis(7000));
+
+        assertEquals(7000, AimdController.parseRetryAfter(" 7 ", 0));
+        assertEquals(0, AimdController.parseRetryAfter(null, 0));
+        assertEquals(0, AimdController.parseRetryAfter("soon", 0));
+        SimpleDateFormat format =
+                new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        long now = format.parse(format.format(new Date())).getTime();
+        assertEquals(120000, AimdController.parseRetryAfter(
+                format.format(new Date(now + 120000)), now));
+    }
+
+    /**
+     * Many devices, each with its own client and scheduler, upload to a server which can only
+     * work on a few requests at once.  A few more wait their turn in a queue, and the rest are
+     * refused with a 429 and a Retry-After.  Every set must get through, with few requests
+     * refused once the clients have backed off.
+     */
+    @Test
+    public void staysStableUnderOverload() throws Exception {
+        final int capacity = 6;
+        final int queue = 30;
+        final long serviceMillis = 15;
+        final int clients = 24;
+        final int setsPerClient = 25;
+        final long binMillis = 250;
+
+        final AtomicInteger inProgress = new AtomicInteger();
+        final Semaphore workers = new Semaphore(capacity, true);
+        final AtomicInteger refused = new AtomicInteger();
+        final AtomicIntegerArray acceptedPerBin = new AtomicIntegerArray(400);
+        final long start = System.currentTimeMillis();
+
+        LocalTlsServer server = new LocalTlsServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                LocalTlsServer.readBody(exchange);
+                if (inProgress.incrementAndGet() > capacity + queue) {
+                    inProgress.decrementAndGet();
+                    refused.incrementAndGet();
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    LocalTlsServer.respond(exchange, 429, "slow down");
+                    return;
+                }
+                try {
+                    workers.acquire();
+                    try {
+                        Thread.sleep(serviceMillis);
+                    } finally {
+                        workers.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inProgress.decrementAndGet();
+                int bin = (int) ((System.currentTimeMillis() - start) / binMillis);
+                acceptedPerBin.incrementAndGet(Math.min(bin, acceptedPerBin.length() - 1));
+                LocalTlsServer.respond(exchange, 200, "{}");
+            }
+        });
+
+        List<UploadScheduler> schedulers = new ArrayList<>();
+        List<ScanJournal> journals = new ArrayList<>();
+        UploadScheduler.Connectivity online = new UploadScheduler.Connectivity() {
+            @Override
+            public boolean isOnline() {
+                return true;
+            }
+        };
+        try {
+            for (int c = 0; c < clients; c++) {
+                ScanJournal journal = ScanJournal.open(new File(folder.getRoot(), "journal" + c));
+                UploadScheduler scheduler = new UploadScheduler(
+                        new UploadClient(LocalTlsServer.createClientContext()), journal, online,
+                        new AimdController(2, UploadScheduler.MAX_CONCURRENT_UPLOADS, 16, 80),
+                        50, 1000);
+                journals.add(journal);
+                schedulers.add(scheduler);
+            }
+            for (int i = 0; i < setsPerClient; i++) {
+                for (int c = 0; c < clients; c++) {
+                    List<ScanJournal.Scan> scans = new ArrayList<>();
+                    scans.add(journals.get(c).recordScan("c" + c + "-" + i, 0));
+                    schedulers.get(c).submit(
+                            UploadJob.forSet(server.url("/scans"), "RED", scans));
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + 120000;
+            for (UploadScheduler scheduler : schedulers) {
+                while (scheduler.getUnfinishedCount() > 0
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+                assertEquals(0, scheduler.getUnfinishedCount());
+            }
+            long elapsedMillis = System.currentTimeMillis() - start;
+
+            // Connecting all the clients takes a while; throughput is measured from the first
+            // accepted upload on.
+            int accepted = 0;
+            int firstBin = -1;
+            int lastBin = (int) (elapsedMillis / binMillis);
+            StringBuilder bins = new StringBuilder();
+            for (int bin = 0; bin <= lastBin; bin++) {
+                accepted += acceptedPerBin.get(bin);
+                bins.append(acceptedPerBin.get(bin)).append(' ');
+                if (firstBin < 0 && acceptedPerBin.get(bin) > 0) {
+                    firstBin = bin;
+                }
+            }
+            long uploadingMillis = elapsedMillis - firstBin * binMillis;
+            int total = clients * setsPerClient;
+            assertEquals(total, accepted);
+            for (ScanJournal journal : journals) {
+                assertTrue(journal.getPending().isEmpty());
+            }
+
+            System.out.println("Overload: " + total + " sets from " + clients + " clients in "
+                    + uploadingMillis + " ms, " + refused.get() + " refused, "
+                    + total * 1000L / uploadingMillis + " sets/s against a capacity of "
+                    + capacity * 1000 / serviceMillis + "/s");
+            System.out.println("Accepted per " + binMillis + " ms: " + bins);
+
+            // The clients back off instead of hammering the server with refused requests.
+            assertTrue("Refused " + refused.get() + " of " + (refused.get() + total),
+                    refused.get() < total / 10);
+        } finally {
+            for (UploadScheduler scheduler : schedulers) {
+                scheduler.shutdown();
+            }
+            server.stop();
+            for (ScanJournal journal : journals) {
+                journal.close();
+            }
+        }
+    }
+}
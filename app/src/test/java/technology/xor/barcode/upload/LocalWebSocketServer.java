@@ -0,0 +1,280 @@
+package technology.xor.barcode.upload;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocket server on the loopback interface standing in for the scan channel's server in tests.
+ * Uses the same certificate for localhost as {@link LocalTlsServer}, and hands every text
+ * message to a handler, which answers through the connection it came in on.
+ */
+class LocalWebSocketServer {
+    /**
+     * How the server answers the opening handshake.
+     */
+    enum Upgrade {
+        ACCEPT,
+        // With 403 Forbidden
+        REFUSE,
+        // With 101, but a Sec-WebSocket-Accept which doesn't match the key
+        WRONG_ACCEPT_KEY
+    }
+
+    /**
+     * Called on the connection's own thread for every text message.
+     */
+    interface Handler {
+        void onMessage(Connection connection, String message) throws IOException;
+    }
+
+    /**
+     * A connection from a client.
+     */
+    final class Connection {
+        private final Socket mSocket;
+        private final OutputStream mOut;
+
+        Connection(Socket socket) throws IOException {
+            mSocket = socket;
+            mOut = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void sendText(String text) throws IOException {
+            writeFrame(0x1, text.getBytes(LocalTlsServer.UTF_8));
+        }
+
+        /**
+         * Drops the connection without a close frame, as a failing network would.
+         */
+        void drop() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // Dropping anyway
+            }
+        }
+
+        private synchronized void writeFrame(int opcode, byte[] payload) throws IOException {
+            mOut.write(0x80 | opcode);
+            if (payload.length < 126) {
+                mOut.write(payload.length);
+            } else {
+                mOut.write(126);
+                mOut.write(payload.length >>> 8);
+                mOut.write(payload.length);
+            }
+            mOut.write(payload);
+            mOut.flush();
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+    private final List<Connection> mConnections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger mUpgradesAnswered = new AtomicInteger();
+    private final AtomicInteger mClosedAfterUpgrade = new AtomicInteger();
+    private volatile Upgrade mUpgrade = Upgrade.ACCEPT;
+
+    LocalWebSocketServer(Handler handler) throws Exception {
+        mHandler = handler;
+        mServerSocket = LocalTlsServer.createServerContext().getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "LocalWebSocketServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String url(String path) {
+        return "wss://localhost:" + mServerSocket.getLocalPort() + path;
+    }
+
+    void setUpgrade(Upgrade upgrade) {
+        mUpgrade = upgrade;
+    }
+
+    /**
+     * Returns the number of refused upgrades so far.
+     */
+    int getRefusedCount() {
+        return mUpgradesAnswered.get();
+    }
+
+    /**
+     * Returns the number of refused upgrades after which the client closed its connection.
+     */
+    int getClosedAfterRefusalCount() {
+        return mClosedAfterUpgrade.get();
+    }
+
+    /**
+     * Returns the number of connections opened so far.
+     */
+    int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Stopping anyway
+        }
+        for (Connection connection : mConnections) {
+            connection.drop();
+        }
+    }
+
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "LocalWebSocketServer-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String key = null;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                if (line.toLowerCase(Locale.US).startsWith("sec-websocket-key:")) {
+                    key = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+            OutputStream out = socket.getOutputStream();
+            Upgrade upgrade = mUpgrade;
+            if (upgrade == Upgrade.REFUSE) {
+                out.write(("HTTP/1.1 403 Forbidden\r\n"
+                        + "Content-Length: 0\r\n"
+                        + "\r\n").getBytes(LocalTlsServer.UTF_8));
+                out.flush();
+                awaitClose(socket, in);
+                return;
+            }
+            out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: "
+                    + WebSocket.acceptKey(upgrade == Upgrade.WRONG_ACCEPT_KEY ? key + "x" : key)
+                    + "\r\n"
+                    + "\r\n").getBytes(LocalTlsServer.UTF_8));
+            out.flush();
+            if (upgrade == Upgrade.WRONG_ACCEPT_KEY) {
+                awaitClose(socket, in);
+                return;
+            }
+
+            Connection connection = new Connection(socket);
+            mConnections.add(connection);
+            while (true) {
+                int first = readByte(in);
+                int second = readByte(in);
+                int length = second & 0x7f;
+                if (length == 126) {
+                    length = (readByte(in) << 8) | readByte(in);
+                }
+                byte[] mask = readFully(in, 4);
+                byte[] payload = readFully(in, length);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+                int opcode = first & 0x0f;
+                if (opcode == 0x1) {
+                    mHandler.onMessage(connection, new String(payload, LocalTlsServer.UTF_8));
+                } else if (opcode == 0x9) {
+                    connection.writeFrame(0xa, payload);
+                } else if (opcode == 0x8) {
+                    connection.writeFrame(0x8, payload);
+                    socket.close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Connection gone
+        }
+    }
+
+    /**
+     * Waits a few seconds for the client to close the connection after a refused upgrade, as it
+     * has to, and counts it if it does.
+     */
+    private void awaitClose(Socket socket, InputStream in) throws IOException {
+        mUpgradesAnswered.incrementAndGet();
+        socket.setSoTimeout(5000);
+        try {
+            while (in.read() != -1) {
+                // Nothing is expected from the client anymore.
+            }
+            mClosedAfterUpgrade.incrementAndGet();
+        } catch (SocketTimeoutException e) {
+            // Left open
+        } catch (IOException e) {
+            // Closed without a TLS close_notify
+            mClosedAfterUpgrade.incrementAndGet();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        for (int offset = 0; offset < length; ) {
+            int read = in.read(bytes, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = readByte(in)) != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), LocalTlsServer.UTF_8);
+    }
+}
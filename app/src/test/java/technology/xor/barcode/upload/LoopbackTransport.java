@@ -0,0 +1,71 @@
+package technology.xor.barcode.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-memory {@link UploadTransport} which answers every request itself, with a fixed status,
+ * and keeps the bodies it received.  Stands in for the network where a test is about what is
+ * sent rather than how, and gives a baseline to benchmark the real transports against.
+ */
+class LoopbackTransport implements UploadTransport {
+    private final UploadMetrics mMetrics = new UploadMetrics();
+    private final List<String> mReceived = new CopyOnWriteArrayList<>();
+    private final Map<String, List<String>> mNoHeaders = Collections.emptyMap();
+
+    private volatile int mResponseCode = 200;
+
+    void setResponseCode(int code) {
+        mResponseCode = code;
+    }
+
+    /**
+     * Returns the bodies received so far, decompressed.
+     */
+    List<String> getReceived() {
+        return mReceived;
+    }
+
+    @Override
+    public Response post(String url, String contentType, byte[] body,
+            Map<String, String> headers) throws IOException {
+        mMetrics.mRequests.incrementAndGet();
+        InputStream in = new ByteArrayInputStream(body);
+        if ("gzip".equals(headers.get("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        mReceived.add(new String(bytes.toByteArray(), LocalTlsServer.UTF_8));
+        return new Response(mResponseCode, mNoHeaders, "{}");
+    }
+
+    @Override
+    public Response post(String url, String contentType, BodyWriter body, boolean gzip,
+            Map<String, String> headers) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        body.writeTo(bytes);
+        return post(url, contentType, bytes.toByteArray(), headers);
+    }
+
+    @Override
+    public void prewarm(String url, long idleTimeoutMillis) {
+        // Nothing to connect
+    }
+
+    @Override
+    public UploadMetrics getMetrics() {
+        return mMetrics;
+    }
+}
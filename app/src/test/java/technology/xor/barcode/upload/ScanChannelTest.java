@@ -0,0 +1,319 @@
+package technology.xor.barcode.upload;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSession;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streaming, acknowledgements, windowing and fallback of the scan channel, against a local
+ * WebSocket server, with a local HTTPS server taking the codes which fall back to the POST path.
+ */
+public class ScanChannelTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<JsonObject> mStreamed = new CopyOnWriteArrayList<>();
+    private final List<String> mPosted = new CopyOnWriteArrayList<>();
+
+    // What the WebSocket server does with every code: acknowledge it, keep quiet, or drop the
+    // connection after a number of codes.
+    private volatile boolean mAcknowledge = true;
+    private volatile int mDropAfter;
+    private volatile LocalWebSocketServer.Connection mConnection;
+
+    private LocalWebSocketServer mWebSocketServer;
+    private LocalTlsServer mPostServer;
+    private ScanJournal mJournal;
+    private UploadScheduler mScheduler;
+    private ScanChannel mChannel;
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mWebSocketServer = new LocalWebSocketServer(new LocalWebSocketServer.Handler() {
+            @Override
+            public void onMessage(LocalWebSocketServer.Connection connection, String message)
+                    throws IOException {
+                mConnection = connection;
+                JsonObject event = new JsonParser().parse(message).getAsJsonObject();
+                mStreamed.add(event);
+                if (mDropAfter > 0 && mStreamed.size() == mDropAfter) {
+                    connection.drop();
+                } else if (mAcknowledge) {
+                    connection.sendText("{\"ack\":" + event.get("seq").getAsLong() + "}");
+                }
+            }
+        });
+        mPostServer = new LocalTlsServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mPosted.add(LocalTlsServer.readBody(exchange));
+                LocalTlsServer.respond(exchange, 200, "{}");
+            }
+        });
+        mJournal = ScanJournal.open(new File(folder.getRoot(), "journal"));
+        mScheduler = new UploadScheduler(new UploadClient(LocalTlsServer.createClientContext()),
+                mJournal, new UploadScheduler.Connectivity() {
+                    @Override
+                    public boolean isOnline() {
+                        return true;
+                    }
+                }, 10, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mChannel != null) {
+            mChannel.close();
+        }
+        mScheduler.shutdown();
+        mWebSocketServer.stop();
+        mPostServer.stop();
+        mJournal.close();
+    }
+
+    @Test
+    public void streamsCodesWithAcknowledgements() throws Exception {
+        openChannel(ScanChannel.DEFAULT_WINDOW);
+        int codes = 2000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < codes; i++) {
+            assertTrue(mChannel.offer("RED", mJournal.recordScan("code-" + i, i)));
+        }
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mChannel.getUnacknowledgedCount() == 0;
+            }
+        });
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(codes, mStreamed.size());
+        for (int i = 0; i < codes; i++) {
+            JsonObject event = mStreamed.get(i);
+            assertEquals(i + 1, event.get("seq").getAsLong());
+            assertEquals("RED", event.get("team").getAsString());
+            assertEquals("code-" + i, event.get("code").getAsString());
+        }
+        assertTrue(mJournal.getPending().isEmpty());
+        assertTrue(mPosted.isEmpty());
+        assertEquals(codes, mScheduler.getMetrics().getAckCount());
+
+        TransportBenchmark.Result posts = TransportBenchmark.run("POST per code",
+                new UploadClient(LocalTlsServer.createClientContext()),
+                mPostServer.url("/scans"), 1, codes);
+        System.out.println("Streamed " + codes + " codes in " + elapsedMillis + " ms, "
+                + codes * 1000L / Math.max(1, elapsedMillis) + " codes/s, "
+                + mScheduler.getMetrics().getAverageAckMillis() + " ms average to ack; "
+                + posts);
+    }
+
+    @Test
+    public void keepsWithinWindow() throws Exception {
+        mAcknowledge = false;
+        openChannel(8);
+        for (int i = 0; i < 20; i++) {
+            mChannel.offer("RED", mJournal.recordScan("code-" + i, i));
+        }
+        awaitStreamed(8);
+        Thread.sleep(200);
+        assertEquals(8, mStreamed.size());
+        assertEquals(20, mChannel.getUnacknowledgedCount());
+
+        // Acknowledging some of the window lets as many more through.
+        mConnection.sendText("{\"ack\":5}");
+        awaitStreamed(13);
+        Thread.sleep(200);
+        assertEquals(13, mStreamed.size());
+        assertEquals(15, mChannel.getUnacknowledgedCount());
+
+        mConnection.sendText("{\"ack\":13}");
+        awaitStreamed(20);
+        mConnection.sendText("{\"ack\":20}");
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mChannel.getUnacknowledgedCount() == 0;
+            }
+        });
+        assertTrue(mJournal.getPending().isEmpty());
+    }
+
+    @Test
+    public void fallsBackToPostWhenDropped() throws Exception {
+        mAcknowledge = false;
+        mDropAfter = 6;
+        openChannel(ScanChannel.DEFAULT_WINDOW);
+        List<ScanJournal.Scan> red = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            red.add(mJournal.recordScan("code-" + i, i));
+            assertTrue(mChannel.offer("RED", red.get(i)));
+        }
+        assertTrue(mChannel.closeSet(red).isEmpty());
+        List<ScanJournal.Scan> blue = new ArrayList<>();
+        for (int i = 4; i < 6; i++) {
+            blue.add(mJournal.recordScan("code-" + i, i));
+            mChannel.offer("BLUE", blue.get(i - 4));
+        }
+
+        // The codes which weren't acknowledged are posted instead if their set was closed, and
+        // handed back otherwise.
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mPosted.size() == 1 && mScheduler.getUnfinishedCount() == 0
+                        && mJournal.getPending().size() == 2;
+            }
+        });
+        assertEquals("{\"team\":\"RED\",\"1\":\"code-0\",\"2\":\"code-1\",\"3\":\"code-2\","
+                + "\"4\":\"code-3\"}", mPosted.get(0));
+        assertEquals(0, mChannel.getUnacknowledgedCount());
+
+        // The handed back codes are returned with the rest of their set, to be posted as a whole.
+        blue.add(mJournal.recordScan("code-6", 6));
+        blue.add(mJournal.recordScan("code-7", 7));
+        assertEquals(blue, mChannel.closeSet(blue));
+
+        // And the channel comes back, numbering from 1 again.
+        mAcknowledge = true;
+        mDropAfter = 0;
+        awaitOpen();
+        assertEquals(2, mWebSocketServer.getConnectionCount());
+        assertTrue(mChannel.offer("RED", mJournal.recordScan("code-8", 8)));
+        awaitStreamed(7);
+        assertEquals(1, mStreamed.get(6).get("seq").getAsLong());
+    }
+
+    @Test
+    public void ignoresAcknowledgementsOfDroppedConnections() throws Exception {
+        mAcknowledge = false;
+        openChannel(ScanChannel.DEFAULT_WINDOW);
+        ScanJournal.Scan scan = mJournal.recordScan("code-0", 0);
+        assertTrue(mChannel.offer("RED", scan));
+        awaitStreamed(1);
+
+        // Sequence numbers start over on every connection, so an acknowledgement read late from
+        // a connection given up on (standing in for it: null) must not count on this one.
+        mChannel.onMessage(null, "{\"ack\":1}");
+        assertEquals(1, mChannel.getUnacknowledgedCount());
+
+        mConnection.sendText("{\"ack\":1}");
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mChannel.getUnacknowledgedCount() == 0;
+            }
+        });
+        assertTrue(mJournal.getPending().isEmpty());
+    }
+
+    @Test
+    public void closesRefusedConnections() throws Exception {
+        for (final LocalWebSocketServer.Upgrade upgrade : new LocalWebSocketServer.Upgrade[] {
+                LocalWebSocketServer.Upgrade.REFUSE,
+                LocalWebSocketServer.Upgrade.WRONG_ACCEPT_KEY}) {
+            mWebSocketServer.setUpgrade(upgrade);
+            try {
+                WebSocket.connect(URI.create(mWebSocketServer.url("/stream")),
+                        LocalTlsServer.createClientContext().getSocketFactory(),
+                        localhostVerifier(), 5000, 5000);
+                fail("Upgrade accepted despite " + upgrade);
+            } catch (ProtocolException expected) {
+                // The server answered, but not with a WebSocket.
+            }
+        }
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mWebSocketServer.getClosedAfterRefusalCount() == 2;
+            }
+        });
+
+        // Nor does the channel leave a connection behind each time it tries again.
+        mWebSocketServer.setUpgrade(LocalWebSocketServer.Upgrade.REFUSE);
+        mChannel = new ScanChannel(URI.create(mWebSocketServer.url("/stream")),
+                mPostServer.url("/scans"), LocalTlsServer.createClientContext().getSocketFactory(),
+                localhostVerifier(), mJournal, mScheduler, ScanChannel.DEFAULT_WINDOW, 20, 50);
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mWebSocketServer.getRefusedCount() >= 12;
+            }
+        });
+        mChannel.close();
+        assertFalse(mChannel.isOpen());
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mWebSocketServer.getClosedAfterRefusalCount()
+                        == mWebSocketServer.getRefusedCount();
+            }
+        });
+    }
+
+    private void openChannel(int window) throws Exception {
+        mChannel = new ScanChannel(URI.create(mWebSocketServer.url("/stream")),
+                mPostServer.url("/scans"), LocalTlsServer.createClientContext().getSocketFactory(),
+                localhostVerifier(), mJournal, mScheduler, window, 20, 200);
+        awaitOpen();
+    }
+
+    private static HostnameVerifier localhostVerifier() {
+        return new HostnameVerifier() {
+            @Override
+            public boolean verify(String hostname, SSLSession session) {
+                return "localhost".equals(hostname);
+            }
+        };
+    }
+
+    private void awaitOpen() throws Exception {
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mChannel.isOpen();
+            }
+        });
+    }
+
+    private void awaitStreamed(final int count) throws Exception {
+        await(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mStreamed.size() >= count;
+            }
+        });
+    }
+
+    private static void await(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.isMet());
+    }
+}
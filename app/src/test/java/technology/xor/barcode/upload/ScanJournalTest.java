@@ -0,0 +1,290 @@
+package technology.xor.barcode.upload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replay, recovery and throughput of the scan journal, on the development machine.
+ */
+public class ScanJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysPendingScans() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        ScanJournal journal = ScanJournal.open(file);
+        ScanJournal.Scan first = journal.recordScan("first", 1000);
+        ScanJournal.Scan second = journal.recordScan("second", 2000);
+        ScanJournal.Scan third = journal.recordScan("third", 3000);
+        journal.markInFlight(list(first, second));
+        journal.markUploaded(list(first));
+        journal.markInFlight(list(third));
+        journal.sync();
+        journal.close();
+
+        // The second scan's upload never finished, so it is pending again.
+        journal = ScanJournal.open(file);
+        List<ScanJournal.Scan> pending = journal.getPending();
+        assertEquals(2, pending.size());
+        assertEquals("second", pending.get(0).getValue());
+        assertEquals(2000, pending.get(0).getCapturedAtMillis());
+        assertEquals("third", pending.get(1).getValue());
+
+        // Along with the journal's id, so retried sets keep their keys.
+        assertEquals(second.getJournalId(), pending.get(0).getJournalId());
+
+        // Ids keep increasing across restarts.
+        assertTrue(journal.recordScan("fourth", 4000).getId() > third.getId());
+        journal.close();
+    }
+
+    @Test
+    public void keepsServerAndTeamOfScans() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        ScanJournal journal = ScanJournal.open(file);
+        journal.recordScan("https://red.example", "RED", "first", 1000);
+        journal.recordScan("second", 2000);
+        journal.close();
+
+        // Reopened twice, so the scans are read back both as appended and as compacted.
+        for (int i = 0; i < 2; i++) {
+            journal = ScanJournal.open(file);
+            List<ScanJournal.Scan> pending = journal.getPending();
+            assertEquals(2, pending.size());
+            assertEquals("https://red.example", pending.get(0).getUrl());
+            assertEquals("RED", pending.get(0).getTeam());
+            assertEquals("first", pending.get(0).getValue());
+            assertNull(pending.get(1).getUrl());
+            assertNull(pending.get(1).getTeam());
+            assertEquals("second", pending.get(1).getValue());
+            journal.close();
+        }
+    }
+
+    @Test
+    public void ignoresDamagedTail() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        ScanJournal journal = ScanJournal.open(file);
+        journal.recordScan("kept", 1000);
+        journal.sync();
+        long goodLength = file.length();
+        journal.recordScan("torn", 2000);
+        journal.close();
+
+        // Cut the last record short, as a crash in the middle of a write would.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(goodLength + 5);
+        raf.close();
+
+        journal = ScanJournal.open(file);
+        List<ScanJournal.Scan> pending = journal.getPending();
+        assertEquals(1, pending.size());
+        assertEquals("kept", pending.get(0).getValue());
+
+        // The journal is still usable after recovering.
+        journal.recordScan("after", 3000);
+        journal.close();
+        journal = ScanJournal.open(file);
+        assertEquals(2, journal.getPending().size());
+        journal.close();
+    }
+
+    @Test
+    public void rejectsCorruptedRecord() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        ScanJournal journal = ScanJournal.open(file);
+        journal.recordScan("good", 1000);
+        journal.sync();
+        long corruptAt = file.length() - 1;
+        journal.recordScan("bad", 2000);
+        journal.close();
+
+        // Flip a byte in the first record's value.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(corruptAt);
+        int b = raf.read();
+        raf.seek(corruptAt);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        journal = ScanJournal.open(file);
+        assertTrue(journal.getPending().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void compactsUploadedScans() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        ScanJournal journal = ScanJournal.open(file);
+        for (int i = 0; i < 5000; i++) {
+            ScanJournal.Scan scan = journal.recordScan("code-" + i, i);
+            if (i % 100 != 0) {
+                journal.markUploaded(list(scan));
+            }
+        }
+        journal.sync();
+        journal.close();
+
+        // 50 scans left, each in a record of less than 50 bytes.
+        assertTrue("Journal not compacted: " + file.length(), file.length() < 4096 * 16);
+
+        journal = ScanJournal.open(file);
+        assertEquals(50, journal.getPending().size());
+        journal.close();
+        assertTrue(file.length() < 50 * 50);
+    }
+
+    @Test
+    public void keepsRejectedScansOutOfPending() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        ScanJournal journal = ScanJournal.open(file);
+        ScanJournal.Scan rejected = journal.recordScan("rejected", 1000);
+        ScanJournal.Scan pending = journal.recordScan("pending", 2000);
+        journal.markInFlight(list(rejected, pending));
+        journal.markRejected(list(rejected));
+        journal.markFailed(list(pending));
+        journal.sync();
+        journal.close();
+
+        // Still rejected after a replay, and again after the compaction which follows it.
+        for (int i = 0; i < 2; i++) {
+            journal = ScanJournal.open(file);
+            assertEquals(1, journal.getPending().size());
+            assertEquals("pending", journal.getPending().get(0).getValue());
+            assertEquals(1, journal.getRejected().size());
+            assertEquals("rejected", journal.getRejected().get(0).getValue());
+            journal.close();
+        }
+
+        // Until it is sent again on purpose.
+        journal = ScanJournal.open(file);
+        journal.markFailed(journal.getRejected());
+        assertEquals(2, journal.getPending().size());
+        assertTrue(journal.getRejected().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void keepsIdsAcrossCompaction() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        ScanJournal journal = ScanJournal.open(file);
+        ScanJournal.Scan first = journal.recordScan("first", 1000);
+        ScanJournal.Scan second = journal.recordScan("second", 2000);
+        journal.markUploaded(list(first, second));
+        journal.sync();
+        journal.close();
+
+        // Nothing is left to replay, but ids still carry on after the last one given out.
+        journal = ScanJournal.open(file);
+        assertTrue(journal.getPending().isEmpty());
+        journal.close();
+        journal = ScanJournal.open(file);
+        assertTrue(journal.recordScan("third", 3000).getId() > second.getId());
+        journal.close();
+    }
+
+    @Test
+    public void recordsWhileCompacting() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        final ScanJournal journal = ScanJournal.open(file);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // One thread keeps uploading, and so compacting, while another keeps scanning.
+        Thread uploader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        journal.markUploaded(list(journal.recordScan("uploaded-" + i, i)));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        uploader.start();
+        for (int i = 0; i < 500; i++) {
+            journal.recordScan("kept-" + i, i);
+        }
+        uploader.join();
+        journal.sync();
+        journal.close();
+        assertNull(failure.get());
+
+        ScanJournal reopened = ScanJournal.open(file);
+        List<ScanJournal.Scan> pending = reopened.getPending();
+        assertEquals(500, pending.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals("kept-" + i, pending.get(i).getValue());
+        }
+        reopened.close();
+    }
+
+    /**
+     * Records bursts of scans from several threads, each waiting for its scan to be durable, as
+     * the capture flow would in the worst case.  Group commit should keep the rate far above
+     * anything a camera can scan.
+     */
+    @Test
+    public void throughputBenchmark() throws Exception {
+        final int threads = 4;
+        final int scansPerThread = 2000;
+        final ScanJournal journal = ScanJournal.open(new File(folder.getRoot(), "journal"));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < scansPerThread; i++) {
+                            journal.recordScan("thread-" + thread + "-code-" + i,
+                                    System.currentTimeMillis());
+                            journal.sync();
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        journal.close();
+
+        assertNull(failure.get());
+        int total = threads * scansPerThread;
+        double scansPerSecond = total * 1e9 / elapsedNanos;
+        System.out.println("Journal: " + total + " durable scans in " + elapsedNanos / 1000000
+                + " ms, " + (long) scansPerSecond + " scans/s");
+
+        // A fast picker scans a few codes per second.
+        assertTrue("Journal too slow: " + scansPerSecond + " scans/s", scansPerSecond > 100);
+    }
+
+    private static List<ScanJournal.Scan> list(ScanJournal.Scan... scans) {
+        List<ScanJournal.Scan> list = new ArrayList<>();
+        Collections.addAll(list, scans);
+        return list;
+    }
+}
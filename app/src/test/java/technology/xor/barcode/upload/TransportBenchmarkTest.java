@@ -0,0 +1,99 @@
+package technology.xor.barcode.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput and latency of the upload transports which run on the JVM, and the scheduler
+ * running over the in-memory loopback.  The Volley transport needs a device, where
+ * UploadTransportBenchmark in the instrumented tests measures it.
+ */
+public class TransportBenchmarkTest {
+    private static final int THREADS = UploadScheduler.MAX_CONCURRENT_UPLOADS;
+    private static final int REQUESTS = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void comparesTransports() throws Exception {
+        LocalTlsServer server = new LocalTlsServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                LocalTlsServer.readBody(exchange);
+                LocalTlsServer.respond(exchange, 200, "{}");
+            }
+        });
+        try {
+            String url = server.url("/scans");
+            TransportBenchmark.Result loopback = TransportBenchmark.run("Loopback",
+                    new LoopbackTransport(), url, THREADS, REQUESTS);
+            UploadClient client = new UploadClient(LocalTlsServer.createClientContext());
+            TransportBenchmark.Result https = TransportBenchmark.run("HttpsURLConnection",
+                    client, url, THREADS, REQUESTS);
+            System.out.println(loopback);
+            System.out.println(https);
+
+            assertEquals(0, loopback.getFailureCount());
+            assertEquals(0, https.getFailureCount());
+            // Kept-alive connections, one for each thread.
+            assertTrue(client.getMetrics().getHandshakeCount() <= THREADS);
+            assertTrue(https.getPercentileMillis(99) >= https.getPercentileMillis(50));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void schedulerUploadsOverLoopback() throws Exception {
+        ScanJournal journal = ScanJournal.open(new File(folder.getRoot(), "journal"));
+        LoopbackTransport transport = new LoopbackTransport();
+        UploadScheduler scheduler = new UploadScheduler(transport, journal,
+                new UploadScheduler.Connectivity() {
+                    @Override
+                    public boolean isOnline() {
+                        return true;
+                    }
+                }, 10, 100);
+        try {
+            List<ScanJournal.Scan> scans = new ArrayList<>();
+            scans.add(journal.recordScan("a", 1));
+            scheduler.submit(UploadJob.forSet("loopback://scans", "RED", scans));
+
+            List<UploadJob.ScanSet> sets = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                List<ScanJournal.Scan> set = new ArrayList<>();
+                set.add(journal.recordScan("b" + i, 2));
+                sets.add(new UploadJob.ScanSet("BLUE", set));
+            }
+            scheduler.submit(UploadJob.forBatch("loopback://batch", sets));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (scheduler.getUnfinishedCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, scheduler.getUnfinishedCount());
+            assertTrue(journal.getPending().isEmpty());
+            assertTrue(transport.getReceived().contains("{\"team\":\"RED\",\"1\":\"a\"}"));
+            assertTrue(transport.getReceived().contains("{\"sets\":["
+                    + "{\"team\":\"BLUE\",\"1\":\"b0\"},"
+                    + "{\"team\":\"BLUE\",\"1\":\"b1\"},"
+                    + "{\"team\":\"BLUE\",\"1\":\"b2\"}]}"));
+            assertEquals(2, scheduler.getMetrics().getAckCount());
+        } finally {
+            scheduler.shutdown();
+            journal.close();
+        }
+    }
+}
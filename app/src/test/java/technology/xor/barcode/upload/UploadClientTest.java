@@ -0,0 +1,191 @@
+package technology.xor.barcode.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connection reuse, session resumption and metrics of the upload client, against a local TLS
+ * server.
+ */
+public class UploadClientTest {
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+
+    private final List<String> mReceived = new CopyOnWriteArrayList<>();
+    private final List<String> mMethods = new CopyOnWriteArrayList<>();
+    private LocalTlsServer mServer;
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.stop();
+        }
+    }
+
+    @Test
+    public void reusesConnectionAcrossRequests() throws Exception {
+        mServer = new LocalTlsServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mReceived.add(LocalTlsServer.readBody(exchange));
+                LocalTlsServer.respond(exchange, 200, "ok");
+            }
+        });
+        UploadClient client = new UploadClient(LocalTlsServer.createClientContext());
+
+        for (int i = 0; i < 10; i++) {
+            UploadTransport.Response response = post(client, "{\"1\":\"code-" + i + "\"}");
+            assertEquals(200, response.getCode());
+            assertEquals("ok", response.getBody());
+        }
+
+        assertEquals(10, mReceived.size());
+        assertEquals("{\"1\":\"code-9\"}", mReceived.get(9));
+        UploadMetrics metrics = client.getMetrics();
+        assertEquals(10, metrics.getRequestCount());
+        assertEquals(0, metrics.getFailureCount());
+        awaitHandshakes(client, 1);
+        assertEquals(1, metrics.getHandshakeCount());
+        System.out.println("Kept alive: " + metrics);
+    }
+
+    @Test
+    public void resumesSessionOnNewConnections() throws Exception {
+        mServer = new LocalTlsServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                LocalTlsServer.readBody(exchange);
+                exchange.getResponseHeaders().set("Connection", "close");
+                LocalTlsServer.respond(exchange, 200, "ok");
+            }
+        });
+        UploadClient client = new UploadClient(LocalTlsServer.createClientContext());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, post(client, "{}").getCode());
+        }
+
+        UploadMetrics metrics = client.getMetrics();
+        awaitHandshakes(client, 3);
+        assertEquals(3, metrics.getHandshakeCount());
+        assertEquals(2, metrics.getResumedHandshakeCount());
+        System.out.println("Resumed: " + metrics);
+    }
+
+    @Test
+    public void readsErrorResponses() throws Exception {
+        mServer = new LocalTlsServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                LocalTlsServer.readBody(exchange);
+                exchange.getResponseHeaders().set("Retry-After", "7");
+                LocalTlsServer.respond(exchange, 503, "busy");
+            }
+        });
+        UploadClient client = new UploadClient(LocalTlsServer.createClientContext());
+
+        UploadTransport.Response response = post(client, "{}");
+        assertEquals(503, response.getCode());
+        assertEquals("7", response.getHeader("retry-after"));
+        assertEquals("busy", response.getBody());
+
+        // The error body was read, so the connection is still reused.
+        post(client, "{}");
+        awaitHandshakes(client, 1);
+        assertEquals(1, client.getMetrics().getHandshakeCount());
+    }
+
+    @Test
+    public void uploadUsesPrewarmedConnection() throws Exception {
+        startEchoServer();
+        UploadClient client = new UploadClient(LocalTlsServer.createClientContext());
+
+        client.prewarm(mServer.url("/scans"), 10000);
+        awaitPrewarm(client);
+        awaitHandshakes(client, 1);
+        assertEquals(1, client.getMetrics().getHandshakeCount());
+
+        // The upload goes out on the warm connection, without a handshake of its own.
+        assertEquals(200, post(client, "{}").getCode());
+        awaitHandshakes(client, 2);
+        assertEquals(1, client.getMetrics().getHandshakeCount());
+        assertEquals(1, client.getMetrics().getPrewarmUsedCount());
+        assertEquals(Arrays.asList("HEAD", "POST"), mMethods);
+    }
+
+    @Test
+    public void dropsUnusedPrewarmedConnection() throws Exception {
+        startEchoServer();
+        UploadClient client = new UploadClient(LocalTlsServer.createClientContext());
+
+        client.prewarm(mServer.url("/scans"), 100);
+        awaitPrewarm(client);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getMetrics().getPrewarmDroppedCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, client.getMetrics().getPrewarmDroppedCount());
+
+        // The dropped connection isn't reused; the upload connects again.
+        assertEquals(200, post(client, "{}").getCode());
+        awaitHandshakes(client, 2);
+        assertEquals(2, client.getMetrics().getHandshakeCount());
+        assertEquals(0, client.getMetrics().getPrewarmUsedCount());
+    }
+
+    private void startEchoServer() throws Exception {
+        mServer = new LocalTlsServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mMethods.add(exchange.getRequestMethod());
+                LocalTlsServer.readBody(exchange);
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                } else {
+                    LocalTlsServer.respond(exchange, 200, "ok");
+                }
+            }
+        });
+    }
+
+    private static void awaitPrewarm(UploadClient client) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getMetrics().getPrewarmCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, client.getMetrics().getPrewarmCount());
+    }
+
+    /**
+     * Waits for the handshake listeners, which the JDK calls on a thread of their own, to catch
+     * up with the requests.
+     */
+    private static void awaitHandshakes(UploadClient client, long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getMetrics().getHandshakeCount() < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Give any unexpected extra handshake a chance to show up too.
+        Thread.sleep(50);
+    }
+
+    private UploadTransport.Response post(UploadClient client, String json) throws IOException {
+        return client.post(mServer.url("/scans"), "application/json",
+                json.getBytes(LocalTlsServer.UTF_8), NO_HEADERS);
+    }
+}
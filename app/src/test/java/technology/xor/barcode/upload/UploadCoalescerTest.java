@@ -0,0 +1,154 @@
+package technology.xor.barcode.upload;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Batch uploads of scan sets against a local HTTPS server.
+ */
+public class UploadCoalescerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlockingQueue<String> mBodies = new LinkedBlockingQueue<>();
+    private volatile int mResponseCode = 200;
+    private LocalTlsServer mServer;
+    private ScanJournal mJournal;
+    private UploadScheduler mScheduler;
+    private UploadCoalescer mCoalescer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LocalTlsServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    in = new GZIPInputStream(in);
+                }
+                mBodies.add(read(in));
+                LocalTlsServer.respond(exchange, mResponseCode, "{}");
+            }
+        });
+        mJournal = ScanJournal.open(new File(folder.getRoot(), "journal"));
+        mScheduler = new UploadScheduler(new UploadClient(LocalTlsServer.createClientContext()),
+                mJournal, new UploadScheduler.Connectivity() {
+                    @Override
+                    public boolean isOnline() {
+                        return true;
+                    }
+                }, 1000, 1000);
+        mCoalescer = new UploadCoalescer(mScheduler, mJournal);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mScheduler.shutdown();
+        mServer.stop();
+        mJournal.close();
+    }
+
+    @Test
+    public void sendsFullBatchInOneCompressedRequest() throws Exception {
+        mCoalescer.setPolicy(3, TimeUnit.MINUTES.toMillis(1));
+        mCoalescer.add(mServer.url("/batch"), "RED", scanSet("a", 4));
+        mCoalescer.add(mServer.url("/batch"), "RED", scanSet("b", 4));
+        assertNull(mBodies.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, mCoalescer.getPendingCount());
+
+        mCoalescer.add(mServer.url("/batch"), "BLUE", scanSet("c", 2));
+        String body = mBodies.poll(5, TimeUnit.SECONDS);
+        assertNotNull(body);
+        assertEquals(0, mCoalescer.getPendingCount());
+
+        JsonArray sets = new JsonParser().parse(body).getAsJsonObject().getAsJsonArray("sets");
+        assertEquals(3, sets.size());
+        JsonObject first = sets.get(0).getAsJsonObject();
+        assertEquals("RED", first.get("team").getAsString());
+        assertEquals("a1", first.get("1").getAsString());
+        assertEquals("a4", first.get("4").getAsString());
+        JsonObject last = sets.get(2).getAsJsonObject();
+        assertEquals("BLUE", last.get("team").getAsString());
+        assertEquals("c2", last.get("2").getAsString());
+        assertFalse(last.has("3"));
+
+        awaitPending(0);
+    }
+
+    @Test
+    public void sendsPartialBatchAfterLinger() throws Exception {
+        mCoalescer.setPolicy(10, 200);
+        mCoalescer.add(mServer.url("/batch"), "RED", scanSet("a", 4));
+        String body = mBodies.poll(5, TimeUnit.SECONDS);
+        assertNotNull(body);
+        assertEquals(1, new JsonParser().parse(body).getAsJsonObject()
+                .getAsJsonArray("sets").size());
+        awaitPending(0);
+    }
+
+    @Test
+    public void keepsRefusedBatchInJournal() throws Exception {
+        mResponseCode = 400;
+        mCoalescer.setPolicy(2, TimeUnit.MINUTES.toMillis(1));
+        mCoalescer.add(mServer.url("/batch"), "RED", scanSet("a", 4));
+        mCoalescer.flush();
+        assertNotNull(mBodies.poll(5, TimeUnit.SECONDS));
+
+        // Kept, but not sent again.
+        awaitPending(0);
+        assertEquals(4, mJournal.getRejected().size());
+    }
+
+    private List<ScanJournal.Scan> scanSet(String prefix, int count) {
+        List<ScanJournal.Scan> scans = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            scans.add(mJournal.recordScan(prefix + i, System.currentTimeMillis()));
+        }
+        return scans;
+    }
+
+    /**
+     * Waits for the scheduler to finish the batch, then checks the scans left pending.
+     */
+    private void awaitPending(int expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mScheduler.getUnfinishedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mScheduler.getUnfinishedCount());
+        assertEquals(expected, mJournal.getPending().size());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        in.close();
+        return new String(bytes.toByteArray(), LocalTlsServer.UTF_8);
+    }
+}
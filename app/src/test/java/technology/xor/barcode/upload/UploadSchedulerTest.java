@@ -0,0 +1,217 @@
+package technology.xor.barcode.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Retries, offline hold and throughput of the upload scheduler, against a local HTTPS server
+ * which fails some of the requests.
+ */
+public class UploadSchedulerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Every n-th request is refused with a 503, and every m-th has its connection dropped.
+    private volatile int mRefuseEvery;
+    private volatile int mDropEvery;
+    private volatile int mResponseCode = 200;
+    private volatile boolean mOnline = true;
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicInteger> mAccepted = new ConcurrentHashMap<>();
+    private final Set<String> mSeenKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private LocalTlsServer mServer;
+    private ScanJournal mJournal;
+    private UploadScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LocalTlsServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int request = mRequests.incrementAndGet();
+                String key = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+                LocalTlsServer.readBody(exchange);
+                mSeenKeys.add(key);
+                if (mDropEvery > 0 && request % mDropEvery == 0) {
+                    exchange.close();
+                } else if (mRefuseEvery > 0 && request % mRefuseEvery == 0) {
+                    LocalTlsServer.respond(exchange, 503, "busy");
+                } else {
+                    if (mResponseCode == 200) {
+                        mAccepted.putIfAbsent(key, new AtomicInteger());
+                        mAccepted.get(key).incrementAndGet();
+                    }
+                    LocalTlsServer.respond(exchange, mResponseCode, "{}");
+                }
+            }
+        });
+        mJournal = ScanJournal.open(new File(folder.getRoot(), "journal"));
+        mScheduler = new UploadScheduler(new UploadClient(LocalTlsServer.createClientContext()),
+                mJournal, new UploadScheduler.Connectivity() {
+                    @Override
+                    public boolean isOnline() {
+                        return mOnline;
+                    }
+                }, 10, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mScheduler.shutdown();
+        mServer.stop();
+        mJournal.close();
+    }
+
+    @Test
+    public void retriesUntilEverySetIsAccepted() throws Exception {
+        mRefuseEvery = 3;
+        mDropEvery = 7;
+        int sets = 60;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < sets; i++) {
+            mScheduler.submit(scanSet("s" + i + "-", 4));
+        }
+        awaitIdle(30000);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        // Every set got through exactly once, and retries reused the set's key.
+        assertEquals(sets, mAccepted.size());
+        for (AtomicInteger count : mAccepted.values()) {
+            assertEquals(1, count.get());
+        }
+        assertEquals(sets, mSeenKeys.size());
+        assertTrue(mRequests.get() > sets);
+        assertTrue(mJournal.getPending().isEmpty());
+        assertEquals(sets, mScheduler.getMetrics().getAckCount());
+
+        System.out.println("Flaky server: " + sets + " sets in " + mRequests.get()
+                + " requests, " + elapsedMillis + " ms, "
+                + sets * 1000L / Math.max(1, elapsedMillis) + " sets/s, "
+                + mScheduler.getMetrics().getAverageAckMillis() + " ms average to ack");
+    }
+
+    @Test
+    public void holdsUploadsWhileOffline() throws Exception {
+        mOnline = false;
+        for (int i = 0; i < 5; i++) {
+            mScheduler.submit(scanSet("s" + i + "-", 4));
+        }
+        Thread.sleep(200);
+        assertEquals(0, mRequests.get());
+        assertEquals(5, mScheduler.getUnfinishedCount());
+
+        mOnline = true;
+        mScheduler.onNetworkAvailable();
+        awaitIdle(5000);
+        assertEquals(5, mAccepted.size());
+        assertTrue(mJournal.getPending().isEmpty());
+    }
+
+    @Test
+    public void givesUpOnClientErrors() throws Exception {
+        mResponseCode = 400;
+        mScheduler.submit(scanSet("s", 4));
+        awaitIdle(5000);
+
+        // Not retried, nor sent again later: the codes are kept as rejected.
+        assertEquals(1, mRequests.get());
+        assertTrue(mJournal.getPending().isEmpty());
+        assertEquals(4, mJournal.getRejected().size());
+    }
+
+    @Test
+    public void keysFollowTheScans() throws Exception {
+        List<ScanJournal.Scan> scans = new ArrayList<>();
+        scans.add(mJournal.recordScan("a", 1));
+        scans.add(mJournal.recordScan("b", 2));
+        Set<String> keys = new HashSet<>();
+        keys.add(UploadJob.forSet("https://example.com", "RED", scans).getIdempotencyKey());
+        keys.add(UploadJob.forSet("https://example.com", "RED", scans).getIdempotencyKey());
+        assertEquals(1, keys.size());
+        keys.add(UploadJob.forSet("https://example.com", "RED", scans.subList(0, 1))
+                .getIdempotencyKey());
+        assertEquals(2, keys.size());
+    }
+
+    @Test
+    public void keysDifferAcrossCompaction() throws Exception {
+        File file = new File(folder.getRoot(), "compacted");
+        ScanJournal journal = ScanJournal.open(file);
+        UploadJob uploaded = UploadJob.forSet("https://example.com", "RED",
+                Collections.singletonList(journal.recordScan("a", 1)));
+        journal.markUploaded(uploaded.getScans());
+        journal.sync();
+        journal.close();
+
+        // Reopening compacts the journal down to nothing; the next set still gets its own key.
+        journal = ScanJournal.open(file);
+        UploadJob next = UploadJob.forSet("https://example.com", "RED",
+                Collections.singletonList(journal.recordScan("a", 1)));
+        journal.close();
+        assertNotEquals(uploaded.getIdempotencyKey(), next.getIdempotencyKey());
+
+        // Nor does another install's first set share a key with this one's.
+        ScanJournal other = ScanJournal.open(new File(folder.getRoot(), "other"));
+        ScanJournal mine = ScanJournal.open(new File(folder.getRoot(), "mine"));
+        assertNotEquals(UploadJob.forSet("https://example.com", "RED",
+                Collections.singletonList(other.recordScan("a", 1))).getIdempotencyKey(),
+                UploadJob.forSet("https://example.com", "RED",
+                        Collections.singletonList(mine.recordScan("a", 1))).getIdempotencyKey());
+        other.close();
+        mine.close();
+    }
+
+    @Test
+    public void picksHttpsUrlConnectionForEveryDeviceClass() throws Exception {
+        int[] deviceClasses = {
+                UploadScheduler.DEVICE_CLASS_LOW_RAM, UploadScheduler.DEVICE_CLASS_STANDARD};
+        for (int deviceClass : deviceClasses) {
+            int transport = UploadScheduler.getTransport(deviceClass);
+            assertEquals(UploadScheduler.TRANSPORT_HTTPS_URL_CONNECTION, transport);
+            assertSame(UploadClient.getInstance(), UploadScheduler.createTransport(transport));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownDeviceClass() {
+        UploadScheduler.getTransport(2);
+    }
+
+    private UploadJob scanSet(String prefix, int count) {
+        List<ScanJournal.Scan> scans = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            scans.add(mJournal.recordScan(prefix + i, System.currentTimeMillis()));
+        }
+        return UploadJob.forSet(mServer.url("/scans"), "RED", scans);
+    }
+
+    private void awaitIdle(long timeoutMillis) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mScheduler.getUnfinishedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mScheduler.getUnfinishedCount());
+    }
+}